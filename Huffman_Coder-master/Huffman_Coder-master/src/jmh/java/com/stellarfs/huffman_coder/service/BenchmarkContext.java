@@ -0,0 +1,31 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.HuffmanCoderApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * One application context per benchmark fork, wired like production but
+ * without the result cache, which would turn every iteration into a hit.
+ */
+final class BenchmarkContext {
+
+    private static ConfigurableApplicationContext context;
+
+    private BenchmarkContext() {
+    }
+
+    static synchronized <T> T bean(Class<T> type) {
+        if (context == null) {
+            // Passed as arguments: they must override application.properties
+            context = new SpringApplicationBuilder(HuffmanCoderApplication.class).run(
+                    "--server.port=0",
+                    "--logging.level.root=WARN",
+                    "--compression.cache.memory-bytes=0",
+                    "--compression.cache.dir=",
+                    "--compression.dictionary.dir=target/jmh-dictionaries",
+                    "--compression.selection.audit-every=0");
+        }
+        return context.getBean(type);
+    }
+}
@@ -0,0 +1,135 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic benchmark inputs, so runs on different machines and commits
+ * compress the same bytes.
+ */
+public final class BenchmarkCorpus {
+
+    public enum Kind {
+        TEXT("txt"),
+        CSV("csv"),
+        RANDOM("bin"),
+        LOW_ENTROPY("bin"),
+        PDF("pdf");
+
+        final String extension;
+
+        Kind(String extension) {
+            this.extension = extension;
+        }
+
+        String fileName() {
+            return "corpus." + extension;
+        }
+    }
+
+    private static final String[] WORDS = {
+            "the", "compression", "of", "request", "and", "service", "to", "block", "a", "huffman",
+            "in", "stream", "is", "codec", "for", "table", "with", "payload", "on", "dictionary",
+            "ratio", "buffer", "as", "frame", "by", "symbol", "window", "that", "upload", "level"
+    };
+
+    private BenchmarkCorpus() {
+    }
+
+    static byte[] generate(Kind kind, int size) throws IOException {
+        Random random = new Random(42);
+        switch (kind) {
+            case TEXT:
+                return text(random, size);
+            case CSV:
+                return csv(random, size);
+            case RANDOM: {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                return data;
+            }
+            case LOW_ENTROPY: {
+                // A handful of symbols with a skewed distribution and short runs
+                byte[] data = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    data[i] = (byte) Math.min(7, (int) Math.abs(random.nextGaussian() * 2));
+                }
+                return data;
+            }
+            case PDF:
+                return pdf(random, size);
+            default:
+                throw new IllegalArgumentException("Unknown corpus kind: " + kind);
+        }
+    }
+
+    private static byte[] text(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            // Zipf-like word choice: low indexes are far more common
+            int index = (int) (WORDS.length * Math.pow(random.nextDouble(), 3));
+            text.append(WORDS[index]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return truncate(text, size);
+    }
+
+    private static byte[] csv(Random random, int size) {
+        StringBuilder csv = new StringBuilder(size + 128).append("id,timestamp,service,status,latency_ms\n");
+        for (int id = 1; csv.length() < size; id++) {
+            csv.append(id).append(",2024-05-").append(10 + random.nextInt(20))
+                    .append('T').append(10 + random.nextInt(14)).append(':').append(10 + random.nextInt(50)).append(":00Z,")
+                    .append(WORDS[random.nextInt(WORDS.length)]).append(',')
+                    .append(random.nextInt(10) == 0 ? 500 : 200).append(',')
+                    .append(random.nextInt(2000)).append('\n');
+        }
+        return truncate(csv, size);
+    }
+
+    /**
+     * Text pages appended until the saved document reaches about
+     * {@code size} bytes; PDF sizes cannot be hit exactly.
+     */
+    private static byte[] pdf(Random random, int size) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            byte[] saved = save(document);
+            while (saved.length < size) {
+                int pages = Math.max(1, (size - saved.length) / 3000);
+                for (int p = 0; p < pages; p++) {
+                    PDPage page = new PDPage();
+                    document.addPage(page);
+                    try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                        content.beginText();
+                        content.setFont(PDType1Font.HELVETICA, 10);
+                        content.newLineAtOffset(40, 750);
+                        for (int line = 0; line < 60; line++) {
+                            content.showText(new String(text(random, 90), StandardCharsets.US_ASCII).replace('\n', ' '));
+                            content.newLineAtOffset(0, -12);
+                        }
+                        content.endText();
+                    }
+                }
+                saved = save(document);
+            }
+            return saved;
+        }
+    }
+
+    private static byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.save(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] truncate(StringBuilder builder, int size) {
+        byte[] bytes = builder.toString().getBytes(StandardCharsets.US_ASCII);
+        return bytes.length == size ? bytes : Arrays.copyOf(bytes, size);
+    }
+}
@@ -0,0 +1,111 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.CodecFrame;
+import com.stellarfs.huffman_coder.codec.CodecFrame.Algorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every codec {@link ModernCompressionService} chooses from, one at a time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class CodecBenchmark {
+
+    @Param({"ZSTD_19", "ZSTD_22", "LZ4", "BROTLI_11", "BROTLI_11_PDF", "DEFLATE", "DEFLATE_RAW", "MULTI_STAGE"})
+    public String codec;
+
+    @Param({"TEXT", "CSV", "RANDOM", "LOW_ENTROPY", "PDF"})
+    public BenchmarkCorpus.Kind kind;
+
+    @Param({"65536", "1048576"})
+    public int size;
+
+    private CodecSelector.Codec compressor;
+    private CodecFrame frame;
+    private byte[] data;
+    private byte[] compressed;
+    private ModernCompressionService service;
+
+    @Setup
+    public void setup() throws Exception {
+        service = BenchmarkContext.bean(ModernCompressionService.class);
+        data = BenchmarkCorpus.generate(kind, size);
+        Algorithm algorithm;
+        switch (codec) {
+            case "ZSTD_19":
+                compressor = d -> service.zstdCompress(d, 19);
+                algorithm = Algorithm.ZSTD;
+                break;
+            case "ZSTD_22":
+                compressor = service::zstdCompressPDF;
+                algorithm = Algorithm.ZSTD;
+                break;
+            case "LZ4":
+                compressor = service::lz4Compress;
+                algorithm = Algorithm.LZ4;
+                break;
+            case "BROTLI_11":
+                compressor = d -> service.brotliCompress(d, 11);
+                algorithm = Algorithm.BROTLI;
+                break;
+            case "BROTLI_11_PDF":
+                compressor = service::brotliCompressPDF;
+                algorithm = Algorithm.BROTLI;
+                break;
+            case "DEFLATE":
+                compressor = service::deflateCompress;
+                algorithm = Algorithm.DEFLATE;
+                break;
+            case "DEFLATE_RAW":
+                compressor = service::deflateCompressPDF;
+                algorithm = Algorithm.DEFLATE_RAW;
+                break;
+            case "MULTI_STAGE":
+                compressor = service::multiStageCompress;
+                algorithm = Algorithm.MULTI_STAGE;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+        compressed = compressor.compress(data);
+        // Multi-stage hands back its input when ZSTD does not shrink it
+        if (compressed == data) {
+            algorithm = Algorithm.STORED;
+        }
+        frame = new CodecFrame(algorithm, 0, data.length, 0, 0);
+    }
+
+    @Benchmark
+    public byte[] compress(ProcessedBytes bytes) throws Exception {
+        byte[] result = compressor.compress(data);
+        bytes.record(data.length, result.length);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] decompress(ProcessedBytes bytes) throws Exception {
+        try (InputStream in = service.decompressingStream(frame, new ByteArrayInputStream(compressed))) {
+            byte[] result = in.readAllBytes();
+            bytes.record(compressed.length, result.length);
+            return result;
+        }
+    }
+}
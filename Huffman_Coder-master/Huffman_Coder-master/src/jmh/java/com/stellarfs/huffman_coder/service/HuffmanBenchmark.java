@@ -0,0 +1,124 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HuffmanService} in memory and streaming, its rANS and LZ77 +
+ * Huffman coders, and the byte histogram behind its code tables. 8 MB inputs
+ * take the block-parallel Huffman path; the other coders run on one thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class HuffmanBenchmark {
+
+    @Param({"TEXT", "CSV", "RANDOM", "LOW_ENTROPY", "PDF"})
+    public BenchmarkCorpus.Kind kind;
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private final HuffmanService huffmanService = new HuffmanService();
+    private byte[] data;
+    private byte[] compressed;
+    private byte[] ransCompressed;
+    private byte[] lzCompressed;
+
+    @Setup
+    public void setup() throws Exception {
+        data = BenchmarkCorpus.generate(kind, size);
+        compressed = huffmanService.compress(data);
+        ransCompressed = huffmanService.compressRans(data);
+        lzCompressed = huffmanService.compressLz(data);
+    }
+
+    @Benchmark
+    public byte[] compress(ProcessedBytes bytes) throws Exception {
+        byte[] result = huffmanService.compress(data);
+        bytes.record(data.length, result.length);
+        return result;
+    }
+
+    @Benchmark
+    public long[] histogram(ProcessedBytes bytes) {
+        long[] result = ByteHistogram.count(data);
+        bytes.record(data.length, 0);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] decompress(ProcessedBytes bytes) throws Exception {
+        byte[] result = huffmanService.decompress(compressed);
+        bytes.record(compressed.length, result.length);
+        return result;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream compressStreaming(ProcessedBytes bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length);
+        huffmanService.compress(() -> new ByteArrayInputStream(data), out);
+        bytes.record(data.length, out.size());
+        return out;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream decompressStreaming(ProcessedBytes bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        huffmanService.decompress(new ByteArrayInputStream(compressed), out);
+        bytes.record(compressed.length, out.size());
+        return out;
+    }
+
+    @Benchmark
+    public byte[] compressRans(ProcessedBytes bytes) throws Exception {
+        byte[] result = huffmanService.compressRans(data);
+        bytes.record(data.length, result.length);
+        return result;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream decompressRans(ProcessedBytes bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        try (InputStream in = huffmanService.ransDecodingStream(new ByteArrayInputStream(ransCompressed))) {
+            in.transferTo(out);
+        }
+        bytes.record(ransCompressed.length, out.size());
+        return out;
+    }
+
+    @Benchmark
+    public byte[] compressLz(ProcessedBytes bytes) throws Exception {
+        byte[] result = huffmanService.compressLz(data);
+        bytes.record(data.length, result.length);
+        return result;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream decompressLz(ProcessedBytes bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        try (InputStream in = huffmanService.lzDecodingStream(new ByteArrayInputStream(lzCompressed))) {
+            in.transferTo(out);
+        }
+        bytes.record(lzCompressed.length, out.size());
+        return out;
+    }
+}
@@ -0,0 +1,50 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end smart compression: routing, codec selection and framing, with
+ * the result cache switched off.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class HybridBenchmark {
+
+    @Param({"TEXT", "CSV", "RANDOM", "LOW_ENTROPY", "PDF"})
+    public BenchmarkCorpus.Kind kind;
+
+    @Param({"65536", "1048576"})
+    public int size;
+
+    private HybridCompressionService hybridCompressionService;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        hybridCompressionService = BenchmarkContext.bean(HybridCompressionService.class);
+        data = BenchmarkCorpus.generate(kind, size);
+    }
+
+    @Benchmark
+    public byte[] compress(ProcessedBytes bytes) throws Exception {
+        byte[] result = hybridCompressionService.compress(data, kind.fileName()).compressedData;
+        bytes.record(data.length, result.length);
+        return result;
+    }
+}
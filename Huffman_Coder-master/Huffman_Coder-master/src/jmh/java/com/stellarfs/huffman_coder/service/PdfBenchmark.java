@@ -0,0 +1,46 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PDFBox load, clean-up and save in {@link PDFCompressionService#optimizePDF}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class PdfBenchmark {
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private PDFCompressionService pdfCompressionService;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        pdfCompressionService = BenchmarkContext.bean(PDFCompressionService.class);
+        data = BenchmarkCorpus.generate(BenchmarkCorpus.Kind.PDF, size);
+    }
+
+    @Benchmark
+    public byte[] optimize(ProcessedBytes bytes) throws Exception {
+        byte[] result = pdfCompressionService.optimizePDF(data);
+        bytes.record(data.length, result.length);
+        return result;
+    }
+}
@@ -0,0 +1,32 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extra result columns next to ops/s: input and output megabytes per second.
+ * Their quotient is the compression ratio.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ProcessedBytes {
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    public double inputMB;
+    public double outputMB;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        inputMB = 0;
+        outputMB = 0;
+    }
+
+    void record(long input, long output) {
+        inputMB += input / MEGABYTE;
+        outputMB += output / MEGABYTE;
+    }
+}
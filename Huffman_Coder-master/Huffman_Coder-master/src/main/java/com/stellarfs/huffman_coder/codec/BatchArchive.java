@@ -0,0 +1,300 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Many named entries in one file, each a {@link CodecFrame} that can be
+ * read without touching the others.
+ * <pre>
+ *  offset  size  field
+ *  0       4     magic "SCB" 0x1A
+ *  4       1     version
+ *  5       ...   shared dictionaries and entry frames
+ *  ...     ...   index, zlib-deflated (see below)
+ *  ...     16    footer: u64 index offset, u32 index length, magic "SCBX"
+ * </pre>
+ * A shared dictionary is a ZSTD dictionary, possibly empty, followed by the
+ * 256 code lengths (u8) of a static Huffman table. Frames of entries that use
+ * one name its ZSTD dictionary id or Huffman table id, like frames coded
+ * with a trained dictionary, but the dictionary travels with the archive.
+ * <p>
+ * The index is a u32 dictionary count with a u64 offset and u32 ZSTD
+ * dictionary length per dictionary, then a u32 entry count with, per entry,
+ * the name (as {@link java.io.DataOutput#writeUTF}), u64 frame offset, u32
+ * frame length, u64 original length and the dictionary number as i32 (-1
+ * for none). Like the block index of {@link HuffmanFormat} it comes last, so
+ * frames can be written as they are produced. It is deflated because the
+ * names of many small entries would otherwise outweigh their frames.
+ */
+public final class BatchArchive implements Closeable {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 5;
+    public static final int FOOTER_SIZE = 16;
+    public static final int TABLE_SIZE = 256;
+    // Far more than any batch the service accepts; guards the index allocations
+    private static final int MAX_INDEX_LENGTH = 64 << 20;
+    private static final int MIN_DICTIONARY_INDEX_SIZE = 12;
+    private static final int MIN_ENTRY_INDEX_SIZE = 26;
+
+    private static final byte[] MAGIC = {'S', 'C', 'B', 0x1A};
+    private static final byte[] FOOTER_MAGIC = {'S', 'C', 'B', 'X'};
+
+    public static class Entry {
+        public final String name;
+        public final long offset;
+        public final int length;
+        public final long originalLength;
+        // Index into the shared dictionaries, -1 for none
+        public final int dictionary;
+
+        Entry(String name, long offset, int length, long originalLength, int dictionary) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.originalLength = originalLength;
+            this.dictionary = dictionary;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long[] dictionaryOffsets;
+    private final int[] zstdLengths;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName;
+
+    private BatchArchive(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE || !hasMagic(map(0, HEADER_SIZE), MAGIC)) {
+            throw new IOException("Not a batch archive");
+        }
+        ByteBuffer footer = map(size - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        if (!hasMagic(footer, FOOTER_MAGIC)) {
+            throw new IOException("Missing batch archive footer");
+        }
+        if (indexOffset < HEADER_SIZE || indexLength < 2 || indexLength > MAX_INDEX_LENGTH
+                || indexOffset + indexLength + FOOTER_SIZE != size) {
+            throw new IOException("Corrupted batch archive footer");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream index = new DataInputStream(
+                    new InflaterInputStream(new ByteBufferInputStream(map(indexOffset, indexLength)), inflater));
+            int dictionaryCount = index.readInt();
+            if (dictionaryCount < 0 || dictionaryCount > MAX_INDEX_LENGTH / MIN_DICTIONARY_INDEX_SIZE) {
+                throw new IOException("Corrupted batch archive index");
+            }
+            dictionaryOffsets = new long[dictionaryCount];
+            zstdLengths = new int[dictionaryCount];
+            for (int i = 0; i < dictionaryCount; i++) {
+                dictionaryOffsets[i] = index.readLong();
+                zstdLengths[i] = index.readInt();
+                if (dictionaryOffsets[i] < HEADER_SIZE || zstdLengths[i] < 0
+                        || dictionaryOffsets[i] + zstdLengths[i] + TABLE_SIZE > indexOffset) {
+                    throw new IOException("Corrupted shared dictionary " + i);
+                }
+            }
+            int entryCount = index.readInt();
+            if (entryCount < 0 || entryCount > MAX_INDEX_LENGTH / MIN_ENTRY_INDEX_SIZE) {
+                throw new IOException("Corrupted batch archive index");
+            }
+            // The count is not trusted with an allocation before the entries are there
+            List<Entry> list = new ArrayList<>(Math.min(entryCount, 1024));
+            Map<String, Entry> names = new HashMap<>();
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = new Entry(index.readUTF(), index.readLong(), index.readInt(), index.readLong(),
+                        index.readInt());
+                if (entry.offset < HEADER_SIZE || entry.length < CodecFrame.HEADER_SIZE
+                        || entry.offset + entry.length > indexOffset || entry.originalLength < 0
+                        || entry.dictionary < -1 || entry.dictionary >= dictionaryCount) {
+                    throw new IOException("Corrupted batch archive entry " + i);
+                }
+                if (names.putIfAbsent(entry.name, entry) != null) {
+                    throw new IOException("Duplicate entry: " + entry.name);
+                }
+                list.add(entry);
+            }
+            this.entries = Collections.unmodifiableList(list);
+            this.byName = names;
+        } catch (EOFException | ZipException e) {
+            throw new IOException("Corrupted batch archive index");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static BatchArchive open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new BatchArchive(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * The entry of that name, or null.
+     */
+    public Entry entry(String name) {
+        return byName.get(name);
+    }
+
+    public int dictionaryCount() {
+        return dictionaryOffsets.length;
+    }
+
+    /**
+     * ZSTD dictionary of a shared dictionary, or null if it only has a
+     * Huffman table.
+     */
+    public byte[] zstdDictionary(int dictionary) throws IOException {
+        if (zstdLengths[dictionary] == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[zstdLengths[dictionary]];
+        map(dictionaryOffsets[dictionary], bytes.length).get(bytes);
+        return bytes;
+    }
+
+    public int[] huffmanLengths(int dictionary) throws IOException {
+        ByteBuffer table = map(dictionaryOffsets[dictionary] + zstdLengths[dictionary], TABLE_SIZE);
+        int[] lengths = new int[TABLE_SIZE];
+        for (int symbol = 0; symbol < TABLE_SIZE; symbol++) {
+            lengths[symbol] = table.get() & 0xFF;
+        }
+        return lengths;
+    }
+
+    /**
+     * The frame of an entry, mapped rather than read.
+     */
+    public InputStream frame(Entry entry) throws IOException {
+        return new ByteBufferInputStream(map(entry.offset, entry.length));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer map(long offset, int length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer, byte[] magic) {
+        for (byte b : magic) {
+            if (buffer.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an archive front to back: dictionaries and entries in any
+     * order, then {@link #finish()} for the index. Does not close the target.
+     */
+    public static final class Writer {
+        private final DataOutputStream out;
+        private final List<long[]> dictionaries = new ArrayList<>();
+        private final List<Entry> entries = new ArrayList<>();
+        private long position;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.write(MAGIC);
+            this.out.writeByte(VERSION);
+            position = HEADER_SIZE;
+        }
+
+        /**
+         * Adds a shared dictionary and returns its number. The ZSTD
+         * dictionary may be null.
+         */
+        public int addDictionary(byte[] zstdDictionary, int[] huffmanLengths) throws IOException {
+            int zstdLength = zstdDictionary == null ? 0 : zstdDictionary.length;
+            dictionaries.add(new long[]{position, zstdLength});
+            if (zstdDictionary != null) {
+                out.write(zstdDictionary);
+            }
+            for (int symbol = 0; symbol < TABLE_SIZE; symbol++) {
+                out.writeByte(huffmanLengths[symbol]);
+            }
+            position += zstdLength + TABLE_SIZE;
+            return dictionaries.size() - 1;
+        }
+
+        public void addEntry(String name, byte[] frame, long originalLength, int dictionary) throws IOException {
+            if (dictionary < -1 || dictionary >= dictionaries.size()) {
+                throw new IllegalArgumentException("No shared dictionary " + dictionary);
+            }
+            entries.add(new Entry(name, position, frame.length, originalLength, dictionary));
+            out.write(frame);
+            position += frame.length;
+        }
+
+        /**
+         * Writes the index and footer and returns the archive size.
+         */
+        public long finish() throws IOException {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (DataOutputStream index = new DataOutputStream(new DeflaterOutputStream(deflated, deflater))) {
+                index.writeInt(dictionaries.size());
+                for (long[] dictionary : dictionaries) {
+                    index.writeLong(dictionary[0]);
+                    index.writeInt((int) dictionary[1]);
+                }
+                index.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    index.writeUTF(entry.name);
+                    index.writeLong(entry.offset);
+                    index.writeInt(entry.length);
+                    index.writeLong(entry.originalLength);
+                    index.writeInt(entry.dictionary);
+                }
+            } finally {
+                deflater.end();
+            }
+            if (deflated.size() > MAX_INDEX_LENGTH) {
+                throw new IOException("Too many entries for one batch archive");
+            }
+            deflated.writeTo(out);
+            out.writeLong(position);
+            out.writeInt(deflated.size());
+            out.write(FOOTER_MAGIC);
+            out.flush();
+            return position + deflated.size() + FOOTER_SIZE;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Codes one block of a {@link BlockOutputStream} payload. Blocks are coded
+ * independently, so a coder only keeps scratch state between them.
+ */
+public interface BlockCoder {
+
+    // Guards the block allocations of the decoder
+    int MAX_BLOCK_SIZE = 16 << 20;
+
+    /**
+     * Writes {@code length > 0} bytes of {@code data}, coded. The block
+     * length itself is framed by the stream.
+     */
+    void encode(byte[] data, int offset, int length, DataOutputStream out) throws IOException;
+
+    /**
+     * Reads a block written by {@link #encode} and decodes its
+     * {@code length} bytes into {@code out}.
+     */
+    void decode(DataInputStream in, byte[] out, int length) throws IOException;
+}
@@ -0,0 +1,87 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Decodes a payload written by {@link BlockOutputStream} block by block,
+ * with the same kind of {@link BlockCoder}.
+ * Reading stops right after the end marker, so whatever follows the
+ * payload is left in the source.
+ */
+public final class BlockInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final BlockCoder coder;
+    private byte[] block = new byte[0];
+    private int position;
+    private int limit;
+    private boolean ended;
+
+    public BlockInputStream(InputStream in, BlockCoder coder) {
+        this.in = new DataInputStream(in);
+        this.coder = coder;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (ended) {
+            return false;
+        }
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Truncated block payload");
+        }
+        if (length == 0) {
+            ended = true;
+            return false;
+        }
+        if (length < 0 || length > BlockCoder.MAX_BLOCK_SIZE) {
+            throw new IOException("Corrupted block payload: bad block length " + length);
+        }
+        if (block.length < length) {
+            block = new byte[length];
+        }
+        coder.decode(in, block, length);
+        position = 0;
+        limit = length;
+        return true;
+    }
+}
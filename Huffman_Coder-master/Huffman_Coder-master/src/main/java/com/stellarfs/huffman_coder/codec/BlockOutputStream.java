@@ -0,0 +1,97 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Codes what is written to it with a {@link BlockCoder}, one block at a time.
+ * Every block is its original length (u32) followed by whatever the coder
+ * writes, and a zero length ends the payload. A block is coded once it fills
+ * up or on {@link #flush()}, so the input is read once and memory use is
+ * bounded by the block size.
+ * <p>
+ * Closing ends the payload and closes the target.
+ */
+public final class BlockOutputStream extends OutputStream {
+
+    private final DataOutputStream out;
+    private final BlockCoder coder;
+    private final byte[] buffer;
+    private int count;
+    private boolean closed;
+
+    public BlockOutputStream(OutputStream out, BlockCoder coder, int blockSize) {
+        if (blockSize < 1 || blockSize > BlockCoder.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + BlockCoder.MAX_BLOCK_SIZE);
+        }
+        this.out = new DataOutputStream(out);
+        this.coder = coder;
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBlock(buffer, 0, count);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (count == 0 && len >= buffer.length) {
+                // Whole blocks are coded straight from the caller's array
+                writeBlock(b, off, buffer.length);
+                off += buffer.length;
+                len -= buffer.length;
+                continue;
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buffer.length) {
+                writeBlock(buffer, 0, count);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBlock(buffer, 0, count);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                writeBlock(buffer, 0, count);
+            }
+            out.writeInt(0);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock(byte[] data, int offset, int length) throws IOException {
+        out.writeInt(length);
+        coder.encode(data, offset, length, out);
+        if (data == buffer) {
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Byte frequency counting for code construction and entropy estimates.
+ * <p>
+ * With a single counter array, a run of the same byte value makes every
+ * increment wait for the store of the one before it. Four interleaved banks
+ * of {@code int} counters, used in turn, keep four independent chains in
+ * flight and are summed into {@code long} totals at the end. Arrays of
+ * {@link #PARALLEL_THRESHOLD} bytes or more are also split across the common
+ * {@link ForkJoinPool}.
+ */
+public final class ByteHistogram {
+
+    public static final int PARALLEL_THRESHOLD = 16 << 20;
+    // Smallest piece a parallel count is split into
+    private static final int SPLIT_SIZE = 4 << 20;
+    // Direct buffers are copied out this much at a time and counted as arrays
+    private static final int STAGING_SIZE = 64 * 1024;
+
+    private ByteHistogram() {
+    }
+
+    public static long[] count(byte[] data) {
+        return count(data, 0, data.length);
+    }
+
+    public static long[] count(byte[] data, int offset, int length) {
+        if (length >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            return ForkJoinPool.commonPool().invoke(new CountTask(data, offset, length));
+        }
+        long[] frequencies = new long[256];
+        add(frequencies, data, offset, length);
+        return frequencies;
+    }
+
+    /**
+     * Frequencies of the remaining bytes of {@code data}, which may be a
+     * direct or memory-mapped buffer. The position is left unchanged.
+     */
+    public static long[] count(ByteBuffer data) {
+        long[] frequencies = new long[256];
+        add(frequencies, data);
+        return frequencies;
+    }
+
+    /**
+     * Adds the frequencies of {@code data[offset, offset + length)} to
+     * {@code frequencies}, for counts accumulated over several buffers.
+     */
+    public static void add(long[] frequencies, byte[] data, int offset, int length) {
+        // Four banks of 256 counters; a byte array is too short to overflow any of them
+        int[] counts = new int[1024];
+        int i = offset;
+        for (int end = offset + (length & ~3); i < end; i += 4) {
+            counts[data[i] & 0xFF]++;
+            counts[256 + (data[i + 1] & 0xFF)]++;
+            counts[512 + (data[i + 2] & 0xFF)]++;
+            counts[768 + (data[i + 3] & 0xFF)]++;
+        }
+        for (int end = offset + length; i < end; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        for (int symbol = 0; symbol < 256; symbol++) {
+            frequencies[symbol] += (long) counts[symbol] + counts[256 + symbol] + counts[512 + symbol]
+                    + counts[768 + symbol];
+        }
+    }
+
+    public static void add(long[] frequencies, ByteBuffer data) {
+        if (data.hasArray()) {
+            add(frequencies, data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        // A bulk copy runs at memory speed; counting through get(i) would not
+        byte[] staging = new byte[Math.min(STAGING_SIZE, data.remaining())];
+        for (int position = data.position(), end = data.limit(); position < end; ) {
+            int count = Math.min(staging.length, end - position);
+            data.get(position, staging, 0, count);
+            add(frequencies, staging, 0, count);
+            position += count;
+        }
+    }
+
+    private static final class CountTask extends RecursiveTask<long[]> {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        CountTask(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (length <= 2 * SPLIT_SIZE) {
+                long[] frequencies = new long[256];
+                add(frequencies, data, offset, length);
+                return frequencies;
+            }
+            int half = length / 2;
+            CountTask left = new CountTask(data, offset, half);
+            left.fork();
+            long[] frequencies = new CountTask(data, offset + half, length - half).compute();
+            long[] leftFrequencies = left.join();
+            for (int symbol = 0; symbol < 256; symbol++) {
+                frequencies[symbol] += leftFrequencies[symbol];
+            }
+            return frequencies;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Canonical Huffman code construction and assignment. Only code lengths need
+ * to be stored: codes are handed out in order of (length, symbol), so encoder
+ * and decoder derive identical codes from the same length table.
+ */
+public final class CanonicalHuffman {
+
+    public static final int MAX_CODE_LENGTH = 56;
+    // 256 symbols need at least 8 bits
+    public static final int MIN_LENGTH_LIMIT = 8;
+    // Weights are kept below this so package sums cannot overflow
+    private static final long MAX_TOTAL_WEIGHT = 1L << 48;
+
+    private CanonicalHuffman() {
+    }
+
+    /**
+     * Optimal code lengths for {@code frequencies} with no code longer than
+     * {@code maxLength} bits, by package-merge. Symbols with frequency zero
+     * get length zero; a lone symbol gets length 1.
+     * <p>
+     * Works on primitive arrays only: symbols are sorted as packed
+     * (frequency, symbol) longs, and each level of the merge keeps its item
+     * weights and a package flag, from which the lengths are counted back
+     * without building a tree.
+     */
+    public static int[] codeLengths(long[] frequencies, int maxLength) {
+        if (frequencies.length != 256) {
+            throw new IllegalArgumentException("Frequency table must have 256 entries");
+        }
+        if (maxLength < MIN_LENGTH_LIMIT || maxLength > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Code length limit must be between " + MIN_LENGTH_LIMIT
+                    + " and " + MAX_CODE_LENGTH + ": " + maxLength);
+        }
+        long total = 0;
+        int n = 0;
+        for (long frequency : frequencies) {
+            if (frequency < 0) {
+                throw new IllegalArgumentException("Negative frequency: " + frequency);
+            }
+            if (frequency > 0) {
+                total += frequency;
+                n++;
+            }
+        }
+
+        int[] lengths = new int[256];
+        if (n == 0) {
+            return lengths;
+        }
+
+        // Scale huge counts down, keeping every symbol present
+        int shift = 0;
+        while ((total >>> shift) >= MAX_TOTAL_WEIGHT) {
+            shift++;
+        }
+        long[] keys = new long[n];
+        for (int symbol = 0, i = 0; symbol < 256; symbol++) {
+            if (frequencies[symbol] > 0) {
+                keys[i++] = Math.max(1, frequencies[symbol] >>> shift) << 8 | symbol;
+            }
+        }
+        Arrays.sort(keys);
+        if (n == 1) {
+            lengths[(int) (keys[0] & 0xFF)] = 1;
+            return lengths;
+        }
+        long[] leaves = new long[n];
+        for (int i = 0; i < n; i++) {
+            leaves[i] = keys[i] >>> 8;
+        }
+
+        // Level maxLength - 1 holds the leaves alone; every shallower level
+        // merges the leaves with pairs packaged from the level below
+        int levels = Math.min(maxLength, n - 1);
+        long[][] weights = new long[levels][];
+        boolean[][] packaged = new boolean[levels][];
+        weights[levels - 1] = leaves;
+        packaged[levels - 1] = new boolean[n];
+        for (int level = levels - 2; level >= 0; level--) {
+            long[] below = weights[level + 1];
+            int packages = below.length / 2;
+            long[] merged = new long[n + packages];
+            boolean[] flags = new boolean[n + packages];
+            int leaf = 0;
+            int pack = 0;
+            for (int i = 0; i < merged.length; i++) {
+                long packageWeight = pack < packages ? below[2 * pack] + below[2 * pack + 1] : Long.MAX_VALUE;
+                if (leaf < n && leaves[leaf] <= packageWeight) {
+                    merged[i] = leaves[leaf++];
+                } else {
+                    merged[i] = packageWeight;
+                    flags[i] = true;
+                    pack++;
+                }
+            }
+            weights[level] = merged;
+            packaged[level] = flags;
+        }
+
+        // The cheapest 2n - 2 items of the top level form the code. Each leaf
+        // taken adds a bit to its symbol; leaves come in weight order, so the
+        // first ones taken are the lightest. Each package taken expands into
+        // two items of the level below.
+        int[] sortedLengths = new int[n];
+        int take = 2 * n - 2;
+        for (int level = 0; level < levels && take > 0; level++) {
+            int leavesTaken = 0;
+            int packagesTaken = 0;
+            for (int i = 0; i < take; i++) {
+                if (packaged[level][i]) {
+                    packagesTaken++;
+                } else {
+                    leavesTaken++;
+                }
+            }
+            for (int i = 0; i < leavesTaken; i++) {
+                sortedLengths[i]++;
+            }
+            take = 2 * packagesTaken;
+        }
+        for (int i = 0; i < n; i++) {
+            lengths[(int) (keys[i] & 0xFF)] = sortedLengths[i];
+        }
+        return lengths;
+    }
+
+    /**
+     * Assigns canonical codes to a 256-entry length table. Symbols with
+     * length zero are absent and keep code zero.
+     *
+     * @throws IOException if a length is out of range or the lengths do not
+     *                     describe a valid prefix code
+     */
+    public static long[] codesFromLengths(int[] lengths) throws IOException {
+        int[] lengthCount = new int[MAX_CODE_LENGTH + 1];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int length = lengths[symbol];
+            if (length < 0 || length > MAX_CODE_LENGTH) {
+                throw new IOException("Invalid Huffman code length: " + length);
+            }
+            lengthCount[length]++;
+        }
+        lengthCount[0] = 0;
+
+        // Kraft inequality: an over-subscribed table cannot be decoded
+        long[] nextCode = new long[MAX_CODE_LENGTH + 1];
+        long code = 0;
+        long unused = 1;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+            unused = (unused << 1) - lengthCount[length];
+            if (unused < 0) {
+                throw new IOException("Invalid Huffman code table: over-subscribed");
+            }
+        }
+
+        long[] codes = new long[256];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int length = lengths[symbol];
+            if (length != 0) {
+                codes[symbol] = nextCode[length]++;
+            }
+        }
+        return codes;
+    }
+}
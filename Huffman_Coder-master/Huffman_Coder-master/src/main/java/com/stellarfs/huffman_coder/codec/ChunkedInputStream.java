@@ -0,0 +1,74 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads back the chunks written by {@link ChunkedOutputStream}: the payload
+ * bytes, then end of stream at the empty chunk. Nothing past the empty chunk
+ * is consumed, so a codec that reads ahead cannot swallow the frame trailer.
+ * Closing does not close the source.
+ */
+public final class ChunkedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private int remaining;
+    private boolean ended;
+
+    public ChunkedInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Truncated chunk");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = in.read(b, off, Math.min(len, remaining));
+        if (n == -1) {
+            throw new EOFException("Truncated chunk");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(remaining, in.available());
+    }
+
+    @Override
+    public void close() {
+        // The trailer is read from the source after the payload
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (remaining == 0 && !ended) {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid chunk length: " + length);
+            }
+            remaining = length;
+            ended = length == 0;
+        }
+        return remaining > 0;
+    }
+}
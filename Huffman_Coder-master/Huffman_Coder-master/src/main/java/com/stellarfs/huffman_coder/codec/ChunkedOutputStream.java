@@ -0,0 +1,102 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Cuts the payload of a streamed {@link CodecFrame} into chunks, each a 4-byte
+ * big-endian length followed by that many bytes, and ends it with an empty
+ * chunk. Bytes are collected in a fixed buffer and written as a chunk when it
+ * fills up or on {@link #flush()}, which also flushes the target so the
+ * receiver gets everything produced so far.
+ * <p>
+ * Closing ends the payload but leaves the target open, since the frame
+ * trailer still has to follow.
+ */
+public final class ChunkedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+    private long written;
+    private boolean closed;
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = out;
+        this.buffer = new byte[chunkSize];
+    }
+
+    /**
+     * Bytes written to the target so far, chunk lengths included.
+     */
+    public long written() {
+        return written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (count == 0 && len >= buffer.length) {
+                // Large writes go out as they are instead of through the buffer
+                writeLength(len);
+                out.write(b, off, len);
+                written += len;
+                return;
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buffer.length) {
+                writeChunk();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (count > 0) {
+            writeChunk();
+        }
+        writeLength(0);
+        closed = true;
+    }
+
+    private void writeChunk() throws IOException {
+        writeLength(count);
+        out.write(buffer, 0, count);
+        written += count;
+        count = 0;
+    }
+
+    private void writeLength(int length) throws IOException {
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        written += 4;
+    }
+}
@@ -0,0 +1,210 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Self-describing header put in front of every smart-compressed payload, so
+ * the payload can be decoded without knowing which codec produced it.
+ * <pre>
+ *  offset  size  field
+ *  0       4     magic "SCF" 0x1A
+ *  4       1     version
+ *  5       1     codec id, see {@link Algorithm}
+ *  6       1     codec level, informational only
+ *  7       1     flags
+ *  8       8     original length in bytes
+ *  16      4     CRC-32 of the original data
+ *  20      4     dictionary id, only with {@link #FLAG_DICTIONARY}
+ *  ...     ...   payload as produced by the codec
+ * </pre>
+ * The dictionary id names a trained ZSTD dictionary for {@link Algorithm#ZSTD}
+ * and a static code table for {@link Algorithm#HUFFMAN_STATIC}.
+ * <p>
+ * Every codec payload is self-delimiting, so the frame needs no payload
+ * length and can be decoded as a stream.
+ * <p>
+ * A frame written while the input is still arriving has {@link #FLAG_STREAMED}
+ * set and zero length and CRC fields. Its payload is cut into chunks by
+ * {@link ChunkedOutputStream}, and the real length (8 bytes) and CRC-32
+ * (4 bytes) follow the empty chunk that ends it.
+ */
+public final class CodecFrame {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int FLAG_DICTIONARY = 0x01;
+    public static final int FLAG_STREAMED = 0x02;
+    // Original length and CRC-32 after the payload of a streamed frame
+    public static final int TRAILER_SIZE = 12;
+
+    private static final byte[] MAGIC = {'S', 'C', 'F', 0x1A};
+
+    public enum Algorithm {
+        STORED(0),
+        HUFFMAN(1),
+        ZSTD(2),
+        BROTLI(3),
+        // LZ4 frame format, not the raw block format
+        LZ4(4),
+        // zlib-wrapped deflate
+        DEFLATE(5),
+        DEFLATE_RAW(6),
+        // ZSTD output recompressed with Brotli
+        MULTI_STAGE(7),
+        // Bare Huffman payload coded with a pre-shared table
+        HUFFMAN_STATIC(8),
+        // Order-0 rANS blocks, see RansCoder
+        RANS(9),
+        // LZ77 matches and literals, Huffman coded, see LzHuffmanCoder
+        LZ_HUFFMAN(10);
+
+        public final int id;
+
+        Algorithm(int id) {
+            this.id = id;
+        }
+
+        public static Algorithm fromId(int id) throws IOException {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            throw new IOException("Unknown codec id: " + id);
+        }
+    }
+
+    public final Algorithm algorithm;
+    public final int level;
+    public final long originalLength;
+    public final int crc;
+    // 0 when no dictionary was used
+    public final int dictionaryId;
+    // Length and CRC are in the trailer, not in the header
+    public final boolean streamed;
+
+    public CodecFrame(Algorithm algorithm, int level, long originalLength, int crc, int dictionaryId) {
+        this(algorithm, level, originalLength, crc, dictionaryId, false);
+    }
+
+    private CodecFrame(Algorithm algorithm, int level, long originalLength, int crc, int dictionaryId,
+                       boolean streamed) {
+        this.algorithm = algorithm;
+        this.level = level;
+        this.originalLength = originalLength;
+        this.crc = crc;
+        this.dictionaryId = dictionaryId;
+        this.streamed = streamed;
+    }
+
+    /**
+     * Header of a frame whose length and CRC are not known before the
+     * payload is written.
+     */
+    public static CodecFrame streamed(Algorithm algorithm, int level) {
+        return new CodecFrame(algorithm, level, 0, 0, 0, true);
+    }
+
+    public int size() {
+        return HEADER_SIZE + (dictionaryId != 0 ? 4 : 0);
+    }
+
+    public static boolean hasMagic(byte[] data) {
+        return data.length >= MAGIC.length
+                && data[0] == MAGIC[0] && data[1] == MAGIC[1]
+                && data[2] == MAGIC[2] && data[3] == MAGIC[3];
+    }
+
+    /**
+     * Frames {@code payload}, the output of {@code algorithm} for
+     * {@code original}, into a single array.
+     */
+    public static byte[] wrap(Algorithm algorithm, int level, byte[] original, byte[] payload) {
+        return wrap(algorithm, level, 0, original, payload);
+    }
+
+    public static byte[] wrap(Algorithm algorithm, int level, int dictionaryId, byte[] original, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(original);
+        CodecFrame header = new CodecFrame(algorithm, level, original.length, (int) crc32.getValue(), dictionaryId);
+        ByteBuffer frame = ByteBuffer.allocate(header.size() + payload.length);
+        frame.put(MAGIC)
+                .put((byte) VERSION)
+                .put((byte) algorithm.id)
+                .put((byte) level)
+                .put((byte) (dictionaryId != 0 ? FLAG_DICTIONARY : 0))
+                .putLong(original.length)
+                .putInt(header.crc);
+        if (dictionaryId != 0) {
+            frame.putInt(dictionaryId);
+        }
+        return frame.put(payload).array();
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(algorithm.id);
+        out.writeByte(level);
+        out.writeByte((dictionaryId != 0 ? FLAG_DICTIONARY : 0) | (streamed ? FLAG_STREAMED : 0));
+        out.writeLong(originalLength);
+        out.writeInt(crc);
+        if (dictionaryId != 0) {
+            out.writeInt(dictionaryId);
+        }
+    }
+
+    /**
+     * The header on its own, for a payload that is written separately.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size());
+        try {
+            write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    public static CodecFrame read(DataInput in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!hasMagic(magic)) {
+            throw new IOException("Not a compressed frame");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported frame version: " + version);
+        }
+        Algorithm algorithm = Algorithm.fromId(in.readUnsignedByte());
+        int level = in.readByte();
+        int flags = in.readUnsignedByte();
+        long originalLength = in.readLong();
+        if (originalLength < 0) {
+            throw new IOException("Invalid original length: " + originalLength);
+        }
+        int crc = in.readInt();
+        int dictionaryId = 0;
+        if ((flags & FLAG_DICTIONARY) != 0) {
+            dictionaryId = in.readInt();
+            if (dictionaryId == 0) {
+                throw new IOException("Invalid dictionary id: 0");
+            }
+        }
+        return new CodecFrame(algorithm, level, originalLength, crc, dictionaryId, (flags & FLAG_STREAMED) != 0);
+    }
+
+    public static CodecFrame read(byte[] frame) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+}
@@ -0,0 +1,139 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to a blocked {@link HuffmanFormat} container in a file.
+ * <p>
+ * The footer, the index and each block are memory-mapped only when needed,
+ * so reading a range of the original data touches the blocks that overlap
+ * it and nothing else. Every block read is decoded whole so its checksum
+ * from the index can be verified. Instances are safe for concurrent reads.
+ */
+public final class HuffmanArchive implements Closeable {
+
+    private static final int BLOCKED_HEADER_SIZE = 22;
+    private static final int REFILL_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final HuffmanFormat.Header header;
+    private final HuffmanFormat.BlockIndex index;
+
+    private HuffmanArchive(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        if (size < BLOCKED_HEADER_SIZE + HuffmanFormat.FOOTER_SIZE) {
+            throw new IOException("Not a seekable Huffman archive");
+        }
+        try {
+            this.header = HuffmanFormat.Header.read(
+                    new DataInputStream(new ByteBufferInputStream(map(0, BLOCKED_HEADER_SIZE))));
+        } catch (EOFException e) {
+            throw new IOException("Not a seekable Huffman archive");
+        }
+        if (!header.isBlocked()) {
+            throw new IOException("Not a seekable Huffman archive: the container has no block index");
+        }
+        if (header.blockSize > HuffmanFormat.MAX_BLOCK_SIZE) {
+            throw new IOException("Block size too large: " + header.blockSize);
+        }
+        this.index = HuffmanFormat.BlockIndex.read(map(size - HuffmanFormat.FOOTER_SIZE, HuffmanFormat.FOOTER_SIZE),
+                size, this::map);
+        if (index.blockCount() != header.blockCount()) {
+            throw new IOException("Block index does not match the header");
+        }
+    }
+
+    public static HuffmanArchive open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new HuffmanArchive(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Length of the original data.
+     */
+    public long length() {
+        return header.originalLength;
+    }
+
+    public int blockSize() {
+        return header.blockSize;
+    }
+
+    public int blockCount() {
+        return index.blockCount();
+    }
+
+    /**
+     * Writes bytes {@code [offset, offset + length)} of the original data to
+     * {@code out}.
+     */
+    public void read(long offset, long length, OutputStream out) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > header.originalLength) {
+            throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length)
+                    + ") is outside the archive of " + header.originalLength + " bytes");
+        }
+        if (length == 0) {
+            return;
+        }
+        int first = (int) (offset / header.blockSize);
+        int last = (int) ((offset + length - 1) / header.blockSize);
+        byte[] decoded = new byte[(int) Math.min(header.blockSize, header.originalLength)];
+        byte[] refill = new byte[REFILL_BUFFER_SIZE];
+        for (int block = first; block <= last; block++) {
+            long blockStart = (long) block * header.blockSize;
+            int count = (int) Math.min(header.blockSize, header.originalLength - blockStart);
+            decodeBlock(block, decoded, count, refill);
+            int from = (int) Math.max(0, offset - blockStart);
+            int to = (int) Math.min(count, offset + length - blockStart);
+            out.write(decoded, from, to - from);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void decodeBlock(int block, byte[] decoded, int count, byte[] refill) throws IOException {
+        ByteBuffer section = map(index.offsets[block], index.lengths[block]);
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(section));
+        int payloadLength = in.readInt();
+        int[] lengths = HuffmanFormat.readLengthTable(in);
+        // What is left of the section after the table is the payload
+        if (payloadLength != section.remaining()) {
+            throw new IOException("Corrupted block " + block);
+        }
+
+        HuffmanDecoder decoder = HuffmanDecoder.forLengths(lengths);
+        decoder.reset(in, refill);
+        decoder.decode(decoded, 0, count);
+        if (decoder.overran()) {
+            throw new IOException("Corrupted bitstream: payload truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(decoded, 0, count);
+        if ((int) crc.getValue() != index.crcs[block]) {
+            throw new IOException("Checksum mismatch in block " + block);
+        }
+    }
+
+    private ByteBuffer map(long offset, int length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+}
@@ -0,0 +1,335 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Table-driven Huffman decoder.
+ * <p>
+ * An 11-bit primary table resolves every code of up to 11 bits in a single
+ * lookup, and emits two symbols at once when both codes fit in the peeked
+ * bits. Longer codes go through a per-prefix secondary table. Bits are
+ * consumed MSB-first from a 64-bit register, so the hot loop never touches
+ * an object per bit.
+ * <p>
+ * Primary entry layout: bits 0-3 total bits consumed, bits 4-7 length of the
+ * first symbol, bit 8 set when a second symbol is present, bits 16-23 first
+ * symbol, bits 24-31 second symbol. An entry with bits 0-3 clear points to a
+ * secondary table: bits 4-8 hold its width and bits 9-30 its offset. Zero
+ * marks a bit pattern no code starts with.
+ */
+public final class HuffmanDecoder {
+
+    public static final int PRIMARY_BITS = 11;
+    private static final int PRIMARY_SIZE = 1 << PRIMARY_BITS;
+    private static final int PRIMARY_MASK = PRIMARY_SIZE - 1;
+    private static final int MAX_SECONDARY_BITS = 16;
+    private static final int MAX_TABLE_CODE_LENGTH = PRIMARY_BITS + MAX_SECONDARY_BITS;
+    private static final int MAX_SECONDARY_SIZE = 1 << 22;
+
+    private final int refillThreshold;
+    private final int singleSymbol;
+    private final int[] primary;
+    private final int[] secondary;
+    // Fallback for codes too long to tabulate: node n has children at
+    // tree[2n] and tree[2n + 1]; a negative child is a leaf holding ~symbol.
+    private final int[] tree;
+
+    private InputStream source;
+    private byte[] in;
+    private int inPos;
+    private int inEnd;
+    private long bitBuffer;
+    private int bitCount;
+    private long loadedBits;
+    private long inputBits;
+
+    public HuffmanDecoder(long[] codes, int[] lengths) throws IOException {
+        int maxLength = 0;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            maxLength = Math.max(maxLength, lengths[symbol]);
+        }
+        this.refillThreshold = Math.max(maxLength, PRIMARY_BITS);
+        this.singleSymbol = -1;
+
+        if (maxLength > MAX_TABLE_CODE_LENGTH) {
+            this.primary = null;
+            this.secondary = null;
+            this.tree = buildTree(codes, lengths);
+            return;
+        }
+
+        // Secondary table widths: the longest code behind each 11-bit prefix
+        int[] prefixMax = new int[PRIMARY_SIZE];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int length = lengths[symbol];
+            if (length > PRIMARY_BITS) {
+                int prefix = (int) (codes[symbol] >>> (length - PRIMARY_BITS));
+                prefixMax[prefix] = Math.max(prefixMax[prefix], length - PRIMARY_BITS);
+            }
+        }
+        int[] prefixOffset = new int[PRIMARY_SIZE];
+        int secondarySize = 0;
+        for (int prefix = 0; prefix < PRIMARY_SIZE; prefix++) {
+            if (prefixMax[prefix] > 0) {
+                prefixOffset[prefix] = secondarySize;
+                secondarySize += 1 << prefixMax[prefix];
+            }
+        }
+        if (secondarySize > MAX_SECONDARY_SIZE) {
+            this.primary = null;
+            this.secondary = null;
+            this.tree = buildTree(codes, lengths);
+            return;
+        }
+        this.tree = null;
+
+        int[] single = new int[PRIMARY_SIZE];
+        int[] secondary = new int[secondarySize];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int length = lengths[symbol];
+            if (length == 0) continue;
+            long code = codes[symbol];
+            if (length <= PRIMARY_BITS) {
+                int start = (int) (code << (PRIMARY_BITS - length));
+                int entry = length | (length << 4) | (symbol << 16);
+                for (int i = start, end = start + (1 << (PRIMARY_BITS - length)); i < end; i++) {
+                    if (single[i] != 0) throw new IOException("Invalid Huffman code table");
+                    single[i] = entry;
+                }
+            } else {
+                int prefix = (int) (code >>> (length - PRIMARY_BITS));
+                int width = prefixMax[prefix];
+                int extra = length - PRIMARY_BITS;
+                int start = prefixOffset[prefix] + ((int) (code & ((1L << extra) - 1)) << (width - extra));
+                int entry = symbol | (extra << 8);
+                for (int i = start, end = start + (1 << (width - extra)); i < end; i++) {
+                    if (secondary[i] != 0) throw new IOException("Invalid Huffman code table");
+                    secondary[i] = entry;
+                }
+            }
+        }
+        for (int prefix = 0; prefix < PRIMARY_SIZE; prefix++) {
+            if (prefixMax[prefix] > 0) {
+                if (single[prefix] != 0) throw new IOException("Invalid Huffman code table");
+                single[prefix] = (prefixMax[prefix] << 4) | (prefixOffset[prefix] << 9);
+            }
+        }
+
+        // Pair up a short first code with a second code that fits in the remaining bits
+        int[] primary = new int[PRIMARY_SIZE];
+        for (int index = 0; index < PRIMARY_SIZE; index++) {
+            int entry = single[index];
+            primary[index] = entry;
+            int first = entry & 0xF;
+            if (first == 0 || first >= PRIMARY_BITS) continue;
+            int rest = PRIMARY_BITS - first;
+            int next = single[(index << first) & PRIMARY_MASK];
+            int second = next & 0xF;
+            if (second != 0 && second <= rest) {
+                primary[index] = (first + second) | (first << 4) | 0x100
+                        | (((entry >>> 16) & 0xFF) << 16) | (((next >>> 16) & 0xFF) << 24);
+            }
+        }
+
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    /**
+     * Decoder for the canonical code with the given lengths, including the
+     * single-symbol case.
+     */
+    public static HuffmanDecoder forLengths(int[] lengths) throws IOException {
+        int symbols = 0;
+        int lastSymbol = 0;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            if (lengths[symbol] != 0) {
+                symbols++;
+                lastSymbol = symbol;
+            }
+        }
+        if (symbols == 1) {
+            return forSingleSymbol(lastSymbol);
+        }
+        return new HuffmanDecoder(CanonicalHuffman.codesFromLengths(lengths), lengths);
+    }
+
+    /**
+     * Decoder for a stream made of a single repeated symbol, which carries no
+     * payload bits at all.
+     */
+    public static HuffmanDecoder forSingleSymbol(int symbol) {
+        return new HuffmanDecoder(symbol);
+    }
+
+    private HuffmanDecoder(int singleSymbol) {
+        this.refillThreshold = PRIMARY_BITS;
+        this.singleSymbol = singleSymbol;
+        this.primary = null;
+        this.secondary = null;
+        this.tree = null;
+    }
+
+    public void reset(byte[] in, int inPos, int inEnd) {
+        this.source = null;
+        this.in = in;
+        this.inPos = inPos;
+        this.inEnd = inEnd;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.loadedBits = 0;
+        this.inputBits = 0;
+    }
+
+    /**
+     * Reads the payload from {@code source}, using {@code buffer} as the
+     * refill buffer. Memory use stays at the buffer size however long the
+     * stream is.
+     */
+    public void reset(InputStream source, byte[] buffer) {
+        reset(buffer, 0, 0);
+        this.source = source;
+    }
+
+    /**
+     * Number of payload bits consumed since the last {@link #reset}.
+     */
+    public long consumedBits() {
+        return loadedBits - bitCount;
+    }
+
+    /**
+     * True once decoding has run past the end of the available input, which
+     * means the payload was truncated.
+     */
+    public boolean overran() {
+        return consumedBits() > inputBits;
+    }
+
+    /**
+     * Decodes exactly {@code count} symbols into {@code out[off..off+count)}.
+     */
+    public void decode(byte[] out, int off, int count) throws IOException {
+        if (singleSymbol >= 0) {
+            Arrays.fill(out, off, off + count, (byte) singleSymbol);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+        if (tree != null) {
+            decodeWithTree(out, off, count);
+            return;
+        }
+
+        final int[] primary = this.primary;
+        final int[] secondary = this.secondary;
+        final int refillThreshold = this.refillThreshold;
+        int pos = off;
+        int end = off + count;
+
+        while (pos < end) {
+            if (bitCount < refillThreshold) {
+                refill();
+            }
+            int entry = primary[(int) (bitBuffer >>> (bitCount - PRIMARY_BITS)) & PRIMARY_MASK];
+            int bits = entry & 0xF;
+            if (bits != 0) {
+                out[pos++] = (byte) (entry >>> 16);
+                if ((entry & 0x100) != 0 && pos < end) {
+                    out[pos++] = (byte) (entry >>> 24);
+                    bitCount -= bits;
+                } else {
+                    bitCount -= (entry >>> 4) & 0xF;
+                }
+            } else if (entry != 0) {
+                int width = (entry >>> 4) & 0x1F;
+                int offset = entry >>> 9;
+                int sub = secondary[offset
+                        + ((int) (bitBuffer >>> (bitCount - PRIMARY_BITS - width)) & ((1 << width) - 1))];
+                if (sub == 0) {
+                    throw new IOException("Corrupted bitstream: no code matches");
+                }
+                out[pos++] = (byte) sub;
+                bitCount -= PRIMARY_BITS + (sub >>> 8);
+            } else {
+                throw new IOException("Corrupted bitstream: no code matches");
+            }
+        }
+    }
+
+    private void decodeWithTree(byte[] out, int off, int count) throws IOException {
+        final int[] tree = this.tree;
+        for (int pos = off, end = off + count; pos < end; pos++) {
+            int node = 0;
+            while (true) {
+                if (bitCount == 0) {
+                    refill();
+                }
+                bitCount--;
+                int child = tree[2 * node + (int) ((bitBuffer >>> bitCount) & 1)];
+                if (child < 0) {
+                    out[pos] = (byte) ~child;
+                    break;
+                }
+                if (child == 0) {
+                    throw new IOException("Corrupted bitstream: no code matches");
+                }
+                node = child;
+            }
+        }
+    }
+
+    private void refill() throws IOException {
+        // Past the end of input the register is fed zeros; callers check
+        // overran() or compare consumedBits() with the payload size afterwards.
+        while (bitCount <= 56) {
+            if (inPos == inEnd && source != null) {
+                int read = source.read(in, 0, in.length);
+                if (read < 0) {
+                    source = null;
+                } else {
+                    inPos = 0;
+                    inEnd = read;
+                }
+            }
+            int next = 0;
+            if (inPos < inEnd) {
+                next = in[inPos++] & 0xFF;
+                inputBits += 8;
+            }
+            bitBuffer = (bitBuffer << 8) | next;
+            bitCount += 8;
+            loadedBits += 8;
+        }
+    }
+
+    private static int[] buildTree(long[] codes, int[] lengths) throws IOException {
+        int nodes = 1;
+        int[] tree = new int[2 * 512];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int length = lengths[symbol];
+            if (length == 0) continue;
+            int node = 0;
+            for (int bit = length - 1; bit >= 0; bit--) {
+                int slot = 2 * node + (int) ((codes[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    if (tree[slot] != 0) throw new IOException("Invalid Huffman code table");
+                    tree[slot] = ~symbol;
+                } else {
+                    if (tree[slot] < 0) throw new IOException("Invalid Huffman code table");
+                    if (tree[slot] == 0) {
+                        if (2 * nodes + 1 >= tree.length) {
+                            tree = Arrays.copyOf(tree, tree.length * 2);
+                        }
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+}
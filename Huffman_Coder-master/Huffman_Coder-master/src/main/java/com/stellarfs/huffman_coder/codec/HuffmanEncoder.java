@@ -0,0 +1,162 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Packs Huffman codes MSB-first into a 64-bit bit buffer and flushes whole
+ * words straight into a caller-supplied byte array.
+ * <p>
+ * Codes are looked up by {@code b & 0xFF} in flat arrays, so encoding does no
+ * per-symbol allocation. The output array must either be sized up front
+ * with {@link #encodedBits(long[], int[])}, or be drained to a stream with
+ * {@link #drain(OutputStream)} before it can overflow.
+ */
+public final class HuffmanEncoder {
+
+    private final long[] codes;
+    private final int[] lengths;
+
+    private byte[] out;
+    private int outPos;
+    private long bitBuffer;
+    private int bitCount;
+
+    public HuffmanEncoder(long[] codes, int[] lengths) {
+        if (codes.length != 256 || lengths.length != 256) {
+            throw new IllegalArgumentException("Code tables must have 256 entries");
+        }
+        this.codes = codes;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Starts writing at {@code out[outPos]}. Any bits still pending from a
+     * previous run are discarded.
+     */
+    public void reset(byte[] out, int outPos) {
+        this.out = out;
+        this.outPos = outPos;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+    }
+
+    public void encode(byte[] src, int off, int len) {
+        final long[] codes = this.codes;
+        final int[] lengths = this.lengths;
+        final byte[] out = this.out;
+        long buffer = bitBuffer;
+        int count = bitCount;
+        int pos = outPos;
+
+        for (int i = off, end = off + len; i < end; i++) {
+            int symbol = src[i] & 0xFF;
+            int n = lengths[symbol];
+            if (count + n > 64) {
+                // Only reachable for codes longer than 32 bits
+                while (count >= 8) {
+                    count -= 8;
+                    out[pos++] = (byte) (buffer >>> count);
+                }
+            }
+            buffer = (buffer << n) | codes[symbol];
+            count += n;
+            if (count >= 32) {
+                count -= 32;
+                int word = (int) (buffer >>> count);
+                out[pos] = (byte) (word >>> 24);
+                out[pos + 1] = (byte) (word >>> 16);
+                out[pos + 2] = (byte) (word >>> 8);
+                out[pos + 3] = (byte) word;
+                pos += 4;
+            }
+        }
+
+        bitBuffer = buffer;
+        bitCount = count;
+        outPos = pos;
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code src}, which may be a direct or
+     * memory-mapped buffer, and advances its position to the limit.
+     */
+    public void encode(ByteBuffer src) {
+        if (src.hasArray()) {
+            encode(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+        final long[] codes = this.codes;
+        final int[] lengths = this.lengths;
+        final byte[] out = this.out;
+        long buffer = bitBuffer;
+        int count = bitCount;
+        int pos = outPos;
+
+        for (int i = src.position(), end = src.limit(); i < end; i++) {
+            int symbol = src.get(i) & 0xFF;
+            int n = lengths[symbol];
+            if (count + n > 64) {
+                while (count >= 8) {
+                    count -= 8;
+                    out[pos++] = (byte) (buffer >>> count);
+                }
+            }
+            buffer = (buffer << n) | codes[symbol];
+            count += n;
+            if (count >= 32) {
+                count -= 32;
+                int word = (int) (buffer >>> count);
+                out[pos] = (byte) (word >>> 24);
+                out[pos + 1] = (byte) (word >>> 16);
+                out[pos + 2] = (byte) (word >>> 8);
+                out[pos + 3] = (byte) word;
+                pos += 4;
+            }
+        }
+
+        bitBuffer = buffer;
+        bitCount = count;
+        outPos = pos;
+        src.position(src.limit());
+    }
+
+    /**
+     * Writes the complete bytes produced so far to {@code sink} and restarts at
+     * the beginning of the output array. Bits that do not fill a byte yet stay
+     * pending.
+     */
+    public void drain(OutputStream sink) throws IOException {
+        sink.write(out, 0, outPos);
+        outPos = 0;
+    }
+
+    /**
+     * Flushes pending bits, zero-padding the last byte, and returns the
+     * position just past the last byte written.
+     */
+    public int finish() {
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            out[outPos++] = (byte) (bitBuffer >>> bitCount);
+        }
+        if (bitCount > 0) {
+            out[outPos++] = (byte) (bitBuffer << (8 - bitCount));
+            bitCount = 0;
+        }
+        return outPos;
+    }
+
+    /**
+     * Total number of payload bits for the given symbol frequencies.
+     */
+    public static long encodedBits(long[] frequencies, int[] lengths) {
+        long bits = 0;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            bits += frequencies[symbol] * lengths[symbol];
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,312 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary container for canonical Huffman payloads.
+ * <pre>
+ *  offset  size  field
+ *  0       4     magic "HUF" 0x1A
+ *  4       1     version
+ *  5       1     flags
+ *  6       8     original length in bytes
+ *  14      4     CRC-32 of the original data
+ *  18      ...   code length table (see below)
+ *  ...     ...   payload, canonical codes packed MSB-first
+ * </pre>
+ * A code length table is one form byte, 0 = sparse or 1 = dense, followed by
+ * a u16 symbol count and (u8 symbol, u8 length) pairs, or by 256 u8 lengths.
+ * A table with a single symbol carries no payload: the original length says
+ * how many times it repeats.
+ * <p>
+ * With {@link #FLAG_BLOCKS} set the data is split into independently coded
+ * blocks and the CRC field is zero; the table is replaced by:
+ * <pre>
+ *  18      4     block size
+ *  22      ...   blocks: u32 payload length, code length table, payload
+ *  ...     16n   index: u64 block offset, u32 block length, u32 block CRC-32
+ *  ...     16    footer: u32 block count, u64 index offset, magic "HUFX"
+ * </pre>
+ * The index sits at the end so blocks can be written out as they are
+ * encoded, while readers can still find and decode any block on its own.
+ * <p>
+ * Files written by the old encoder start with the Java serialization magic
+ * instead and are recognised by {@link #isLegacy}.
+ */
+public final class HuffmanFormat {
+
+    public static final int VERSION = 1;
+    public static final int FLAG_BLOCKS = 0x01;
+    public static final int FOOTER_SIZE = 16;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int MAX_BLOCK_SIZE = 64 << 20;
+    // Bounds the per-block arrays a reader allocates from an untrusted header
+    public static final int MAX_BLOCK_COUNT = 1 << 22;
+
+    private static final byte[] MAGIC = {'H', 'U', 'F', 0x1A};
+    private static final byte[] FOOTER_MAGIC = {'H', 'U', 'F', 'X'};
+    private static final int TABLE_SPARSE = 0;
+    private static final int TABLE_DENSE = 1;
+
+    private HuffmanFormat() {
+    }
+
+    public static boolean hasMagic(byte[] data) {
+        return data.length >= MAGIC.length
+                && data[0] == MAGIC[0] && data[1] == MAGIC[1]
+                && data[2] == MAGIC[2] && data[3] == MAGIC[3];
+    }
+
+    /**
+     * True if {@code data} starts a container split into indexed blocks, which
+     * {@link HuffmanArchive} can read at random.
+     */
+    public static boolean isBlocked(byte[] data) {
+        return hasMagic(data) && data.length > 5 && (data[5] & FLAG_BLOCKS) != 0;
+    }
+
+    /**
+     * Old files are a Java-serialized frequency map followed by the payload.
+     */
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && (data[0] & 0xFF) == 0xAC && (data[1] & 0xFF) == 0xED;
+    }
+
+    public static int symbolCount(int[] lengths) {
+        int count = 0;
+        for (int length : lengths) {
+            if (length != 0) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Number of blocks of {@code blockSize} bytes covering {@code length}
+     * bytes, computed without overflowing for any non-negative length.
+     */
+    public static long blockCount(long length, int blockSize) {
+        return length / blockSize + (length % blockSize == 0 ? 0 : 1);
+    }
+
+    public static int lengthTableSize(int[] lengths) {
+        return 1 + Math.min(2 + 2 * symbolCount(lengths), 256);
+    }
+
+    public static void writeLengthTable(DataOutput out, int[] lengths) throws IOException {
+        int symbols = symbolCount(lengths);
+        if (2 + 2 * symbols < 256) {
+            out.writeByte(TABLE_SPARSE);
+            out.writeShort(symbols);
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (lengths[symbol] != 0) {
+                    out.writeByte(symbol);
+                    out.writeByte(lengths[symbol]);
+                }
+            }
+        } else {
+            out.writeByte(TABLE_DENSE);
+            for (int symbol = 0; symbol < 256; symbol++) {
+                out.writeByte(lengths[symbol]);
+            }
+        }
+    }
+
+    public static int[] readLengthTable(DataInput in) throws IOException {
+        int[] lengths = new int[256];
+        int form = in.readUnsignedByte();
+        if (form == TABLE_SPARSE) {
+            int symbols = in.readUnsignedShort();
+            if (symbols > 256) {
+                throw new IOException("Invalid symbol count: " + symbols);
+            }
+            for (int i = 0; i < symbols; i++) {
+                int symbol = in.readUnsignedByte();
+                int length = in.readUnsignedByte();
+                if (length == 0 || lengths[symbol] != 0) {
+                    throw new IOException("Invalid code length table");
+                }
+                lengths[symbol] = length;
+            }
+        } else if (form == TABLE_DENSE) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                lengths[symbol] = in.readUnsignedByte();
+            }
+        } else {
+            throw new IOException("Unknown code length table form: " + form);
+        }
+        return lengths;
+    }
+
+    public static class Header {
+        public final int flags;
+        public final long originalLength;
+        public final int crc;
+        public final int[] lengths;
+        public final int blockSize;
+
+        public Header(int flags, long originalLength, int crc, int[] lengths) {
+            this.flags = flags;
+            this.originalLength = originalLength;
+            this.crc = crc;
+            this.lengths = lengths;
+            this.blockSize = 0;
+        }
+
+        private Header(long originalLength, int blockSize) {
+            this.flags = FLAG_BLOCKS;
+            this.originalLength = originalLength;
+            this.crc = 0;
+            this.lengths = null;
+            this.blockSize = blockSize;
+        }
+
+        public static Header forBlocks(long originalLength, int blockSize) {
+            if (HuffmanFormat.blockCount(originalLength, blockSize) > MAX_BLOCK_COUNT) {
+                throw new IllegalArgumentException("More than " + MAX_BLOCK_COUNT + " blocks of " + blockSize + " bytes");
+            }
+            return new Header(originalLength, blockSize);
+        }
+
+        public boolean isBlocked() {
+            return (flags & FLAG_BLOCKS) != 0;
+        }
+
+        public int symbolCount() {
+            return lengths == null ? 0 : HuffmanFormat.symbolCount(lengths);
+        }
+
+        public int blockCount() {
+            return isBlocked() ? (int) HuffmanFormat.blockCount(originalLength, blockSize) : 1;
+        }
+
+        public int size() {
+            return 18 + (isBlocked() ? 4 : lengthTableSize(lengths));
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeLong(originalLength);
+            out.writeInt(crc);
+            if (isBlocked()) {
+                out.writeInt(blockSize);
+            } else {
+                writeLengthTable(out, lengths);
+            }
+        }
+
+        public static Header read(DataInput in) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!hasMagic(magic)) {
+                throw new IOException("Not a Huffman container");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported Huffman container version: " + version);
+            }
+            int flags = in.readUnsignedByte();
+            long originalLength = in.readLong();
+            if (originalLength < 0) {
+                throw new IOException("Invalid original length: " + originalLength);
+            }
+            int crc = in.readInt();
+            if ((flags & FLAG_BLOCKS) != 0) {
+                int blockSize = in.readInt();
+                if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+                    throw new IOException("Invalid block size: " + blockSize);
+                }
+                if (HuffmanFormat.blockCount(originalLength, blockSize) > MAX_BLOCK_COUNT) {
+                    throw new IOException("Too many blocks: " + originalLength + " bytes in blocks of " + blockSize);
+                }
+                return forBlocks(originalLength, blockSize);
+            }
+            return new Header(flags, originalLength, crc, readLengthTable(in));
+        }
+    }
+
+    /**
+     * Location of every block in a blocked container, read from its tail.
+     */
+    public static class BlockIndex {
+        public final long[] offsets;
+        public final int[] lengths;
+        public final int[] crcs;
+
+        public BlockIndex(long[] offsets, int[] lengths, int[] crcs) {
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.crcs = crcs;
+        }
+
+        public int blockCount() {
+            return offsets.length;
+        }
+
+        public void write(DataOutput out, long indexOffset) throws IOException {
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeInt(crcs[i]);
+            }
+            out.writeInt(offsets.length);
+            out.writeLong(indexOffset);
+            out.write(FOOTER_MAGIC);
+        }
+
+        /**
+         * Reads the index of a container whose last {@link #FOOTER_SIZE}
+         * bytes are in {@code footer}; {@code indexReader} fetches the entries
+         * given their offset and length.
+         */
+        public static BlockIndex read(ByteBuffer footer, long containerLength, IndexReader indexReader)
+                throws IOException {
+            if (footer.remaining() < FOOTER_SIZE) {
+                throw new IOException("Truncated block index footer");
+            }
+            int blockCount = footer.getInt();
+            long indexOffset = footer.getLong();
+            byte[] magic = new byte[FOOTER_MAGIC.length];
+            footer.get(magic);
+            if (magic[0] != FOOTER_MAGIC[0] || magic[1] != FOOTER_MAGIC[1]
+                    || magic[2] != FOOTER_MAGIC[2] || magic[3] != FOOTER_MAGIC[3]) {
+                throw new IOException("Missing block index footer");
+            }
+            if (blockCount < 0 || indexOffset < 0
+                    || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE + FOOTER_SIZE != containerLength) {
+                throw new IOException("Corrupted block index footer");
+            }
+
+            ByteBuffer entries = indexReader.read(indexOffset, blockCount * INDEX_ENTRY_SIZE);
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            int[] crcs = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                offsets[i] = entries.getLong();
+                lengths[i] = entries.getInt();
+                crcs[i] = entries.getInt();
+                if (offsets[i] < 0 || lengths[i] < 4 || offsets[i] + lengths[i] > indexOffset) {
+                    throw new IOException("Corrupted block index entry " + i);
+                }
+            }
+            return new BlockIndex(offsets, lengths, crcs);
+        }
+
+        public static BlockIndex read(byte[] container) throws IOException {
+            if (container.length < FOOTER_SIZE) {
+                throw new IOException("Truncated block index footer");
+            }
+            ByteBuffer footer = ByteBuffer.wrap(container, container.length - FOOTER_SIZE, FOOTER_SIZE);
+            return read(footer, container.length, (offset, length) -> ByteBuffer.wrap(container, (int) offset, length));
+        }
+    }
+
+    @FunctionalInterface
+    public interface IndexReader {
+        ByteBuffer read(long offset, int length) throws IOException;
+    }
+}
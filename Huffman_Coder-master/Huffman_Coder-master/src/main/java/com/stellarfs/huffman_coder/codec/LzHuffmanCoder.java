@@ -0,0 +1,516 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Two-stage block coder: an LZ77 match finder turns the block into literals
+ * and (literal run, match length, distance) sequences, and each of the four
+ * resulting symbol streams is coded with its own canonical Huffman table.
+ * <pre>
+ *  size  field
+ *  1     mode: 0 stored, 1 coded
+ *  ...   stored: the block as it is
+ *        coded: u32 literal count, u32 sequence count, then the code length
+ *        tables (see {@link HuffmanFormat#writeLengthTable}) of the literal,
+ *        literal run, match length and distance streams, then the four
+ *        Huffman payloads and the extra bits, each as a u32 length and bytes
+ * </pre>
+ * Runs, lengths and distances are coded as a byte-sized bucket, an exponent
+ * and one mantissa bit, with the remaining low bits written raw to the extra
+ * bits, MSB-first and in sequence order. Literals after the last match have
+ * no sequence. A block that would not shrink is stored.
+ * <p>
+ * Matches are found through a hash table of 4-byte prefixes chained over the
+ * window and compared 8 bytes at a time. The level trades speed for ratio,
+ * with the same knobs as Deflate: level 1 follows one candidate, inserts only
+ * match starts and skips ahead faster on data that does not match, like LZ4;
+ * from level 4 on, a match is only taken once the next position has no
+ * longer one (lazy matching), and level 9 follows up to 1024 candidates.
+ * Matches stay within the block.
+ */
+public final class LzHuffmanCoder implements BlockCoder {
+
+    public static final int MIN_LEVEL = 1;
+    public static final int MAX_LEVEL = 9;
+    public static final int DEFAULT_LEVEL = 4;
+    public static final int MIN_WINDOW_BITS = 10;
+    public static final int MAX_WINDOW_BITS = 24;
+    public static final int DEFAULT_WINDOW_BITS = 18;
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 16;
+    // Keeps every code in the decoder's lookup tables
+    private static final int MAX_CODE_LENGTH = 15;
+    // Bucket codes: values below 8 are their own code, larger ones need 2 to 29 extra bits
+    private static final int CODES = 64;
+    // Three values of at most 29 extra bits each
+    private static final int MAX_EXTRA_BYTES_PER_SEQUENCE = 11;
+    private static final int STORED = 0;
+    private static final int CODED = 1;
+
+    // Per level: candidates followed per position
+    private static final int[] CHAIN = {0, 1, 4, 8, 16, 32, 64, 128, 256, 1024};
+    // A match this long ends the search
+    private static final int[] NICE = {0, 16, 16, 32, 32, 64, 128, 128, 258, 258};
+    // Matches shorter than this are checked against the next position, 0 for greedy parsing
+    private static final int[] LAZY = {0, 0, 0, 0, 8, 16, 16, 32, 128, 258};
+    // The lazy search follows a quarter of the chain once a match is this long
+    private static final int[] GOOD = {0, 0, 0, 0, 4, 8, 8, 8, 32, 32};
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int[] EXTRA_BITS = new int[CODES];
+    private static final int[] BASE = new int[CODES];
+
+    static {
+        for (int code = 0; code < CODES; code++) {
+            EXTRA_BITS[code] = code < 8 ? 0 : (code - 8) / 2 + 2;
+            BASE[code] = code < 8 ? code : (2 | code & 1) << EXTRA_BITS[code];
+        }
+    }
+
+    private final int maxChain;
+    private final int niceLength;
+    private final int lazyLength;
+    private final int goodLength;
+    // Level 1 and 2 skip positions inside matches and speed up over misses
+    private final boolean fast;
+    private final int windowSize;
+
+    private final Stream literals = new Stream();
+    private final Stream runs = new Stream();
+    private final Stream matchLengths = new Stream();
+    private final Stream distances = new Stream();
+    private final Stream[] streams = {literals, runs, matchLengths, distances};
+    private final BitWriter extraWriter = new BitWriter();
+    private byte[] extra = new byte[0];
+    private int[] head;
+    private int[] prev;
+    private int matchDistance;
+
+    /**
+     * Coder for decoding, which needs no match finder settings.
+     */
+    public LzHuffmanCoder() {
+        this(DEFAULT_LEVEL, MIN_WINDOW_BITS);
+    }
+
+    public LzHuffmanCoder(int level, int windowBits) {
+        if (level < MIN_LEVEL || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("LZ level must be between " + MIN_LEVEL + " and " + MAX_LEVEL);
+        }
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("LZ window bits must be between " + MIN_WINDOW_BITS
+                    + " and " + MAX_WINDOW_BITS);
+        }
+        this.maxChain = CHAIN[level];
+        this.niceLength = NICE[level];
+        this.lazyLength = LAZY[level];
+        this.goodLength = GOOD[level];
+        this.fast = level <= 2;
+        this.windowSize = 1 << windowBits;
+    }
+
+    /**
+     * Block size that lets matches reach across the whole window.
+     */
+    public static int blockSize(int windowBits) {
+        return Math.max(DEFAULT_BLOCK_SIZE, 1 << windowBits);
+    }
+
+    @Override
+    public void encode(byte[] data, int offset, int length, DataOutputStream out) throws IOException {
+        parse(data, offset, length);
+        int extraLength = extraWriter.finish();
+
+        int codedLength = 9 + 4 + extraLength;
+        for (Stream stream : streams) {
+            stream.code();
+            codedLength += HuffmanFormat.lengthTableSize(stream.lengths) + 4 + stream.payloadLength;
+        }
+        if (codedLength >= 1 + length) {
+            out.writeByte(STORED);
+            out.write(data, offset, length);
+            return;
+        }
+
+        out.writeByte(CODED);
+        out.writeInt(literals.count);
+        out.writeInt(runs.count);
+        for (Stream stream : streams) {
+            HuffmanFormat.writeLengthTable(out, stream.lengths);
+        }
+        for (Stream stream : streams) {
+            out.writeInt(stream.payloadLength);
+            out.write(stream.payload, 0, stream.payloadLength);
+        }
+        out.writeInt(extraLength);
+        out.write(extra, 0, extraLength);
+    }
+
+    private void parse(byte[] data, int offset, int length) {
+        int maxSequences = length / MIN_MATCH + 1;
+        literals.ensureCapacity(length);
+        for (Stream stream : new Stream[]{runs, matchLengths, distances}) {
+            stream.ensureCapacity(maxSequences);
+        }
+        if (extra.length < maxSequences * MAX_EXTRA_BYTES_PER_SEQUENCE) {
+            extra = new byte[maxSequences * MAX_EXTRA_BYTES_PER_SEQUENCE];
+        }
+        extraWriter.reset(extra);
+        for (Stream stream : streams) {
+            stream.count = 0;
+        }
+        if (head == null) {
+            head = new int[1 << HASH_BITS];
+            prev = new int[windowSize];
+        }
+        Arrays.fill(head, -1);
+
+        int end = offset + length;
+        // Last position with a whole prefix to hash
+        int limit = end - MIN_MATCH;
+        int anchor = offset;
+        int nextInsert = offset;
+        int misses = 0;
+        for (int pos = offset; pos <= limit; ) {
+            int match = findMatch(data, pos, end, offset, maxChain);
+            nextInsert = Math.max(nextInsert, pos + 1);
+            if (match == 0) {
+                pos += fast ? 1 + (misses++ >> 5) : 1;
+                continue;
+            }
+            misses = 0;
+            int distance = matchDistance;
+            // Lazy matching: a longer match one byte on is worth a literal
+            while (match < lazyLength && pos + 1 <= limit) {
+                int next = findMatch(data, pos + 1, end, offset, match >= goodLength ? maxChain >> 2 : maxChain);
+                nextInsert = Math.max(nextInsert, pos + 2);
+                if (next <= match) {
+                    break;
+                }
+                pos++;
+                match = next;
+                distance = matchDistance;
+            }
+
+            addSequence(data, anchor, pos - anchor, match, distance);
+            int matchEnd = pos + match;
+            if (!fast) {
+                for (int p = nextInsert; p < matchEnd && p <= limit; p++) {
+                    insert(data, p, offset);
+                }
+            }
+            pos = matchEnd;
+            nextInsert = matchEnd;
+            anchor = matchEnd;
+        }
+        System.arraycopy(data, anchor, literals.symbols, literals.count, end - anchor);
+        literals.count += end - anchor;
+    }
+
+    /**
+     * Inserts {@code pos} into the hash chains and returns the length of the
+     * longest earlier match within the window, or 0, leaving its distance in
+     * {@link #matchDistance}.
+     */
+    private int findMatch(byte[] data, int pos, int end, int base, int maxChain) {
+        int h = hash(data, pos);
+        int position = pos - base;
+        int candidate = head[h];
+        head[h] = position;
+        prev[position & (windowSize - 1)] = candidate;
+
+        int best = MIN_MATCH - 1;
+        int maxLength = end - pos;
+        int oldest = position - windowSize;
+        for (int chain = maxChain; candidate > oldest && candidate >= 0 && chain > 0; chain--) {
+            int from = base + candidate;
+            // The byte that would make the match longer decides most candidates
+            if (data[from + best] == data[pos + best]) {
+                int n = matchLength(data, from, pos, maxLength);
+                if (n > best) {
+                    best = n;
+                    matchDistance = pos - from;
+                    if (n >= niceLength || n == maxLength) {
+                        break;
+                    }
+                }
+            }
+            int next = prev[candidate & (windowSize - 1)];
+            // An older slot overwritten by a newer position ends the chain
+            if (next >= candidate) {
+                break;
+            }
+            candidate = next;
+        }
+        return best >= MIN_MATCH ? best : 0;
+    }
+
+    private static int matchLength(byte[] data, int from, int pos, int maxLength) {
+        int n = 0;
+        for (; n + 8 <= maxLength; n += 8) {
+            long difference = (long) LONG.get(data, from + n) ^ (long) LONG.get(data, pos + n);
+            if (difference != 0) {
+                return n + (Long.numberOfTrailingZeros(difference) >>> 3);
+            }
+        }
+        while (n < maxLength && data[from + n] == data[pos + n]) {
+            n++;
+        }
+        return n;
+    }
+
+    private void insert(byte[] data, int pos, int base) {
+        int h = hash(data, pos);
+        prev[(pos - base) & (windowSize - 1)] = head[h];
+        head[h] = pos - base;
+    }
+
+    private static int hash(byte[] data, int pos) {
+        return (int) INT.get(data, pos) * 0x9E3779B1 >>> (32 - HASH_BITS);
+    }
+
+    private void addSequence(byte[] data, int literalStart, int run, int matchLength, int distance) {
+        System.arraycopy(data, literalStart, literals.symbols, literals.count, run);
+        literals.count += run;
+        runs.add(bucket(run));
+        matchLengths.add(bucket(matchLength - MIN_MATCH));
+        distances.add(bucket(distance - 1));
+    }
+
+    // Writes the extra bits of value and returns its code
+    private byte bucket(int value) {
+        if (value < 8) {
+            return (byte) value;
+        }
+        int exponent = 31 - Integer.numberOfLeadingZeros(value);
+        int code = 8 + (exponent - 3) * 2 + (value >>> (exponent - 1) & 1);
+        extraWriter.write(value & (1 << (exponent - 1)) - 1, exponent - 1);
+        return (byte) code;
+    }
+
+    @Override
+    public void decode(DataInputStream in, byte[] out, int length) throws IOException {
+        int literalCount;
+        int sequenceCount;
+        int extraLength;
+        try {
+            int mode = in.readUnsignedByte();
+            if (mode == STORED) {
+                in.readFully(out, 0, length);
+                return;
+            }
+            if (mode != CODED) {
+                throw new IOException("Corrupted LZ block: unknown mode " + mode);
+            }
+            literalCount = in.readInt();
+            sequenceCount = in.readInt();
+            if (literalCount < 0 || literalCount > length || sequenceCount < 0 || sequenceCount > length / MIN_MATCH) {
+                throw new IOException("Corrupted LZ block: bad counts");
+            }
+            literals.count = literalCount;
+            runs.count = sequenceCount;
+            matchLengths.count = sequenceCount;
+            distances.count = sequenceCount;
+            for (Stream stream : streams) {
+                stream.lengths = HuffmanFormat.readLengthTable(in);
+            }
+            for (Stream stream : streams) {
+                stream.read(in);
+            }
+            extraLength = in.readInt();
+            if (extraLength < 0 || extraLength > sequenceCount * MAX_EXTRA_BYTES_PER_SEQUENCE) {
+                throw new IOException("Corrupted LZ block: bad extra bits length");
+            }
+            if (extra.length < extraLength) {
+                extra = new byte[extraLength];
+            }
+            in.readFully(extra, 0, extraLength);
+        } catch (EOFException e) {
+            throw new IOException("Truncated LZ block");
+        }
+        for (Stream stream : streams) {
+            stream.decode();
+        }
+
+        BitReader extraBits = new BitReader(extra, extraLength);
+        byte[] literalBytes = literals.symbols;
+        int op = 0;
+        int lp = 0;
+        for (int s = 0; s < sequenceCount; s++) {
+            int run = value(runs.symbols[s], extraBits);
+            int matchLength = value(matchLengths.symbols[s], extraBits);
+            int distance = value(distances.symbols[s], extraBits);
+            if (run > literalCount - lp || run > length - op
+                    || matchLength > length - op - run - MIN_MATCH || distance >= op + run) {
+                throw new IOException("Corrupted LZ block: bad sequence " + s);
+            }
+            matchLength += MIN_MATCH;
+            distance += 1;
+            System.arraycopy(literalBytes, lp, out, op, run);
+            lp += run;
+            op += run;
+            int from = op - distance;
+            if (distance >= matchLength) {
+                System.arraycopy(out, from, out, op, matchLength);
+            } else {
+                // Overlapping copy repeats the last distance bytes
+                for (int k = 0; k < matchLength; k++) {
+                    out[op + k] = out[from + k];
+                }
+            }
+            op += matchLength;
+        }
+        if (literalCount - lp != length - op || extraBits.overran) {
+            throw new IOException("Corrupted LZ block: sequences do not add up to the block");
+        }
+        System.arraycopy(literalBytes, lp, out, op, length - op);
+    }
+
+    private static int value(byte code, BitReader extraBits) throws IOException {
+        int c = code & 0xFF;
+        if (c >= CODES) {
+            throw new IOException("Corrupted LZ block: bad length code " + c);
+        }
+        return BASE[c] + extraBits.read(EXTRA_BITS[c]);
+    }
+
+    /**
+     * One symbol stream with its code table and Huffman payload.
+     */
+    private static final class Stream {
+        byte[] symbols = new byte[0];
+        int count;
+        int[] lengths;
+        byte[] payload = new byte[0];
+        int payloadLength;
+
+        void ensureCapacity(int capacity) {
+            if (symbols.length < capacity) {
+                symbols = new byte[capacity];
+            }
+        }
+
+        void add(byte symbol) {
+            symbols[count++] = symbol;
+        }
+
+        void code() throws IOException {
+            long[] frequencies = ByteHistogram.count(symbols, 0, count);
+            lengths = CanonicalHuffman.codeLengths(frequencies, MAX_CODE_LENGTH);
+            // Nothing to write for a lone symbol, as in the Huffman container
+            if (HuffmanFormat.symbolCount(lengths) <= 1) {
+                payloadLength = 0;
+                return;
+            }
+            int size = (int) ((HuffmanEncoder.encodedBits(frequencies, lengths) + 7) / 8);
+            if (payload.length < size) {
+                payload = new byte[size];
+            }
+            HuffmanEncoder encoder = new HuffmanEncoder(CanonicalHuffman.codesFromLengths(lengths), lengths);
+            encoder.reset(payload, 0);
+            encoder.encode(symbols, 0, count);
+            payloadLength = encoder.finish();
+        }
+
+        void read(DataInputStream in) throws IOException {
+            payloadLength = in.readInt();
+            // No code is longer than 56 bits
+            if (payloadLength < 0 || payloadLength > (long) count * 7 + 8) {
+                throw new IOException("Corrupted LZ block: bad payload length");
+            }
+            if (payload.length < payloadLength) {
+                payload = new byte[payloadLength];
+            }
+            in.readFully(payload, 0, payloadLength);
+        }
+
+        void decode() throws IOException {
+            ensureCapacity(count);
+            if (count == 0) {
+                return;
+            }
+            if (HuffmanFormat.symbolCount(lengths) == 0) {
+                throw new IOException("Corrupted LZ block: empty code table");
+            }
+            HuffmanDecoder decoder = HuffmanDecoder.forLengths(lengths);
+            decoder.reset(payload, 0, payloadLength);
+            decoder.decode(symbols, 0, count);
+            if (decoder.overran()) {
+                throw new IOException("Corrupted LZ block: payload truncated");
+            }
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] out;
+        private int position;
+        private long buffer;
+        private int count;
+
+        void reset(byte[] out) {
+            this.out = out;
+            position = 0;
+            buffer = 0;
+            count = 0;
+        }
+
+        void write(int value, int bits) {
+            buffer = buffer << bits | value;
+            count += bits;
+            while (count >= 8) {
+                count -= 8;
+                out[position++] = (byte) (buffer >>> count);
+            }
+        }
+
+        int finish() {
+            if (count > 0) {
+                out[position++] = (byte) (buffer << (8 - count));
+                count = 0;
+            }
+            return position;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] in;
+        private final int end;
+        private int position;
+        private long buffer;
+        private int count;
+        boolean overran;
+
+        BitReader(byte[] in, int end) {
+            this.in = in;
+            this.end = end;
+        }
+
+        int read(int bits) {
+            if (bits == 0) {
+                return 0;
+            }
+            while (count < bits) {
+                if (position < end) {
+                    buffer = buffer << 8 | in[position++] & 0xFF;
+                } else {
+                    buffer <<= 8;
+                    overran = true;
+                }
+                count += 8;
+            }
+            count -= bits;
+            return (int) (buffer >>> count) & (1 << bits) - 1;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.stellarfs.huffman_coder.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Order-0 rANS (range asymmetric numeral system) coder for one block.
+ * Unlike Huffman, a symbol costs a fraction of a bit when it is frequent,
+ * so skewed distributions come much closer to their entropy.
+ * <p>
+ * Frequencies are normalised to {@link #SCALE} and stored with the block:
+ * <pre>
+ *  size  field
+ *  1     table form: 0 sparse, 1 dense
+ *  ...   sparse: u8 symbol count - 1, then per symbol u8 symbol and u16 frequency
+ *        dense: u16 frequency of each of the 256 byte values
+ *  4     coded length
+ *  ...   coded bytes: the two coder states (u32 each), then renormalisation bytes
+ * </pre>
+ * Two states take alternate symbols, so the decoder keeps two independent
+ * dependency chains in flight. Each state stays in {@code [L, L << 8)} and
+ * is renormalised a byte at a time. The encoder works back to front, so the
+ * decoder reads the coded bytes front to back; decoding resolves a symbol
+ * with one lookup in a {@link #SCALE}-entry table.
+ * <p>
+ * Block lengths and the end of the payload are framed by
+ * {@link BlockOutputStream} and {@link BlockInputStream}.
+ */
+public final class RansCoder implements BlockCoder {
+
+    public static final int SCALE_BITS = 12;
+    public static final int SCALE = 1 << SCALE_BITS;
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    private static final int MASK = SCALE - 1;
+    private static final int L = 1 << 23;
+    // Renormalise before coding a symbol of frequency f once the state reaches X_MAX * f
+    private static final long X_MAX = (long) (L >>> SCALE_BITS) << 8;
+    private static final int SPARSE = 0;
+    private static final int DENSE = 1;
+    private static final int DENSE_TABLE_SIZE = 512;
+
+    private final int[] frequencies = new int[256];
+    private final int[] starts = new int[256];
+    // Decoder entry per slot: bits 0-7 symbol, 8-19 frequency - 1, 20-31 slot - start
+    private final int[] slots = new int[SCALE];
+    private byte[] coded = new byte[0];
+    private int position;
+
+    /**
+     * Worst case coded size of a block of {@code length} bytes: 12 bits per
+     * symbol plus the two states.
+     */
+    public static int maxCodedLength(int length) {
+        return length + (length >> 1) + 16;
+    }
+
+    @Override
+    public void encode(byte[] data, int offset, int length, DataOutputStream out) throws IOException {
+        long[] counts = new long[256];
+        ByteHistogram.add(counts, data, offset, length);
+        normalize(counts, length, frequencies);
+        for (int symbol = 0, start = 0; symbol < 256; symbol++) {
+            starts[symbol] = start;
+            start += frequencies[symbol];
+        }
+
+        int capacity = maxCodedLength(length);
+        if (coded.length < capacity) {
+            coded = new byte[capacity];
+        }
+        position = capacity;
+        int x0 = L;
+        int x1 = L;
+        int i = offset + length;
+        // Even positions go to the first state, odd ones to the second
+        if ((length & 1) != 0) {
+            x0 = put(x0, data[--i] & 0xFF);
+        }
+        while (i > offset) {
+            x1 = put(x1, data[--i] & 0xFF);
+            x0 = put(x0, data[--i] & 0xFF);
+        }
+        position -= 8;
+        writeInt(coded, position, x0);
+        writeInt(coded, position + 4, x1);
+
+        writeTable(out);
+        out.writeInt(capacity - position);
+        out.write(coded, position, capacity - position);
+    }
+
+    private int put(int x, int symbol) {
+        int frequency = frequencies[symbol];
+        long max = X_MAX * frequency;
+        while (x >= max) {
+            coded[--position] = (byte) x;
+            x >>>= 8;
+        }
+        return (x / frequency << SCALE_BITS) + x % frequency + starts[symbol];
+    }
+
+    @Override
+    public void decode(DataInputStream in, byte[] out, int length) throws IOException {
+        int codedLength;
+        try {
+            readTable(in);
+            codedLength = in.readInt();
+            if (codedLength < 8 || codedLength > maxCodedLength(length)) {
+                throw new IOException("Corrupted rANS block: bad coded length");
+            }
+            if (coded.length < codedLength) {
+                coded = new byte[codedLength];
+            }
+            in.readFully(coded, 0, codedLength);
+        } catch (EOFException e) {
+            throw new IOException("Truncated rANS block");
+        }
+
+        int[] slots = this.slots;
+        byte[] coded = this.coded;
+        int x0 = readInt(coded, 0);
+        int x1 = readInt(coded, 4);
+        int p = 8;
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            int entry = slots[x0 & MASK];
+            out[i] = (byte) entry;
+            x0 = ((entry >>> 8 & MASK) + 1) * (x0 >>> SCALE_BITS) + (entry >>> 20);
+            while (x0 < L && p < codedLength) {
+                x0 = x0 << 8 | coded[p++] & 0xFF;
+            }
+            entry = slots[x1 & MASK];
+            out[i + 1] = (byte) entry;
+            x1 = ((entry >>> 8 & MASK) + 1) * (x1 >>> SCALE_BITS) + (entry >>> 20);
+            while (x1 < L && p < codedLength) {
+                x1 = x1 << 8 | coded[p++] & 0xFF;
+            }
+        }
+        if (i < length) {
+            int entry = slots[x0 & MASK];
+            out[i] = (byte) entry;
+            x0 = ((entry >>> 8 & MASK) + 1) * (x0 >>> SCALE_BITS) + (entry >>> 20);
+            while (x0 < L && p < codedLength) {
+                x0 = x0 << 8 | coded[p++] & 0xFF;
+            }
+        }
+        // Decoding retraces the encoder, which started both states at L
+        if (x0 != L || x1 != L || p != codedLength) {
+            throw new IOException("Corrupted rANS block");
+        }
+    }
+
+    /**
+     * Scales {@code counts} to frequencies summing to {@link #SCALE}, keeping
+     * every symbol that occurs at frequency 1 or more.
+     */
+    static void normalize(long[] counts, long total, int[] frequencies) {
+        int sum = 0;
+        int largest = 0;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            long count = counts[symbol];
+            frequencies[symbol] = count == 0 ? 0 : (int) Math.max(1, (count * SCALE + total / 2) / total);
+            sum += frequencies[symbol];
+            if (count > counts[largest]) {
+                largest = symbol;
+            }
+        }
+        if (sum < SCALE) {
+            frequencies[largest] += SCALE - sum;
+            return;
+        }
+        // Rounding and the minimum of 1 overshot: take from where it costs the fewest bits
+        for (; sum > SCALE; sum--) {
+            int cheapest = -1;
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (frequencies[symbol] > 1 && (cheapest < 0
+                        || counts[symbol] * frequencies[cheapest] < counts[cheapest] * frequencies[symbol])) {
+                    cheapest = symbol;
+                }
+            }
+            frequencies[cheapest]--;
+        }
+    }
+
+    private void writeTable(DataOutputStream out) throws IOException {
+        int symbols = 0;
+        for (int frequency : frequencies) {
+            symbols += frequency > 0 ? 1 : 0;
+        }
+        if (2 + 3 * symbols < 1 + DENSE_TABLE_SIZE) {
+            out.writeByte(SPARSE);
+            out.writeByte(symbols - 1);
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (frequencies[symbol] > 0) {
+                    out.writeByte(symbol);
+                    out.writeShort(frequencies[symbol]);
+                }
+            }
+        } else {
+            out.writeByte(DENSE);
+            for (int frequency : frequencies) {
+                out.writeShort(frequency);
+            }
+        }
+    }
+
+    private void readTable(DataInputStream in) throws IOException {
+        Arrays.fill(frequencies, 0);
+        int form = in.readUnsignedByte();
+        if (form == SPARSE) {
+            int symbols = in.readUnsignedByte() + 1;
+            for (int i = 0; i < symbols; i++) {
+                frequencies[in.readUnsignedByte()] = in.readUnsignedShort();
+            }
+        } else if (form == DENSE) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                frequencies[symbol] = in.readUnsignedShort();
+            }
+        } else {
+            throw new IOException("Corrupted rANS block: unknown table form " + form);
+        }
+
+        int start = 0;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int frequency = frequencies[symbol];
+            if (frequency > SCALE - start) {
+                throw new IOException("Corrupted rANS block: frequencies exceed " + SCALE);
+            }
+            for (int k = 0; k < frequency; k++) {
+                slots[start + k] = symbol | (frequency - 1) << 8 | k << 20;
+            }
+            start += frequency;
+        }
+        if (start != SCALE) {
+            throw new IOException("Corrupted rANS block: frequencies do not sum to " + SCALE);
+        }
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8
+                | b[offset + 3] & 0xFF;
+    }
+}
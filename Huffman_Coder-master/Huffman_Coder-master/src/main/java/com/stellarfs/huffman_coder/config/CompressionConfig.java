@@ -0,0 +1,30 @@
+package com.stellarfs.huffman_coder.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Configuration
+public class CompressionConfig {
+
+    /**
+     * Bounded pool the codec candidates of a request run on. The codecs are
+     * CPU-bound native calls, so the pool is sized to the cores; when it backs
+     * up, the submitting request thread runs the candidate itself. Candidates
+     * of background jobs queue behind those of interactive requests.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService compressionExecutor(@Value("${compression.executor.threads:0}") int threads) {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger counter = new AtomicInteger();
+        return new PriorityThreadPoolExecutor(size, size * 64,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "compression-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
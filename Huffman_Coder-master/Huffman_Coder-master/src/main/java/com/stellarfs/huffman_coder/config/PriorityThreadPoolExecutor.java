@@ -0,0 +1,81 @@
+package com.stellarfs.huffman_coder.config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool that runs queued tasks in submission order, except that
+ * tasks submitted from {@link #inBackground background} work wait until no
+ * foreground task is queued. Asynchronous jobs run in the background, so
+ * interactive requests keep their latency while large jobs are in progress.
+ * <p>
+ * The queue is bounded like the one it replaces: once {@code capacity} tasks
+ * are waiting, the submitting thread runs the task itself.
+ */
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+
+    private static final ThreadLocal<Boolean> BACKGROUND = ThreadLocal.withInitial(() -> false);
+
+    private final int capacity;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public PriorityThreadPoolExecutor(int threads, int capacity, ThreadFactory threadFactory) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), threadFactory);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Runs {@code work} on the calling thread with every task it submits to
+     * this kind of pool queued behind foreground tasks.
+     */
+    public static <T> T inBackground(Callable<T> work) throws Exception {
+        boolean previous = BACKGROUND.get();
+        BACKGROUND.set(true);
+        try {
+            return work.call();
+        } finally {
+            BACKGROUND.set(previous);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (getQueue().size() >= capacity) {
+            // Same as CallerRunsPolicy, which drops the task once shut down
+            if (!isShutdown()) {
+                command.run();
+            }
+            return;
+        }
+        super.execute(new PrioritizedTask(command, BACKGROUND.get(), sequence.incrementAndGet()));
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Runnable task;
+        private final boolean background;
+        private final long sequence;
+
+        PrioritizedTask(Runnable task, boolean background, long sequence) {
+            this.task = task;
+            this.background = background;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (background != other.background) {
+                return background ? 1 : -1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
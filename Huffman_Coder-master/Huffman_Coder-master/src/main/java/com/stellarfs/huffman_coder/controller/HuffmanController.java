@@ -1,19 +1,42 @@
 package com.stellarfs.huffman_coder.controller;
 
+import com.stellarfs.huffman_coder.codec.HuffmanArchive;
+import com.stellarfs.huffman_coder.service.ArchiveService;
+import com.stellarfs.huffman_coder.service.BatchArchiveService;
+import com.stellarfs.huffman_coder.service.CodecSelector;
+import com.stellarfs.huffman_coder.service.CompressionCache;
+import com.stellarfs.huffman_coder.service.CompressionJobService;
+import com.stellarfs.huffman_coder.service.DictionaryService;
 import com.stellarfs.huffman_coder.service.HuffmanService;
 import com.stellarfs.huffman_coder.service.HybridCompressionService;
+import com.stellarfs.huffman_coder.service.StreamingCompressionService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
 
 @CrossOrigin(origins = {"http://localhost:3000", "http://localhost:3001"})
 @RestController
@@ -25,14 +48,36 @@ public class HuffmanController {
     
     @Autowired
     private HybridCompressionService hybridCompressionService;
+    
+    @Autowired
+    private CodecSelector codecSelector;
+    
+    @Autowired
+    private DictionaryService dictionaryService;
+    
+    @Autowired
+    private CompressionCache compressionCache;
+    
+    @Autowired
+    private CompressionJobService compressionJobService;
+    
+    @Autowired
+    private ArchiveService archiveService;
+    
+    @Autowired
+    private StreamingCompressionService streamingCompressionService;
+    
+    @Autowired
+    private BatchArchiveService batchArchiveService;
 
     @PostMapping("/compress")
-    public ResponseEntity<byte[]> compressFile(@RequestParam("file") MultipartFile file) throws IOException {
+    public ResponseEntity<StreamingResponseBody> compressFile(@RequestParam("file") MultipartFile file) {
         if (file.isEmpty()) {
             return ResponseEntity.badRequest().build();
         }
 
-        byte[] compressedData = huffmanService.compress(file.getBytes());
+        // Multipart uploads are spooled to disk, so both passes re-read the file instead of the heap
+        StreamingResponseBody body = out -> huffmanService.compress(file, out);
 
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
@@ -40,16 +85,22 @@ public class HuffmanController {
 
         return ResponseEntity.ok()
                 .headers(headers)
-                .body(compressedData);
+                .body(body);
     }
 
     @PostMapping("/decompress")
-    public ResponseEntity<byte[]> decompressFile(@RequestParam("file") MultipartFile file) throws IOException, ClassNotFoundException {
+    public ResponseEntity<StreamingResponseBody> decompressFile(@RequestParam("file") MultipartFile file) {
         if (file.isEmpty()) {
             return ResponseEntity.badRequest().build();
         }
 
-        byte[] decompressedData = huffmanService.decompress(file.getBytes());
+        StreamingResponseBody body = out -> {
+            try (InputStream in = file.getInputStream()) {
+                huffmanService.decompress(in, out);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unsupported legacy compressed data", e);
+            }
+        };
 
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
@@ -57,7 +108,7 @@ public class HuffmanController {
 
         return ResponseEntity.ok()
                 .headers(headers)
-                .body(decompressedData);
+                .body(body);
     }
     
     @PostMapping("/smart-compress")
@@ -66,26 +117,313 @@ public class HuffmanController {
             return ResponseEntity.badRequest().build();
         }
 
-        HybridCompressionService.CompressionResult result = hybridCompressionService.compress(file.getBytes(), file.getOriginalFilename());
+        byte[] data = file.getBytes();
+        HybridCompressionService.CompressionResult result = hybridCompressionService.compress(data, file.getOriginalFilename());
 
+        return ResponseEntity.ok()
+                .headers(smartCompressHeaders(file.getOriginalFilename(), result.wasCompressed, result.method,
+                        result.compressionRatio, result.originalSize, result.compressedSize))
+                .body(result.compressedData);
+    }
+    
+    private static HttpHeaders smartCompressHeaders(String fileName, boolean wasCompressed, String method,
+                                                    double compressionRatio, long originalSize, long compressedSize) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
         
-        if (result.wasCompressed) {
-            headers.setContentDispositionFormData("attachment", file.getOriginalFilename() + ".compressed");
-            headers.set("X-Compression-Method", result.method);
-            headers.set("X-Compression-Ratio", String.format("%.2f%%", result.compressionRatio));
-            headers.set("X-Original-Size", String.valueOf(result.originalSize));
-            headers.set("X-Compressed-Size", String.valueOf(result.compressedSize));
-            headers.set("X-Space-Saved", String.valueOf(result.originalSize - result.compressedSize));
-        } else {
-            headers.setContentDispositionFormData("attachment", file.getOriginalFilename());
-            headers.set("X-Compression-Status", "No compression achieved - returning original");
-            headers.set("X-Compression-Method", "NONE");
+        // Always a frame, so /smart-decompress restores it either way
+        headers.setContentDispositionFormData("attachment", fileName + ".compressed");
+        headers.set("X-Compression-Method", method);
+        headers.set("X-Compression-Ratio", String.format("%.2f%%", compressionRatio));
+        headers.set("X-Original-Size", String.valueOf(originalSize));
+        headers.set("X-Compressed-Size", String.valueOf(compressedSize));
+        headers.set("X-Space-Saved", String.valueOf(originalSize - compressedSize));
+        if (!wasCompressed) {
+            headers.set("X-Compression-Status", "No compression achieved - original stored in a frame");
         }
+        return headers;
+    }
+    
+    /**
+     * Queues a smart compression job; poll {@code /jobs/{id}} and fetch the
+     * output from {@code /jobs/{id}/result}. The priority is clamped to -9..9.
+     * Answers 429 with Retry-After when the queue cannot take the job.
+     */
+    @PostMapping("/jobs")
+    public ResponseEntity<CompressionJobService.JobStatus> submitJob(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "priority", defaultValue = "0") int priority) throws IOException {
+        if (file.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        try {
+            CompressionJobService.JobStatus job = compressionJobService.submit(file, priority);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/jobs/" + job.id))
+                    .body(job);
+        } catch (CompressionJobService.QueueFullException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.retryAfterSeconds))
+                    .build();
+        }
+    }
+    
+    @GetMapping("/jobs/{id}")
+    public ResponseEntity<CompressionJobService.JobStatus> jobStatus(@PathVariable String id) {
+        CompressionJobService.JobStatus job = compressionJobService.status(id);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+    }
+    
+    @GetMapping("/jobs/{id}/result")
+    public ResponseEntity<Resource> jobResult(@PathVariable String id) {
+        CompressionJobService.JobStatus job = compressionJobService.status(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Path result = compressionJobService.result(id);
+        if (result == null) {
+            // Still queued or running, or failed
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        
+        // Streamed from the temp file, not the heap
+        boolean wasCompressed = job.compressedSize < job.originalSize;
+        return ResponseEntity.ok()
+                .headers(smartCompressHeaders(job.fileName, wasCompressed, job.method,
+                        job.compressionRatio, job.originalSize, job.compressedSize))
+                .body(new FileSystemResource(result));
+    }
+    
+    @DeleteMapping("/jobs/{id}")
+    public ResponseEntity<Void> deleteJob(@PathVariable String id) throws IOException {
+        if (compressionJobService.status(id) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return compressionJobService.delete(id)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.status(HttpStatus.CONFLICT).build();
+    }
+
+    /**
+     * Compresses the raw request body while it is still being uploaded and
+     * sends the streamed frame back as it is produced, so neither the upload
+     * nor the result is buffered. The output decodes with
+     * {@code /smart-decompress}. Answers 429 when every stream slot is busy.
+     */
+    // A form-encoded body would be parsed for parameters before it could be streamed
+    @PostMapping(value = "/stream-compress", consumes = "!" + MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public void streamCompress(@RequestParam(value = "codec", defaultValue = "zstd") String codec,
+                               @RequestParam(value = "level", required = false) Integer level,
+                               HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Runs on the request thread: the body is read and the response written as they go
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        try {
+            streamingCompressionService.compress(request.getInputStream(), response.getOutputStream(), codec, level);
+        } catch (IllegalArgumentException e) {
+            // Nothing was written yet; the error page brings its own content type
+            response.reset();
+            response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+        } catch (StreamingCompressionService.BusyException e) {
+            response.reset();
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), e.getMessage());
+        }
+    }
+
+    @PostMapping("/smart-decompress")
+    public ResponseEntity<StreamingResponseBody> smartDecompressFile(@RequestParam("file") MultipartFile file) {
+        if (file.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        // The frame header names the codec, so any smart-compress output decodes here
+        StreamingResponseBody body = out -> {
+            try (InputStream in = file.getInputStream()) {
+                hybridCompressionService.decompress(in, out);
+            }
+        };
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDispositionFormData("attachment", file.getOriginalFilename().replace(".compressed", ""));
 
         return ResponseEntity.ok()
                 .headers(headers)
-                .body(result.compressedData);
+                .body(body);
+    }
+    
+    @GetMapping("/codec-selection/stats")
+    public CodecSelector.SelectionStats codecSelectionStats() {
+        return codecSelector.stats();
+    }
+    
+    @GetMapping("/cache/stats")
+    public CompressionCache.CacheStats cacheStats() {
+        return compressionCache.stats();
+    }
+    
+    @GetMapping("/dictionaries")
+    public List<DictionaryService.DictionaryInfo> listDictionaries() {
+        return dictionaryService.list();
+    }
+    
+    @PostMapping("/dictionaries/{contentType}/train")
+    public ResponseEntity<DictionaryService.DictionaryInfo> trainDictionary(@PathVariable String contentType) {
+        try {
+            return ResponseEntity.ok(dictionaryService.trainFromRecent(contentType));
+        } catch (IOException e) {
+            // Too few or no recent uploads of this type
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    /**
+     * Stores the upload as a seekable archive, compressing it block by block
+     * unless it already is a blocked Huffman container.
+     */
+    @PostMapping("/archives")
+    public ResponseEntity<ArchiveService.ArchiveInfo> createArchive(@RequestParam("file") MultipartFile file) {
+        if (file.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            ArchiveService.ArchiveInfo archive = archiveService.create(file);
+            return ResponseEntity.created(URI.create("/api/archives/" + archive.id)).body(archive);
+        } catch (IOException e) {
+            // A blocked container whose header or index does not check out
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @GetMapping("/archives/{id}/info")
+    public ResponseEntity<ArchiveService.ArchiveInfo> archiveInfo(@PathVariable String id) throws IOException {
+        ArchiveService.ArchiveInfo archive = archiveService.info(id);
+        return archive != null ? ResponseEntity.ok(archive) : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Original content of an archive. A single byte range ({@code bytes=a-b},
+     * {@code bytes=a-} or the tail as {@code bytes=-n}) is answered with 206
+     * and decodes only the blocks it overlaps.
+     */
+    @GetMapping("/archives/{id}")
+    public ResponseEntity<StreamingResponseBody> readArchive(
+            @PathVariable String id,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader) throws IOException {
+        ArchiveService.ArchiveInfo archive = archiveService.info(id);
+        if (archive == null) {
+            return ResponseEntity.notFound().build();
+        }
+        long total = archive.originalLength;
+        
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        HttpStatus status = HttpStatus.OK;
+        long start = 0;
+        long end = total - 1;
+        if (rangeHeader != null) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+                // Several ranges would need a multipart body; sending everything instead is allowed
+                if (ranges.size() == 1) {
+                    start = ranges.get(0).getRangeStart(total);
+                    end = ranges.get(0).getRangeEnd(total);
+                    if (start >= total || start > end) {
+                        throw new IllegalArgumentException("Range starts past the end");
+                    }
+                    status = HttpStatus.PARTIAL_CONTENT;
+                    headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + total);
+                }
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + total)
+                        .build();
+            }
+        }
+        
+        long offset = start;
+        long length = end - start + 1;
+        headers.setContentLength(length);
+        StreamingResponseBody body = out -> {
+            try (HuffmanArchive huffmanArchive = archiveService.open(id)) {
+                huffmanArchive.read(offset, length, out);
+            }
+        };
+        return ResponseEntity.status(status)
+                .headers(headers)
+                .body(body);
+    }
+    
+    @DeleteMapping("/archives/{id}")
+    public ResponseEntity<Void> deleteArchive(@PathVariable String id) throws IOException {
+        return archiveService.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * Compresses many files, or the files of a single tar, tar.gz or zip
+     * upload, into one indexed batch archive; answers 201 with its entries.
+     */
+    @PostMapping("/batches")
+    public ResponseEntity<BatchArchiveService.BatchInfo> createBatch(@RequestParam("files") List<MultipartFile> files) {
+        if (files.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            BatchArchiveService.BatchInfo batch = batchArchiveService.create(files);
+            return ResponseEntity.created(URI.create("/api/batches/" + batch.id)).body(batch);
+        } catch (IOException e) {
+            // Over the limits, duplicate names or a broken tar or zip
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @GetMapping("/batches/{id}/info")
+    public ResponseEntity<BatchArchiveService.BatchInfo> batchInfo(@PathVariable String id) throws IOException {
+        BatchArchiveService.BatchInfo batch = batchArchiveService.info(id);
+        return batch != null ? ResponseEntity.ok(batch) : ResponseEntity.notFound().build();
+    }
+    
+    /**
+     * The whole archive, as stored.
+     */
+    @GetMapping("/batches/{id}")
+    public ResponseEntity<Resource> readBatch(@PathVariable String id) {
+        Path file = batchArchiveService.file(id);
+        if (file == null) {
+            return ResponseEntity.notFound().build();
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDispositionFormData("attachment", id + ".scb");
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(new FileSystemResource(file));
+    }
+    
+    /**
+     * One entry of a batch archive, decoded without reading the others.
+     */
+    @GetMapping("/batches/{id}/entry")
+    public ResponseEntity<StreamingResponseBody> readBatchEntry(@PathVariable String id,
+                                                                @RequestParam("name") String name) throws IOException {
+        if (batchArchiveService.entry(id, name) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        StreamingResponseBody body = out -> batchArchiveService.read(id, name, out);
+        
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDispositionFormData("attachment", name.substring(name.lastIndexOf('/') + 1));
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(body);
+    }
+    
+    @DeleteMapping("/batches/{id}")
+    public ResponseEntity<Void> deleteBatch(@PathVariable String id) throws IOException {
+        return batchArchiveService.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
     }
-} 
\ No newline at end of file
+}
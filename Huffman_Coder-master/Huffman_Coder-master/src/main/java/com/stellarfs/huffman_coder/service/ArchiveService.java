@@ -0,0 +1,129 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.HuffmanArchive;
+import com.stellarfs.huffman_coder.codec.HuffmanFormat;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Stored Huffman archives that can be read by byte range. Each archive is a
+ * blocked {@link HuffmanFormat} container named {@code <id>.huf} in the
+ * archive directory; uploads are compressed into one block by block, and
+ * uploads that already are blocked containers are stored as they are.
+ * <p>
+ * Smaller blocks make range reads cheaper at some cost in ratio, since every
+ * block carries its own code table and is decoded whole.
+ */
+@Service
+public class ArchiveService {
+
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private static final String SUFFIX = ".huf";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    private HuffmanService huffmanService;
+
+    @Value("${compression.archive.dir:archives}")
+    private String directory;
+
+    @Value("${compression.archive.block-size:262144}")
+    private int blockSize;
+
+    private Path archiveDirectory;
+
+    public static class ArchiveInfo {
+        public final String id;
+        public final long originalLength;
+        public final long compressedLength;
+        public final int blockSize;
+        public final int blockCount;
+
+        ArchiveInfo(String id, HuffmanArchive archive, long compressedLength) {
+            this.id = id;
+            this.originalLength = archive.length();
+            this.compressedLength = compressedLength;
+            this.blockSize = archive.blockSize();
+            this.blockCount = archive.blockCount();
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        archiveDirectory = Paths.get(directory);
+        Files.createDirectories(archiveDirectory);
+    }
+
+    public ArchiveInfo create(MultipartFile file) throws IOException {
+        String id = UUID.randomUUID().toString();
+        Path target = archiveDirectory.resolve(id + SUFFIX);
+        Path temp = archiveDirectory.resolve(id + SUFFIX + ".tmp");
+
+        byte[] start;
+        try (InputStream in = file.getInputStream()) {
+            start = in.readNBytes(6);
+        }
+        try {
+            if (HuffmanFormat.isBlocked(start)) {
+                file.transferTo(temp);
+            } else {
+                try (InputStream in = file.getInputStream();
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), STREAM_BUFFER_SIZE)) {
+                    huffmanService.compressBlocks(in, file.getSize(), blockSize, out);
+                }
+            }
+            // Opening reads the header and the whole index, which rejects a broken upload
+            HuffmanArchive.open(temp).close();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return info(id);
+    }
+
+    /**
+     * Summary of the archive, or null if there is no such archive.
+     */
+    public ArchiveInfo info(String id) throws IOException {
+        Path file = path(id);
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (HuffmanArchive archive = HuffmanArchive.open(file)) {
+            return new ArchiveInfo(id, archive, Files.size(file));
+        }
+    }
+
+    public HuffmanArchive open(String id) throws IOException {
+        Path file = path(id);
+        if (file == null) {
+            throw new NoSuchFileException(id);
+        }
+        return HuffmanArchive.open(file);
+    }
+
+    public boolean delete(String id) throws IOException {
+        Path file = path(id);
+        return file != null && Files.deleteIfExists(file);
+    }
+
+    // Ids come from the URL, so only well-formed ones may become a path
+    private Path path(String id) {
+        return ID.matcher(id).matches() ? archiveDirectory.resolve(id + SUFFIX) : null;
+    }
+}
@@ -0,0 +1,638 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import com.stellarfs.huffman_coder.codec.BatchArchive;
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import com.stellarfs.huffman_coder.codec.CodecFrame;
+import com.stellarfs.huffman_coder.codec.CodecFrame.Algorithm;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Compresses many files in one request into a {@link BatchArchive}. A single
+ * tar (optionally gzipped) or zip upload is unpacked into its files.
+ * <p>
+ * Files up to {@code compression.batch.shared-max-entry} bytes are grouped
+ * by content kind and extension. A group of at least
+ * {@code compression.batch.min-group} files gets a ZSTD dictionary and a
+ * static Huffman table trained on its members, which the archive stores
+ * once instead of every file carrying its own context. Whether the group
+ * keeps both, only the table or neither is decided by the total size.
+ * The grouped files are compressed in parallel on the compression executor
+ * while the request thread puts the others through smart compression, whose
+ * codec candidates use the executor in turn.
+ * <p>
+ * Archives are stored as {@code <id>.scb} in the archive directory, and any
+ * entry can be decoded on its own.
+ */
+@Service
+public class BatchArchiveService {
+
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private static final String SUFFIX = ".scb";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int MIN_DICTIONARY_SIZE = 1024;
+    // Content type of dictionaries that only live inside an archive
+    private static final String SHARED_TYPE = "batch";
+
+    @Autowired
+    private HybridCompressionService hybridCompressionService;
+
+    @Autowired
+    private HuffmanService huffmanService;
+
+    @Autowired
+    private CodecContextPool codecContextPool;
+
+    @Autowired
+    private ContentClassifier contentClassifier;
+
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+
+    @Autowired
+    @Qualifier("compressionExecutor")
+    private ExecutorService compressionExecutor;
+
+    @Value("${compression.archive.dir:archives}")
+    private String directory;
+
+    @Value("${compression.batch.max-entries:10000}")
+    private int maxEntries;
+
+    // Total size of the files, after unpacking a tar or zip
+    @Value("${compression.batch.max-bytes:268435456}")
+    private long maxBytes;
+
+    @Value("${compression.batch.shared-max-entry:131072}")
+    private int sharedMaxEntry;
+
+    @Value("${compression.batch.min-group:8}")
+    private int minGroup;
+
+    @Value("${compression.batch.dictionary-size:32768}")
+    private int dictionarySize;
+
+    @Value("${compression.batch.level:19}")
+    private int level;
+
+    private Path archiveDirectory;
+
+    public static class EntryInfo {
+        public final String name;
+        public final long originalLength;
+        public final long compressedLength;
+        public final String method;
+        // Coded with a dictionary shared by its group
+        public final boolean shared;
+
+        EntryInfo(BatchArchive.Entry entry, String method) {
+            this.name = entry.name;
+            this.originalLength = entry.originalLength;
+            this.compressedLength = entry.length;
+            this.method = method;
+            this.shared = entry.dictionary >= 0;
+        }
+    }
+
+    public static class BatchInfo {
+        public final String id;
+        public final long originalLength;
+        public final long compressedLength;
+        public final int dictionaryCount;
+        public final List<EntryInfo> entries;
+
+        BatchInfo(String id, long originalLength, long compressedLength, int dictionaryCount, List<EntryInfo> entries) {
+            this.id = id;
+            this.originalLength = originalLength;
+            this.compressedLength = compressedLength;
+            this.dictionaryCount = dictionaryCount;
+            this.entries = entries;
+        }
+    }
+
+    private static class Input {
+        final String name;
+        final byte[] data;
+
+        Input(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    // Frames of one grouped file, with and without each part of the shared dictionary
+    private static class Candidates {
+        byte[] withZstdDictionary;
+        byte[] withTable;
+        byte[] plain;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        archiveDirectory = Paths.get(directory);
+        Files.createDirectories(archiveDirectory);
+    }
+
+    public BatchInfo create(List<MultipartFile> files) throws IOException {
+        List<Input> inputs = unpack(files);
+        String id = UUID.randomUUID().toString();
+        Path target = archiveDirectory.resolve(id + SUFFIX);
+        Path temp = archiveDirectory.resolve(id + SUFFIX + ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), STREAM_BUFFER_SIZE)) {
+                write(inputs, out);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return info(id);
+    }
+
+    /**
+     * Summary of the archive and its entries, or null if there is no such
+     * archive.
+     */
+    public BatchInfo info(String id) throws IOException {
+        Path file = path(id);
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (BatchArchive archive = BatchArchive.open(file)) {
+            List<EntryInfo> entries = new ArrayList<>(archive.entries().size());
+            long originalLength = 0;
+            for (BatchArchive.Entry entry : archive.entries()) {
+                entries.add(entryInfo(archive, entry));
+                originalLength += entry.originalLength;
+            }
+            return new BatchInfo(id, originalLength, Files.size(file), archive.dictionaryCount(), entries);
+        }
+    }
+
+    /**
+     * Summary of one entry, or null if there is no such archive or entry.
+     */
+    public EntryInfo entry(String id, String name) throws IOException {
+        Path file = path(id);
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (BatchArchive archive = BatchArchive.open(file)) {
+            BatchArchive.Entry entry = archive.entry(name);
+            return entry != null ? entryInfo(archive, entry) : null;
+        }
+    }
+
+    private static EntryInfo entryInfo(BatchArchive archive, BatchArchive.Entry entry) throws IOException {
+        try (InputStream in = archive.frame(entry)) {
+            return new EntryInfo(entry, CodecFrame.read(new DataInputStream(in)).algorithm.name());
+        }
+    }
+
+    /**
+     * The stored archive file, or null if there is no such archive.
+     */
+    public Path file(String id) {
+        Path file = path(id);
+        return file != null && Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * Decodes one entry to {@code out}; no other entry is read.
+     *
+     * @throws NoSuchFileException if there is no such archive or entry
+     */
+    public void read(String id, String name, OutputStream out) throws IOException {
+        Path file = path(id);
+        if (file == null) {
+            throw new NoSuchFileException(id);
+        }
+        try (BatchArchive archive = BatchArchive.open(file)) {
+            BatchArchive.Entry entry = archive.entry(name);
+            if (entry == null) {
+                throw new NoSuchFileException(name);
+            }
+            // Only this entry's dictionary is decoded, and freed with the read
+            try (DictionaryService.Dictionary shared = entry.dictionary < 0 ? null
+                    : DictionaryService.Dictionary.forDecoding(SHARED_TYPE, archive.zstdDictionary(entry.dictionary),
+                            archive.huffmanLengths(entry.dictionary));
+                 InputStream in = archive.frame(entry)) {
+                hybridCompressionService.decompress(in, out, shared);
+            }
+        }
+    }
+
+    public boolean delete(String id) throws IOException {
+        Path file = path(id);
+        return file != null && Files.deleteIfExists(file);
+    }
+
+    private void write(List<Input> inputs, OutputStream out) throws IOException {
+        Map<String, List<Integer>> byKind = new LinkedHashMap<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            byte[] data = inputs.get(i).data;
+            if (data.length == 0 || data.length > sharedMaxEntry) {
+                continue;
+            }
+            ContentClassifier.Kind kind = contentClassifier.classify(data).kind;
+            if (kind == ContentClassifier.Kind.TEXT || kind == ContentClassifier.Kind.BINARY) {
+                byKind.computeIfAbsent(kind + "." + extension(inputs.get(i).name), key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<Group> groups = new ArrayList<>();
+        List<Future<Candidates>> futures = new ArrayList<>();
+        Map<Integer, Future<Candidates>> grouped = new LinkedHashMap<>();
+        try {
+            for (List<Integer> members : byKind.values()) {
+                if (members.size() >= minGroup) {
+                    Group group = train(inputs, members);
+                    groups.add(group);
+                    for (int i : members) {
+                        byte[] data = inputs.get(i).data;
+                        Future<Candidates> future = compressionExecutor.submit(() -> group.candidates(data));
+                        grouped.put(i, future);
+                        futures.add(future);
+                    }
+                }
+            }
+
+            byte[][] frames = new byte[inputs.size()][];
+            int[] dictionaries = new int[inputs.size()];
+            Arrays.fill(dictionaries, -1);
+            // Smart compression runs its own candidates on the executor, so it must not run there itself
+            for (int i = 0; i < inputs.size(); i++) {
+                if (!grouped.containsKey(i)) {
+                    frames[i] = hybridCompressionService.compress(inputs.get(i).data, inputs.get(i).name).compressedData;
+                }
+            }
+
+            BatchArchive.Writer writer = new BatchArchive.Writer(out);
+            for (Group group : groups) {
+                List<Candidates> candidates = new ArrayList<>();
+                for (int i : group.members) {
+                    candidates.add(get(grouped.get(i)));
+                }
+                group.choose(candidates, writer, frames, dictionaries);
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                writer.addEntry(inputs.get(i).name, frames[i], inputs.get(i).data.length, dictionaries[i]);
+                compressionMetrics.recordWinner("batch", CodecFrame.read(frames[i]).algorithm.name());
+                // The archive has it now
+                frames[i] = null;
+            }
+            writer.finish();
+        } finally {
+            for (Future<Candidates> future : futures) {
+                future.cancel(true);
+            }
+            // A cancelled task may still be compressing; its group frees the dictionary once it is done
+            for (Group group : groups) {
+                group.close();
+            }
+        }
+    }
+
+    /**
+     * Trains the shared dictionary of a group: a ZSTD dictionary when the
+     * samples allow one, and always a static Huffman table.
+     */
+    private Group train(List<Input> inputs, List<Integer> members) {
+        long total = 0;
+        for (int i : members) {
+            total += inputs.get(i).data.length;
+        }
+        long[] frequencies = new long[256];
+        for (int i : members) {
+            byte[] data = inputs.get(i).data;
+            ByteHistogram.add(frequencies, data, 0, data.length);
+        }
+        // A dictionary much larger than a tenth of the samples mostly holds noise
+        int size = (int) Math.min(dictionarySize, total / 10);
+        byte[] zstdDictionary = null;
+        if (size >= MIN_DICTIONARY_SIZE) {
+            ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(total, 100L * dictionarySize), size);
+            for (int i : members) {
+                if (!trainer.addSample(inputs.get(i).data)) {
+                    break;
+                }
+            }
+            try {
+                zstdDictionary = trainer.trainSamples();
+            } catch (ZstdException e) {
+                // Too few or too uniform samples: the table alone is shared
+            }
+        }
+        int[] lengths = huffmanService.staticCodeLengths(frequencies);
+        return new Group(members, zstdDictionary, lengths);
+    }
+
+    /**
+     * One batch's shared dictionary. Its ZSTD dictionary is used by this
+     * batch alone, so it gets no pooled contexts and is freed once the batch
+     * is written and the last compression using it has ended.
+     */
+    private class Group {
+        final List<Integer> members;
+        final byte[] zstdDictionary;
+        final int zstdId;
+        final ZstdDictCompress zstdCompress;
+        final int[] huffmanLengths;
+        final int huffmanTableId;
+        // Guarded by this
+        private int users;
+        private boolean closed;
+
+        Group(List<Integer> members, byte[] zstdDictionary, int[] huffmanLengths) {
+            this.members = members;
+            this.zstdDictionary = zstdDictionary;
+            this.zstdId = zstdDictionary == null ? 0 : (int) Zstd.getDictIdFromDict(zstdDictionary);
+            this.zstdCompress = zstdDictionary == null ? null : new ZstdDictCompress(zstdDictionary, level);
+            this.huffmanLengths = huffmanLengths;
+            this.huffmanTableId = DictionaryService.tableId(huffmanLengths);
+        }
+
+        private byte[] compressWithDictionary(byte[] data) throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    throw new InterruptedIOException("Batch already finished");
+                }
+                users++;
+            }
+            // The dictionary id is left out of the zstd frame; the frame header records it
+            try (ZstdCompressCtx ctx = new ZstdCompressCtx()) {
+                return ctx.loadDict(zstdCompress).setDictID(false).compress(data);
+            } finally {
+                synchronized (this) {
+                    if (--users == 0 && closed) {
+                        zstdCompress.close();
+                    }
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                if (users == 0 && zstdCompress != null) {
+                    zstdCompress.close();
+                }
+            }
+        }
+
+        Candidates candidates(byte[] data) throws IOException {
+            Candidates candidates = new Candidates();
+            candidates.plain = CodecFrame.wrap(Algorithm.ZSTD, level, data, codecContextPool.zstdCompress(data, level));
+            if (candidates.plain.length > data.length + CodecFrame.HEADER_SIZE) {
+                candidates.plain = CodecFrame.wrap(Algorithm.STORED, 0, data, data);
+            }
+            candidates.withTable = CodecFrame.wrap(Algorithm.HUFFMAN_STATIC, 0, huffmanTableId, data,
+                    huffmanService.encodeWithTable(data, huffmanLengths));
+            if (zstdCompress != null) {
+                candidates.withZstdDictionary = CodecFrame.wrap(Algorithm.ZSTD, level, zstdId, data,
+                        compressWithDictionary(data));
+            }
+            return candidates;
+        }
+
+        /**
+         * Picks whichever of the whole dictionary, the table alone or no
+         * dictionary makes the group smallest, stores that part of the
+         * dictionary and picks each member's frame accordingly.
+         */
+        void choose(List<Candidates> candidates, BatchArchive.Writer writer, byte[][] frames, int[] dictionaries)
+                throws IOException {
+            long whole = zstdDictionary == null ? Long.MAX_VALUE : zstdDictionary.length + BatchArchive.TABLE_SIZE;
+            long tableOnly = BatchArchive.TABLE_SIZE;
+            long none = 0;
+            for (Candidates candidate : candidates) {
+                if (zstdDictionary != null) {
+                    whole += Math.min(candidate.withZstdDictionary.length,
+                            Math.min(candidate.withTable.length, candidate.plain.length));
+                }
+                tableOnly += Math.min(candidate.withTable.length, candidate.plain.length);
+                none += candidate.plain.length;
+            }
+
+            boolean useZstd = whole < Math.min(tableOnly, none);
+            boolean useTable = useZstd || tableOnly < none;
+            int number = -1;
+            if (useTable) {
+                number = writer.addDictionary(useZstd ? zstdDictionary : null, huffmanLengths);
+            }
+            for (int k = 0; k < candidates.size(); k++) {
+                Candidates candidate = candidates.get(k);
+                byte[] best = candidate.plain;
+                if (useTable && candidate.withTable.length < best.length) {
+                    best = candidate.withTable;
+                }
+                if (useZstd && candidate.withZstdDictionary.length < best.length) {
+                    best = candidate.withZstdDictionary;
+                }
+                int i = members.get(k);
+                frames[i] = best;
+                dictionaries[i] = best == candidate.plain ? -1 : number;
+            }
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a batch");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compressing a batch entry failed", e.getCause());
+        }
+    }
+
+    /**
+     * The uploaded files, or the files inside a single tar, gzipped tar or
+     * zip upload.
+     */
+    private List<Input> unpack(List<MultipartFile> files) throws IOException {
+        Budget budget = new Budget();
+        List<Input> inputs = new ArrayList<>();
+        if (files.size() == 1) {
+            MultipartFile file = files.get(0);
+            byte[] data;
+            try (InputStream in = file.getInputStream()) {
+                data = budget.read(in);
+            }
+            String format = contentClassifier.classify(data).format;
+            if ("zip".equals(format)) {
+                readZip(data, budget, inputs);
+                return inputs;
+            }
+            byte[] tar = data;
+            if ("gzip".equals(format)) {
+                try {
+                    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                        tar = budget.read(in);
+                    }
+                } catch (IOException e) {
+                    // Corrupt or too large once inflated: kept as the single file it was uploaded as
+                    tar = data;
+                }
+            }
+            if (isTar(tar)) {
+                readTar(tar, budget, inputs);
+                return inputs;
+            }
+            budget.add(inputs, file.getOriginalFilename(), data);
+            return inputs;
+        }
+        for (MultipartFile file : files) {
+            try (InputStream in = file.getInputStream()) {
+                budget.add(inputs, file.getOriginalFilename(), budget.read(in));
+            }
+        }
+        return inputs;
+    }
+
+    private static void readZip(byte[] data, Budget budget, List<Input> inputs) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(data))) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                if (!entry.isDirectory()) {
+                    budget.add(inputs, entry.getName(), budget.read(zip));
+                }
+            }
+        }
+    }
+
+    // POSIX ustar, with GNU long names; other entry types are skipped
+    private static void readTar(byte[] tar, Budget budget, List<Input> inputs) throws IOException {
+        String longName = null;
+        for (int offset = 0; offset + TAR_BLOCK_SIZE <= tar.length; ) {
+            if (tar[offset] == 0) {
+                // End of archive
+                break;
+            }
+            String name = tarString(tar, offset, 100);
+            String prefix = tarString(tar, offset + 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            long size;
+            try {
+                size = Long.parseLong(tarString(tar, offset + 124, 12).trim(), 8);
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupted tar header at " + offset);
+            }
+            int contentStart = offset + TAR_BLOCK_SIZE;
+            if (size < 0 || contentStart + size > tar.length) {
+                throw new IOException("Truncated tar entry: " + name);
+            }
+            byte type = tar[offset + 156];
+            if (type == 'L') {
+                longName = tarString(tar, contentStart, (int) size);
+            } else {
+                if (type == '0' || type == 0) {
+                    budget.add(inputs, longName != null ? longName : name,
+                            Arrays.copyOfRange(tar, contentStart, contentStart + (int) size));
+                }
+                longName = null;
+            }
+            offset = contentStart + (int) ((size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE);
+        }
+    }
+
+    private static boolean isTar(byte[] data) {
+        return data.length >= TAR_BLOCK_SIZE
+                && new String(data, 257, 5, StandardCharsets.US_ASCII).equals("ustar");
+    }
+
+    // NUL-terminated or NUL-padded field
+    private static String tarString(byte[] tar, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && tar[end] != 0) {
+            end++;
+        }
+        return new String(tar, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Enforces the entry and byte limits while files are read, so an
+     * oversized upload or a zip bomb is rejected before it is held in full.
+     */
+    private class Budget {
+        long used;
+        final Set<String> names = new HashSet<>();
+
+        byte[] read(InputStream in) throws IOException {
+            byte[] data = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxBytes - used + 1));
+            if (used + data.length > maxBytes) {
+                throw new IOException("Batch larger than " + maxBytes + " bytes");
+            }
+            return data;
+        }
+
+        void add(List<Input> inputs, String name, byte[] data) throws IOException {
+            if (name == null || name.isEmpty()) {
+                throw new IOException("Entry without a name");
+            }
+            if (!names.add(name)) {
+                throw new IOException("Duplicate entry: " + name);
+            }
+            if (inputs.size() >= maxEntries) {
+                throw new IOException("Batch has more than " + maxEntries + " entries");
+            }
+            used += data.length;
+            inputs.add(new Input(name, data));
+        }
+    }
+
+    private static String extension(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        return dot > slash ? name.substring(dot + 1).toLowerCase() : "";
+    }
+
+    // Ids come from the URL, so only well-formed ones may become a path
+    private Path path(String id) {
+        return ID.matcher(id).matches() ? archiveDirectory.resolve(id + SUFFIX) : null;
+    }
+}
@@ -0,0 +1,270 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.github.luben.zstd.EndDirective;
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reusable native codec state. ZSTD contexts and Deflaters are kept per level,
+ * Inflaters per wrapping mode, each pool holding at most one idle instance
+ * per core. Borrowed instances are reset before they go back; instances that
+ * do not fit are freed right away instead of waiting for finalization.
+ */
+@Component
+public class CodecContextPool {
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    @Value("${compression.executor.threads:0}")
+    private int threads;
+
+    private final Map<Integer, Pool<ZstdCompressCtx>> zstdContexts = new ConcurrentHashMap<>();
+    private final Map<ZstdDictCompress, Pool<ZstdCompressCtx>> zstdDictContexts = new ConcurrentHashMap<>();
+    // Keyed by level and wrapping mode, see deflaterKey
+    private final Map<Integer, Pool<Deflater>> deflaters = new ConcurrentHashMap<>();
+    private final Map<Boolean, Pool<Inflater>> inflaters = new ConcurrentHashMap<>();
+
+    public byte[] zstdCompress(byte[] data, int level) {
+        Pool<ZstdCompressCtx> pool = zstdPool(level);
+        ZstdCompressCtx ctx = pool.borrow();
+        try {
+            return ctx.compress(data);
+        } finally {
+            pool.release(ctx);
+        }
+    }
+
+    /**
+     * Compresses with a trained dictionary, which also fixes the level. The
+     * dictionary id is left out of the zstd frame; the caller records it.
+     * Contexts stay pooled for as long as this component lives, so this is
+     * only for the dictionaries DictionaryService keeps, never for ones that
+     * are closed afterwards.
+     */
+    public byte[] zstdCompress(byte[] data, ZstdDictCompress dictionary) {
+        Pool<ZstdCompressCtx> pool = zstdDictContexts.computeIfAbsent(dictionary,
+                key -> new Pool<>(() -> new ZstdCompressCtx().loadDict(key).setDictID(false),
+                        ctx -> { },
+                        ZstdCompressCtx::close));
+        ZstdCompressCtx ctx = pool.borrow();
+        try {
+            return ctx.compress(data);
+        } finally {
+            pool.release(ctx);
+        }
+    }
+
+    /**
+     * Starts a zstd frame written to {@code target} from direct buffers, such
+     * as memory-mapped file regions, with a pooled context.
+     */
+    public DirectZstdStream zstdDirectStream(int level, WritableByteChannel target) {
+        return new DirectZstdStream(zstdPool(level), target);
+    }
+
+    /**
+     * Zstd encoder for data that arrives a piece at a time; {@code flush()}
+     * ends the current block so everything written so far can be decoded.
+     * Its buffers come from a shared recycling pool, and closing it closes
+     * {@code out}.
+     */
+    public OutputStream zstdCompressingStream(OutputStream out, int level) throws IOException {
+        return new ZstdOutputStreamNoFinalizer(out, RecyclingBufferPool.INSTANCE).setLevel(level);
+    }
+
+    /**
+     * Zstd decoder whose window buffers come from a shared recycling pool.
+     */
+    public InputStream zstdDecompressingStream(InputStream in) throws IOException {
+        return new ZstdInputStreamNoFinalizer(in, RecyclingBufferPool.INSTANCE);
+    }
+
+    public InputStream zstdDecompressingStream(InputStream in, ZstdDictDecompress dictionary) throws IOException {
+        return new ZstdInputStreamNoFinalizer(in, RecyclingBufferPool.INSTANCE).setDict(dictionary);
+    }
+
+    public byte[] deflate(byte[] data, int level, boolean nowrap) throws IOException {
+        Pool<Deflater> pool = deflaters.computeIfAbsent(deflaterKey(level, nowrap),
+                key -> new Pool<>(() -> new Deflater(level, nowrap), Deflater::reset, Deflater::end));
+        Deflater deflater = pool.borrow();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            // Closing the stream leaves a caller-supplied Deflater alone
+            DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater, STREAM_BUFFER_SIZE);
+            dos.write(data);
+            dos.finish();
+            return baos.toByteArray();
+        } finally {
+            pool.release(deflater);
+        }
+    }
+
+    /**
+     * Inflating stream over a pooled Inflater, which goes back to the pool
+     * when the stream is closed.
+     */
+    public InputStream inflatingStream(InputStream in, boolean nowrap) {
+        Pool<Inflater> pool = inflaters.computeIfAbsent(nowrap,
+                key -> new Pool<>(() -> new Inflater(key), Inflater::reset, Inflater::end));
+        Inflater inflater = pool.borrow();
+        return new InflaterInputStream(in, inflater, STREAM_BUFFER_SIZE) {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!released) {
+                        released = true;
+                        pool.release(inflater);
+                    }
+                }
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        zstdContexts.values().forEach(Pool::clear);
+        zstdDictContexts.values().forEach(Pool::clear);
+        deflaters.values().forEach(Pool::clear);
+        inflaters.values().forEach(Pool::clear);
+    }
+
+    private Pool<ZstdCompressCtx> zstdPool(int level) {
+        return zstdContexts.computeIfAbsent(level,
+                key -> new Pool<>(() -> new ZstdCompressCtx().setLevel(key),
+                        // reset() would also drop the level; every compress() starts a fresh frame anyway
+                        ctx -> { },
+                        ZstdCompressCtx::close));
+    }
+
+    private static int deflaterKey(int level, boolean nowrap) {
+        return level * 2 + (nowrap ? 1 : 0);
+    }
+
+    private int capacity() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * One zstd frame compressed from direct buffers into a channel through a
+     * direct staging buffer, so neither the input nor the output passes
+     * through the heap. Closing hands the context back to its pool once the
+     * frame is finished, and frees it if the frame was abandoned half-way.
+     */
+    public static class DirectZstdStream implements Closeable {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+
+        private final Pool<ZstdCompressCtx> pool;
+        private final ZstdCompressCtx ctx;
+        private final WritableByteChannel target;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(2 * STREAM_BUFFER_SIZE);
+        private boolean finished;
+
+        private DirectZstdStream(Pool<ZstdCompressCtx> pool, WritableByteChannel target) {
+            this.pool = pool;
+            this.ctx = pool.borrow();
+            this.target = target;
+        }
+
+        /**
+         * Compresses the remaining bytes of {@code src}, which must be direct.
+         */
+        public void write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                ctx.compressDirectByteBufferStream(buffer, src, EndDirective.CONTINUE);
+                drain();
+            }
+        }
+
+        public void finish() throws IOException {
+            boolean done;
+            do {
+                done = ctx.compressDirectByteBufferStream(buffer, EMPTY, EndDirective.END);
+                drain();
+            } while (!done);
+            finished = true;
+        }
+
+        @Override
+        public void close() {
+            if (finished) {
+                pool.release(ctx);
+            } else {
+                // Mid-frame state cannot be reset without losing the level
+                ctx.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private class Pool<T> {
+        private final BlockingQueue<T> idle = new ArrayBlockingQueue<>(capacity());
+        private final Supplier<T> factory;
+        private final Consumer<T> reset;
+        private final Consumer<T> free;
+
+        Pool(Supplier<T> factory, Consumer<T> reset, Consumer<T> free) {
+            this.factory = factory;
+            this.reset = reset;
+            this.free = free;
+        }
+
+        T borrow() {
+            T instance = idle.poll();
+            return instance != null ? instance : factory.get();
+        }
+
+        void release(T instance) {
+            try {
+                reset.accept(instance);
+            } catch (RuntimeException e) {
+                free.accept(instance);
+                return;
+            }
+            if (!idle.offer(instance)) {
+                free.accept(instance);
+            }
+        }
+
+        void clear() {
+            for (T instance; (instance = idle.poll()) != null; ) {
+                free.accept(instance);
+            }
+        }
+    }
+}
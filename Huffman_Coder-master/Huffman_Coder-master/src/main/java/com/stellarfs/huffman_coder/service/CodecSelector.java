@@ -0,0 +1,297 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Predicts the best codec for a payload from a few sampled windows instead of
+ * compressing the whole payload with every codec.
+ * <p>
+ * Each candidate compresses the same evenly spaced windows; the smallest
+ * total wins, except that a cheaper candidate within the level tolerance of
+ * the winner is preferred. Near-random data (by byte entropy) skips sampling
+ * and goes to the cheapest candidate. A fraction of decisions is audited in
+ * the background against the brute-force best on the start of the payload, so
+ * the hit rate can be tracked.
+ */
+@Component
+public class CodecSelector {
+
+    // Bits per byte above which the data is treated as incompressible
+    private static final double RANDOM_ENTROPY = 7.9;
+
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+
+    @Value("${compression.selection.sample-window:65536}")
+    private int sampleWindow;
+
+    @Value("${compression.selection.sample-count:4}")
+    private int sampleCount;
+
+    @Value("${compression.selection.level-tolerance:0.01}")
+    private double levelTolerance;
+
+    @Value("${compression.selection.audit-every:20}")
+    private int auditEvery;
+
+    // Audits code a copy of the payload's start, so queued audits pin a bounded amount of memory
+    @Value("${compression.selection.audit-bytes:4194304}")
+    private int auditBytes = 4 << 20;
+
+    private final AtomicLong decisions = new AtomicLong();
+    private final AtomicLong auditTickets = new AtomicLong();
+    private final AtomicLong audits = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong chosenBytes = new AtomicLong();
+    private final AtomicLong bestBytes = new AtomicLong();
+
+    // Audits are best-effort: one low-priority thread, excess work is dropped
+    private final ExecutorService auditExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(4),
+            runnable -> {
+                Thread thread = new Thread(runnable, "codec-selection-audit");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            },
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    @FunctionalInterface
+    public interface Codec {
+        byte[] compress(byte[] data) throws Exception;
+    }
+
+    public static class Candidate {
+        public final String algorithm;
+        public final int level;
+        // Relative CPU cost; only the order matters
+        public final int cost;
+        // Trained dictionary the codec uses, 0 for none
+        public final int dictionaryId;
+        public final Codec codec;
+
+        public Candidate(String algorithm, int level, int cost, Codec codec) {
+            this(algorithm, level, cost, 0, codec);
+        }
+
+        public Candidate(String algorithm, int level, int cost, int dictionaryId, Codec codec) {
+            this.algorithm = algorithm;
+            this.level = level;
+            this.cost = cost;
+            this.dictionaryId = dictionaryId;
+            this.codec = codec;
+        }
+
+        public String name() {
+            return algorithm + "-" + level + (dictionaryId != 0 ? "-dict" : "");
+        }
+    }
+
+    public static class SelectionStats {
+        public final long decisions;
+        public final long audits;
+        public final long matches;
+        public final double matchRate;
+        // Average extra output size of the predicted codec over the brute-force best
+        public final double sizeOverhead;
+
+        SelectionStats(long decisions, long audits, long matches, long chosenBytes, long bestBytes) {
+            this.decisions = decisions;
+            this.audits = audits;
+            this.matches = matches;
+            this.matchRate = audits > 0 ? (double) matches / audits : 0;
+            this.sizeOverhead = bestBytes > 0 ? (double) (chosenBytes - bestBytes) / bestBytes : 0;
+        }
+    }
+
+    /**
+     * Inputs this small are cheap enough to brute-force.
+     */
+    public boolean shouldSample(long length) {
+        return length > (long) sampleWindow * sampleCount * 2;
+    }
+
+    public Candidate choose(byte[] data, long[] histogram, List<Candidate> candidates) {
+        decisions.incrementAndGet();
+        Candidate cheapest = candidates.stream().min(Comparator.comparingInt(c -> c.cost)).orElseThrow();
+        if (entropy(histogram, data.length) >= RANDOM_ENTROPY) {
+            return cheapest;
+        }
+        return chooseOnSamples(sampleWindows(data), candidates, cheapest);
+    }
+
+    /**
+     * Same as {@link #choose(byte[], long[], List)} for a file, which is only
+     * read at the sampled windows; the entropy is estimated from those too.
+     */
+    public Candidate choose(FileChannel file, List<Candidate> candidates) throws IOException {
+        decisions.incrementAndGet();
+        Candidate cheapest = candidates.stream().min(Comparator.comparingInt(c -> c.cost)).orElseThrow();
+        List<byte[]> windows = sampleWindows(file);
+        long[] histogram = new long[256];
+        long total = 0;
+        for (byte[] window : windows) {
+            ByteHistogram.add(histogram, window, 0, window.length);
+            total += window.length;
+        }
+        if (entropy(histogram, total) >= RANDOM_ENTROPY) {
+            return cheapest;
+        }
+        return chooseOnSamples(windows, candidates, cheapest);
+    }
+
+    private Candidate chooseOnSamples(List<byte[]> windows, List<Candidate> candidates, Candidate cheapest) {
+        long[] sampledSizes = new long[candidates.size()];
+        for (int i = 0; i < candidates.size(); i++) {
+            Candidate candidate = candidates.get(i);
+            long size = 0;
+            for (byte[] window : windows) {
+                try {
+                    size += candidate.codec.compress(window).length;
+                } catch (Exception e) {
+                    compressionMetrics.fallback("selection.sample", e);
+                    size = Long.MAX_VALUE;
+                    break;
+                }
+            }
+            sampledSizes[i] = size;
+        }
+
+        long smallest = Long.MAX_VALUE;
+        for (long size : sampledSizes) {
+            smallest = Math.min(smallest, size);
+        }
+        if (smallest == Long.MAX_VALUE) {
+            return cheapest;
+        }
+        Candidate choice = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (sampledSizes[i] <= smallest * (1 + levelTolerance)
+                    && (choice == null || candidates.get(i).cost < choice.cost)) {
+                choice = candidates.get(i);
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * Every {@code audit-every}-th decision, compresses the first
+     * {@code audit-bytes} of the payload with every candidate in the
+     * background and records whether the prediction picked the smallest
+     * output.
+     */
+    public void maybeAudit(byte[] data, Candidate chosen, List<Candidate> candidates) {
+        if (auditEvery <= 0 || auditTickets.incrementAndGet() % auditEvery != 0) {
+            return;
+        }
+        byte[] sample = Arrays.copyOf(data, Math.min(data.length, auditBytes));
+        try {
+            auditExecutor.execute(() -> {
+                Candidate best = null;
+                long bestSize = Long.MAX_VALUE;
+                long chosenSize = Long.MAX_VALUE;
+                for (Candidate candidate : candidates) {
+                    try {
+                        long size = candidate.codec.compress(sample).length;
+                        if (candidate == chosen) {
+                            chosenSize = size;
+                        }
+                        if (size < bestSize) {
+                            bestSize = size;
+                            best = candidate;
+                        }
+                    } catch (Exception e) {
+                        // A failing codec cannot be the best
+                        compressionMetrics.fallback("selection.audit", e);
+                    }
+                }
+                if (best == null || chosenSize == Long.MAX_VALUE) {
+                    return;
+                }
+                audits.incrementAndGet();
+                if (best == chosen || chosenSize <= bestSize) {
+                    matches.incrementAndGet();
+                }
+                chosenBytes.addAndGet(chosenSize);
+                bestBytes.addAndGet(bestSize);
+            });
+        } catch (RejectedExecutionException ignored) {
+            // Shutting down
+        }
+    }
+
+    public SelectionStats stats() {
+        return new SelectionStats(decisions.get(), audits.get(), matches.get(), chosenBytes.get(), bestBytes.get());
+    }
+
+    /**
+     * Shannon entropy of the byte distribution in bits per byte.
+     */
+    public static double entropy(long[] histogram, long total) {
+        if (total == 0) {
+            return 0;
+        }
+        double entropy = 0;
+        for (long count : histogram) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private List<byte[]> sampleWindows(byte[] data) {
+        List<byte[]> windows = new ArrayList<>(sampleCount);
+        long stride = (data.length - sampleWindow) / Math.max(1, sampleCount - 1);
+        for (int i = 0; i < sampleCount; i++) {
+            int offset = (int) Math.min(i * stride, data.length - sampleWindow);
+            byte[] window = new byte[sampleWindow];
+            System.arraycopy(data, offset, window, 0, sampleWindow);
+            windows.add(window);
+        }
+        return windows;
+    }
+
+    private List<byte[]> sampleWindows(FileChannel file) throws IOException {
+        long length = file.size();
+        int size = (int) Math.min(sampleWindow, length);
+        List<byte[]> windows = new ArrayList<>(sampleCount);
+        long stride = (length - size) / Math.max(1, sampleCount - 1);
+        for (int i = 0; i < sampleCount; i++) {
+            long offset = Math.min(i * stride, length - size);
+            ByteBuffer window = ByteBuffer.allocate(size);
+            while (window.hasRemaining()) {
+                if (file.read(window, offset + window.position()) < 0) {
+                    throw new EOFException("File ended while sampling");
+                }
+            }
+            windows.add(window.array());
+        }
+        return windows;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        auditExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,234 @@
+package com.stellarfs.huffman_coder.service;
+
+import jakarta.annotation.PostConstruct;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Compression results keyed by an XXH64 hash of the input, its length and
+ * the compression mode, so a repeated upload costs one hash pass instead of
+ * another round of max-level codecs.
+ * <p>
+ * Results live in an LRU memory tier bounded by total bytes and, when a
+ * directory is configured, in a disk tier of one file per result that is
+ * bounded the same way. Disk hits are promoted back into memory.
+ */
+@Component
+public class CompressionCache {
+
+    private static final long SEED = 0x5346_4346L;
+    private static final String SUFFIX = ".scf";
+
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+    @Value("${compression.cache.memory-bytes:67108864}")
+    private long memoryBytes;
+
+    // Empty disables the disk tier
+    @Value("${compression.cache.dir:}")
+    private String directory;
+
+    @Value("${compression.cache.disk-bytes:1073741824}")
+    private long diskBytes;
+
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsed;
+    private long diskUsed;
+    private Path diskDirectory;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static class CacheStats {
+        public final long memoryHits;
+        public final long diskHits;
+        public final long misses;
+        public final long evictions;
+        public final double hitRate;
+        public final int memoryEntries;
+        public final long memoryBytes;
+        public final int diskEntries;
+        public final long diskBytes;
+
+        CacheStats(long memoryHits, long diskHits, long misses, long evictions,
+                   int memoryEntries, long memoryBytes, int diskEntries, long diskBytes) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            long lookups = memoryHits + diskHits + misses;
+            this.hitRate = lookups > 0 ? (double) (memoryHits + diskHits) / lookups : 0;
+            this.memoryEntries = memoryEntries;
+            this.memoryBytes = memoryBytes;
+            this.diskEntries = diskEntries;
+            this.diskBytes = diskBytes;
+        }
+    }
+
+    @PostConstruct
+    public void load() throws IOException {
+        if (directory.isEmpty()) {
+            return;
+        }
+        diskDirectory = Paths.get(directory);
+        Files.createDirectories(diskDirectory);
+
+        // Rebuild the LRU order from modification times, oldest first
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(diskDirectory)) {
+            listing.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        synchronized (disk) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long size = Files.size(file);
+                disk.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                diskUsed += size;
+            }
+            evictDisk();
+        }
+    }
+
+    /**
+     * Cache key for {@code data} compressed in {@code mode}; the mode must
+     * cover everything besides the content that changes the result.
+     */
+    public String key(byte[] data, String mode) {
+        long hash = HASH.hash(data, 0, data.length, SEED);
+        return String.format("%016x-%d-%s", hash, data.length, mode.replaceAll("[^A-Za-z0-9]", "_"));
+    }
+
+    public byte[] get(String key) {
+        synchronized (memory) {
+            byte[] cached = memory.get(key);
+            if (cached != null) {
+                memoryHits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        if (diskDirectory != null) {
+            boolean present;
+            synchronized (disk) {
+                present = disk.get(key) != null;
+            }
+            if (present) {
+                try {
+                    byte[] cached = Files.readAllBytes(diskDirectory.resolve(key + SUFFIX));
+                    diskHits.incrementAndGet();
+                    putInMemory(key, cached);
+                    return cached;
+                } catch (NoSuchFileException e) {
+                    removeFromDisk(key);
+                } catch (IOException e) {
+                    // Unreadable entries count as misses
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, byte[] result) {
+        putInMemory(key, result);
+        if (diskDirectory == null || result.length > diskBytes) {
+            return;
+        }
+        Path target = diskDirectory.resolve(key + SUFFIX);
+        Path temp = diskDirectory.resolve(key + SUFFIX + ".tmp");
+        try {
+            Files.write(temp, result);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The disk tier is best-effort
+            return;
+        }
+        synchronized (disk) {
+            Long previous = disk.put(key, (long) result.length);
+            diskUsed += result.length - (previous != null ? previous : 0);
+            evictDisk();
+        }
+    }
+
+    public CacheStats stats() {
+        int memoryEntries;
+        long memoryTotal;
+        synchronized (memory) {
+            memoryEntries = memory.size();
+            memoryTotal = memoryUsed;
+        }
+        int diskEntries;
+        long diskTotal;
+        synchronized (disk) {
+            diskEntries = disk.size();
+            diskTotal = diskUsed;
+        }
+        return new CacheStats(memoryHits.get(), diskHits.get(), misses.get(), evictions.get(),
+                memoryEntries, memoryTotal, diskEntries, diskTotal);
+    }
+
+    private void putInMemory(String key, byte[] result) {
+        // A single result may not crowd out most of the tier
+        if (result.length > memoryBytes / 4) {
+            return;
+        }
+        synchronized (memory) {
+            byte[] previous = memory.put(key, result);
+            memoryUsed += result.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> eldest = memory.values().iterator();
+            while (memoryUsed > memoryBytes && eldest.hasNext()) {
+                memoryUsed -= eldest.next().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void removeFromDisk(String key) {
+        synchronized (disk) {
+            Long size = disk.remove(key);
+            if (size != null) {
+                diskUsed -= size;
+            }
+        }
+    }
+
+    // Caller holds the disk lock
+    private void evictDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskUsed > diskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            try {
+                Files.deleteIfExists(diskDirectory.resolve(entry.getKey() + SUFFIX));
+            } catch (IOException e) {
+                // Forget it anyway; a stray file is picked up again on restart
+            }
+            diskUsed -= entry.getValue();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
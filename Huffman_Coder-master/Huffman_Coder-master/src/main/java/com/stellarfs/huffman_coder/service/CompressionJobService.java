@@ -0,0 +1,373 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.config.PriorityThreadPoolExecutor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Smart compression as asynchronous jobs, for uploads too large to hold a
+ * request thread for. Uploads are spooled to a temp file and queued by
+ * priority (higher first, then in submission order); a fixed number of
+ * workers compress them and write each result to a temp file, which is kept
+ * for {@code compression.jobs.retention-ms} after the job finishes.
+ * <p>
+ * Admission is bounded by the number of queued jobs and by the bytes of all
+ * queued and running jobs. A job that does not fit is rejected with an
+ * estimate of when to retry instead of being buffered. Job candidates run in
+ * the background on the shared codec pool, behind interactive requests.
+ */
+@Service
+public class CompressionJobService {
+
+    private static final String INPUT_SUFFIX = ".in";
+    private static final String OUTPUT_SUFFIX = ".out";
+    // Priorities outside this range are clamped, so no client can jump every other job by far
+    public static final int MIN_PRIORITY = -9;
+    public static final int MAX_PRIORITY = 9;
+
+    @Autowired
+    private HybridCompressionService hybridCompressionService;
+
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+
+    @Value("${compression.jobs.workers:1}")
+    private int workers;
+
+    @Value("${compression.jobs.max-queued:32}")
+    private int maxQueued;
+
+    // Input bytes of queued and running jobs; a running job below the mapped threshold holds several times that on the heap
+    @Value("${compression.jobs.max-bytes-in-flight:536870912}")
+    private long maxBytesInFlight;
+
+    // Jobs at least this large are compressed from memory-mapped files, without the cache and dictionaries
+    @Value("${compression.jobs.mapped-threshold:67108864}")
+    private long mappedThreshold;
+
+    // Empty means a directory under java.io.tmpdir
+    @Value("${compression.jobs.dir:}")
+    private String directory;
+
+    @Value("${compression.jobs.retention-ms:3600000}")
+    private long retentionMs;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Thread> workerThreads = new ArrayList<>();
+    // Finished jobs expire whether or not new ones arrive
+    private final ScheduledExecutorService purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "compression-job-purge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Path jobDirectory;
+
+    // Guarded by this
+    private int queued;
+    private int running;
+    private long bytesInFlight;
+    // Smoothed input bytes per second of finished jobs, 0 until the first one
+    private double throughput;
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    public static class JobStatus {
+        public final String id;
+        public final String fileName;
+        public final Status status;
+        public final int priority;
+        public final long originalSize;
+        public final long submittedAt;
+        // Set once the job is done
+        public final String method;
+        public final Long compressedSize;
+        public final Double compressionRatio;
+        // Set when the job failed
+        public final String error;
+
+        JobStatus(Job job) {
+            this.id = job.id;
+            this.fileName = job.fileName;
+            this.status = job.status;
+            this.priority = job.priority;
+            this.originalSize = job.size;
+            this.submittedAt = job.submittedAt;
+            HybridCompressionService.CompressionResult result = job.result;
+            this.method = result != null ? result.method : null;
+            this.compressedSize = result != null ? result.compressedSize : null;
+            this.compressionRatio = result != null ? result.compressionRatio : null;
+            this.error = job.error;
+        }
+    }
+
+    /**
+     * Thrown when a job cannot be admitted right now.
+     */
+    public static class QueueFullException extends Exception {
+        public final long retryAfterSeconds;
+
+        QueueFullException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        jobDirectory = directory.isEmpty()
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "huffman-jobs")
+                : Paths.get(directory);
+        Files.createDirectories(jobDirectory);
+        // Jobs do not survive a restart, so neither do their files
+        try (Stream<Path> files = Files.list(jobDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(INPUT_SUFFIX) || name.endsWith(OUTPUT_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        for (int i = 1; i <= Math.max(1, workers); i++) {
+            Thread thread = new Thread(this::work, "compression-job-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads.add(thread);
+        }
+
+        long purgeInterval = Math.max(1000, Math.min(retentionMs, 60_000));
+        purger.scheduleWithFixedDelay(this::purgeExpired, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+
+        compressionMetrics.gauge("compression.jobs.queued", this, service -> service.snapshot()[0]);
+        compressionMetrics.gauge("compression.jobs.running", this, service -> service.snapshot()[1]);
+        compressionMetrics.gauge("compression.jobs.bytes.in.flight", this, service -> service.snapshot()[2]);
+    }
+
+    /**
+     * Spools the upload to disk and queues it for compression. The priority
+     * is clamped to {@link #MIN_PRIORITY}..{@link #MAX_PRIORITY}.
+     */
+    public JobStatus submit(MultipartFile file, int priority) throws IOException, QueueFullException {
+        priority = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
+        long size = file.getSize();
+        synchronized (this) {
+            if (queued >= maxQueued) {
+                compressionMetrics.recordJobRejected("queue");
+                throw new QueueFullException("Job queue is full", retryAfterSeconds());
+            }
+            // A single oversized job is still admitted when nothing else is in flight
+            if (bytesInFlight > 0 && bytesInFlight + size > maxBytesInFlight) {
+                compressionMetrics.recordJobRejected("bytes");
+                throw new QueueFullException("Too many bytes in flight", retryAfterSeconds());
+            }
+            queued++;
+            bytesInFlight += size;
+        }
+
+        Job job = new Job(file.getOriginalFilename(), size, priority);
+        try {
+            file.transferTo(job.input);
+        } catch (IOException e) {
+            synchronized (this) {
+                queued--;
+                bytesInFlight -= size;
+            }
+            Files.deleteIfExists(job.input);
+            throw e;
+        }
+        jobs.put(job.id, job);
+        queue.add(job);
+        return new JobStatus(job);
+    }
+
+    /**
+     * Status of the job, or null if there is no such job.
+     */
+    public JobStatus status(String id) {
+        Job job = jobs.get(id);
+        return job != null ? new JobStatus(job) : null;
+    }
+
+    /**
+     * Result file of a finished job, or null if it is not done.
+     */
+    public Path result(String id) {
+        Job job = jobs.get(id);
+        return job != null && job.status == Status.DONE ? job.output : null;
+    }
+
+    /**
+     * Drops a queued or finished job and its files. Running jobs cannot be
+     * cancelled; returns false for those and for unknown ids.
+     */
+    public boolean delete(String id) throws IOException {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        if (queue.remove(job)) {
+            synchronized (this) {
+                queued--;
+                bytesInFlight -= job.size;
+            }
+        } else if (job.status != Status.DONE && job.status != Status.FAILED) {
+            return false;
+        }
+        jobs.remove(id);
+        Files.deleteIfExists(job.input);
+        Files.deleteIfExists(job.output);
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        purger.shutdownNow();
+        for (Thread thread : workerThreads) {
+            thread.interrupt();
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            run(job);
+        }
+    }
+
+    private void run(Job job) {
+        synchronized (this) {
+            queued--;
+            running++;
+        }
+        long started = System.nanoTime();
+        long waited = started - job.submittedNanos;
+        job.status = Status.RUNNING;
+        try {
+            HybridCompressionService.CompressionResult result;
+            if (job.size >= mappedThreshold) {
+                // Compressed straight from the spooled file instead of a heap copy of it
+                result = PriorityThreadPoolExecutor.inBackground(
+                        () -> hybridCompressionService.compress(job.input, job.output, job.fileName));
+            } else {
+                byte[] data = Files.readAllBytes(job.input);
+                result = PriorityThreadPoolExecutor.inBackground(
+                        () -> hybridCompressionService.compress(data, job.fileName));
+                Files.write(job.output, result.compressedData);
+            }
+            // Only the summary stays on the heap
+            job.result = new HybridCompressionService.CompressionResult(null, result.method,
+                    result.originalSize, result.compressedSize);
+            job.status = Status.DONE;
+        } catch (Exception e) {
+            job.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            job.status = Status.FAILED;
+        } finally {
+            try {
+                Files.deleteIfExists(job.input);
+            } catch (IOException ignored) {
+                // Removed with the rest of the directory on the next start
+            }
+            long elapsed = System.nanoTime() - started;
+            synchronized (this) {
+                running--;
+                bytesInFlight -= job.size;
+                if (job.status == Status.DONE && elapsed > 0) {
+                    double rate = job.size / (elapsed / 1e9);
+                    throughput = throughput == 0 ? rate : 0.7 * throughput + 0.3 * rate;
+                }
+            }
+            job.finishedAt = System.currentTimeMillis();
+            compressionMetrics.recordJob(job.status.name(), waited, elapsed);
+        }
+    }
+
+    /**
+     * Time until the work already admitted should be done, from the recent
+     * throughput of the workers; a minute while nothing has finished yet.
+     */
+    private long retryAfterSeconds() {
+        if (throughput == 0) {
+            return 60;
+        }
+        double seconds = bytesInFlight / (throughput * Math.max(1, workers));
+        return Math.max(1, Math.min(3600, (long) Math.ceil(seconds)));
+    }
+
+    private synchronized long[] snapshot() {
+        return new long[]{queued, running, bytesInFlight};
+    }
+
+    private void purgeExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        for (Job job : jobs.values()) {
+            if (job.finishedAt != 0 && job.finishedAt < cutoff) {
+                try {
+                    delete(job.id);
+                } catch (IOException ignored) {
+                    // Retried on the next purge
+                }
+            }
+        }
+    }
+
+    private class Job implements Comparable<Job> {
+        final String id = UUID.randomUUID().toString();
+        final String fileName;
+        final long size;
+        final int priority;
+        final long order = sequence.incrementAndGet();
+        final long submittedAt = System.currentTimeMillis();
+        final long submittedNanos = System.nanoTime();
+        final Path input;
+        final Path output;
+        volatile Status status = Status.QUEUED;
+        volatile HybridCompressionService.CompressionResult result;
+        volatile String error;
+        volatile long finishedAt;
+
+        Job(String fileName, long size, int priority) {
+            this.fileName = fileName;
+            this.size = size;
+            this.priority = priority;
+            this.input = jobDirectory.resolve(id + INPUT_SUFFIX);
+            this.output = jobDirectory.resolve(id + OUTPUT_SUFFIX);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
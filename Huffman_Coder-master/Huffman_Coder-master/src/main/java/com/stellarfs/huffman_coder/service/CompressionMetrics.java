@@ -0,0 +1,153 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.service.CodecSelector.Candidate;
+import com.stellarfs.huffman_coder.service.CodecSelector.Codec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters for the compression paths, exported through Actuator at
+ * {@code /actuator/metrics} and {@code /actuator/prometheus}:
+ * <ul>
+ *   <li>{@code compression.codec.compress} and {@code compression.codec.decompress}:
+ *       latency per codec (and level)</li>
+ *   <li>{@code compression.codec.bytes}: bytes in and out per codec and operation</li>
+ *   <li>{@code compression.codec.ratio}: output size over input size per codec</li>
+ *   <li>{@code compression.selection.winner}: codec picked per service</li>
+ *   <li>{@code compression.pdf.phase}: PDFBox load, clean-up and save time</li>
+ *   <li>{@code compression.fallback}: swallowed failures by stage and exception,
+ *       so a failing codec is told apart from one that merely did not help</li>
+ *   <li>{@code compression.jobs.*}: queue depth, bytes in flight, rejections,
+ *       and wait and run time of asynchronous jobs</li>
+ * </ul>
+ * Histogram buckets are configured with {@code management.metrics.distribution.*}.
+ */
+@Component
+public class CompressionMetrics {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    /**
+     * Runs a candidate codec and records its latency, bytes and ratio. A codec
+     * that throws is counted as a fallback and the exception is rethrown.
+     */
+    public byte[] timeCompress(Candidate candidate, byte[] data) throws Exception {
+        return timeCompress(candidate.algorithm, candidate.level, data, candidate.codec);
+    }
+
+    public byte[] timeCompress(String codec, int level, byte[] data, Codec compressor) throws Exception {
+        long start = System.nanoTime();
+        byte[] compressed;
+        try {
+            compressed = compressor.compress(data);
+        } catch (Exception e) {
+            fallback("codec." + codec, e);
+            throw e;
+        }
+        recordCompress(codec, level, System.nanoTime() - start, data.length, compressed.length);
+        return compressed;
+    }
+
+    /**
+     * Records a compression that did not go through {@link #timeCompress}, such
+     * as one streamed from a file.
+     */
+    public void recordCompress(String codec, int level, long nanos, long originalBytes, long compressedBytes) {
+        Timer.builder("compression.codec.compress")
+                .tag("codec", codec)
+                .tag("level", String.valueOf(level))
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        recordBytes(codec, "compress", originalBytes, compressedBytes);
+        if (originalBytes > 0) {
+            DistributionSummary.builder("compression.codec.ratio")
+                    .tag("codec", codec)
+                    .register(registry)
+                    .record((double) compressedBytes / originalBytes);
+        }
+    }
+
+    public void recordDecompress(String codec, long nanos, long compressedBytes, long originalBytes) {
+        Timer.builder("compression.codec.decompress")
+                .tag("codec", codec)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        recordBytes(codec, "decompress", compressedBytes, originalBytes);
+    }
+
+    /**
+     * Counts the codec a service settled on; STORED means nothing helped.
+     */
+    public void recordWinner(String service, String codec) {
+        Counter.builder("compression.selection.winner")
+                .tag("service", service)
+                .tag("codec", codec)
+                .register(registry)
+                .increment();
+    }
+
+    public void recordPdfPhase(String phase, long nanos) {
+        Timer.builder("compression.pdf.phase")
+                .tag("phase", phase)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts a failure that was swallowed in favour of a fallback result.
+     */
+    public void fallback(String stage, Throwable cause) {
+        Counter.builder("compression.fallback")
+                .tag("stage", stage)
+                .tag("exception", cause.getClass().getSimpleName())
+                .register(registry)
+                .increment();
+    }
+
+    public void recordJob(String outcome, long waitNanos, long runNanos) {
+        Timer.builder("compression.jobs.wait")
+                .register(registry)
+                .record(waitNanos, TimeUnit.NANOSECONDS);
+        Timer.builder("compression.jobs.run")
+                .tag("outcome", outcome)
+                .register(registry)
+                .record(runNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordJobRejected(String reason) {
+        Counter.builder("compression.jobs.rejected")
+                .tag("reason", reason)
+                .register(registry)
+                .increment();
+    }
+
+    public <T> void gauge(String name, T state, ToDoubleFunction<T> value) {
+        Gauge.builder(name, state, value).register(registry);
+    }
+
+    private void recordBytes(String codec, String operation, long in, long out) {
+        Counter.builder("compression.codec.bytes")
+                .baseUnit("bytes")
+                .tag("codec", codec)
+                .tag("operation", operation)
+                .tag("direction", "in")
+                .register(registry)
+                .increment(in);
+        Counter.builder("compression.codec.bytes")
+                .baseUnit("bytes")
+                .tag("codec", codec)
+                .tag("operation", operation)
+                .tag("direction", "out")
+                .register(registry)
+                .increment(out);
+    }
+}
@@ -0,0 +1,189 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Picks the compression pipeline from the content instead of the client's
+ * file name. Only the first {@code compression.classifier.sniff-bytes} are
+ * examined, in this order:
+ * <ol>
+ *   <li>magic bytes of PDF and of formats that are already compressed
+ *       (gzip, zip, zstd, xz, bzip2, 7z, rar, LZ4, PNG, JPEG, GIF, WebP, MP4, MP3)</li>
+ *   <li>valid UTF-8 without control characters other than whitespace: text</li>
+ *   <li>byte entropy at or above {@code compression.classifier.entropy-threshold}
+ *       bits per byte: treated as already compressed</li>
+ * </ol>
+ * Anything else is binary.
+ */
+@Component
+public class ContentClassifier {
+
+    @Value("${compression.classifier.sniff-bytes:4096}")
+    private int sniffBytes = 4096;
+
+    @Value("${compression.classifier.entropy-threshold:7.5}")
+    private double entropyThreshold = 7.5;
+
+    public enum Kind {
+        PDF, TEXT, BINARY,
+        // Compressed formats and high-entropy data: no codec will gain anything
+        COMPRESSED
+    }
+
+    public static class Classification {
+        public final Kind kind;
+        // Detected format, or "text", "binary" and "high-entropy" when none matched
+        public final String format;
+
+        Classification(Kind kind, String format) {
+            this.kind = kind;
+            this.format = format;
+        }
+    }
+
+    public Classification classify(byte[] data) {
+        int length = Math.min(data.length, sniffBytes);
+        return classify(data, length, length < data.length);
+    }
+
+    /**
+     * Classifies input of which only the first {@code length} bytes of
+     * {@code data} have arrived so far.
+     */
+    public Classification classify(byte[] data, int length) {
+        return classify(data, Math.min(length, sniffBytes), true);
+    }
+
+    /**
+     * Classifies a file by reading only its first bytes.
+     */
+    public Classification classify(Path file) throws IOException {
+        byte[] head;
+        try (InputStream in = Files.newInputStream(file)) {
+            head = in.readNBytes(sniffBytes);
+        }
+        // A full window may have cut the file anywhere
+        return classify(head, head.length, head.length == sniffBytes);
+    }
+
+    private Classification classify(byte[] data, int length, boolean truncated) {
+        String format = magic(data, length);
+        if (format != null) {
+            return new Classification("pdf".equals(format) ? Kind.PDF : Kind.COMPRESSED, format);
+        }
+        if (isText(data, length, truncated)) {
+            return new Classification(Kind.TEXT, "text");
+        }
+        if (CodecSelector.entropy(ByteHistogram.count(data, 0, length), length) >= entropyThreshold) {
+            return new Classification(Kind.COMPRESSED, "high-entropy");
+        }
+        return new Classification(Kind.BINARY, "binary");
+    }
+
+    private static String magic(byte[] data, int length) {
+        if (startsWith(data, length, 0, 0x25, 0x50, 0x44, 0x46)) return "pdf";
+        if (startsWith(data, length, 0, 0x1F, 0x8B)) return "gzip";
+        // Also docx, xlsx, jar and epub, whose entries are deflated
+        if (startsWith(data, length, 0, 0x50, 0x4B, 0x03, 0x04)) return "zip";
+        if (startsWith(data, length, 0, 0x28, 0xB5, 0x2F, 0xFD)) return "zstd";
+        if (startsWith(data, length, 0, 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00)) return "xz";
+        // "BZh", a block size digit, then the magic of the first block or of the end of the stream
+        if (startsWith(data, length, 0, 0x42, 0x5A, 0x68) && length > 3 && data[3] >= '1' && data[3] <= '9'
+                && (startsWith(data, length, 4, 0x31, 0x41, 0x59, 0x26, 0x53, 0x59)
+                || startsWith(data, length, 4, 0x17, 0x72, 0x45, 0x38, 0x50, 0x90))) return "bzip2";
+        if (startsWith(data, length, 0, 0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C)) return "7z";
+        if (startsWith(data, length, 0, 0x52, 0x61, 0x72, 0x21, 0x1A, 0x07)) return "rar";
+        if (startsWith(data, length, 0, 0x04, 0x22, 0x4D, 0x18)) return "lz4";
+        if (startsWith(data, length, 0, 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A)) return "png";
+        if (startsWith(data, length, 0, 0xFF, 0xD8, 0xFF)) return "jpeg";
+        if (startsWith(data, length, 0, 0x47, 0x49, 0x46, 0x38, 0x37, 0x61)
+                || startsWith(data, length, 0, 0x47, 0x49, 0x46, 0x38, 0x39, 0x61)) return "gif";
+        if (startsWith(data, length, 0, 0x52, 0x49, 0x46, 0x46) && startsWith(data, length, 8, 0x57, 0x45, 0x42, 0x50)) return "webp";
+        // An ftyp box is the first box and a few dozen bytes long, so its size starts with zero bytes
+        if (startsWith(data, length, 0, 0x00, 0x00) && startsWith(data, length, 4, 0x66, 0x74, 0x79, 0x70)) return "mp4";
+        // "ID3", major version 2 to 4, then a revision that is never 0xFF
+        if (startsWith(data, length, 0, 0x49, 0x44, 0x33) && length > 4
+                && data[3] >= 2 && data[3] <= 4 && data[4] != (byte) 0xFF) return "mp3";
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Valid UTF-8 without control characters other than whitespace. When the
+     * window was {@code truncated}, a sequence cut off at its end does not
+     * count against it.
+     */
+    private static boolean isText(byte[] data, int length, boolean truncated) {
+        if (length == 0) {
+            return false;
+        }
+        int i = 0;
+        while (i < length) {
+            int b = data[i] & 0xFF;
+            if (b < 0x80) {
+                if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' || b == 0x7F) {
+                    return false;
+                }
+                i++;
+                continue;
+            }
+            int continuation;
+            int min;
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+                min = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+                min = 0x800;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + continuation >= length) {
+                if (!truncated) {
+                    return false;
+                }
+                for (int k = i + 1; k < length; k++) {
+                    if ((data[k] & 0xC0) != 0x80) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            int codePoint = b & (0x3F >> continuation);
+            for (int k = 1; k <= continuation; k++) {
+                int c = data[i + k] & 0xFF;
+                if ((c & 0xC0) != 0x80) {
+                    return false;
+                }
+                codePoint = codePoint << 6 | (c & 0x3F);
+            }
+            // Overlong forms, surrogates and code points past U+10FFFF are invalid
+            if (codePoint < min || codePoint > 0x10FFFF || codePoint >= 0xD800 && codePoint <= 0xDFFF) {
+                return false;
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,359 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Trained dictionaries for small payloads, one line of versions per content
+ * type (the lower-case file extension). A version holds a ZSTD dictionary and
+ * a static Huffman code table trained on the same samples.
+ * <p>
+ * Versions are stored as {@code <type>-v<version>.zdict} and
+ * {@code <type>-v<version>.hufftable} in the dictionary directory and all of
+ * them are loaded at startup, so frames written with an older version still
+ * decode; the highest version is used for new data. Samples come from a
+ * corpus directory at startup or from recent uploads.
+ */
+@Service
+public class DictionaryService {
+
+    private static final Pattern CONTENT_TYPE = Pattern.compile("[a-z0-9]{1,16}");
+    private static final Pattern FILE_NAME = Pattern.compile("([a-z0-9]{1,16})-v(\\d{1,9})\\.zdict");
+
+    @Autowired
+    private HuffmanService huffmanService;
+
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+
+    @Value("${compression.dictionary.dir:dictionaries}")
+    private String directory;
+
+    // Files under this directory are grouped by extension and trained on at startup
+    @Value("${compression.dictionary.corpus-dir:}")
+    private String corpusDirectory;
+
+    @Value("${compression.dictionary.size:112640}")
+    private int dictionarySize;
+
+    @Value("${compression.dictionary.level:19}")
+    private int level;
+
+    // Dictionaries only pay off for payloads up to about this size
+    @Value("${compression.dictionary.max-payload:131072}")
+    private int maxPayload;
+
+    // Recent uploads kept per content type for retraining
+    @Value("${compression.dictionary.sample-bytes:8388608}")
+    private int sampleBytes;
+
+    // Content types sampled before they have a dictionary; the extension is client input,
+    // so only these and the types with a dictionary get a sample buffer
+    @Value("${compression.dictionary.sample-types:json,xml,csv,txt,log,html,js,css,md,yaml,yml,sql}")
+    private Set<String> sampleTypes;
+
+    private final Map<Integer, Dictionary> zstdDictionaries = new ConcurrentHashMap<>();
+    private final Map<Integer, Dictionary> huffmanTables = new ConcurrentHashMap<>();
+    private final Map<String, Dictionary> current = new ConcurrentHashMap<>();
+    private final Map<String, SampleBuffer> samples = new ConcurrentHashMap<>();
+
+    public static class Dictionary implements Closeable {
+        public final String contentType;
+        public final int version;
+        // 0 and null for a table without ZSTD dictionary, as batch archives may embed
+        public final int zstdId;
+        // Null as well for a decode-only dictionary
+        public final ZstdDictCompress zstdCompress;
+        public final ZstdDictDecompress zstdDecompress;
+        public final int huffmanTableId;
+        public final int[] huffmanLengths;
+
+        Dictionary(String contentType, int version, byte[] zstdDictionary, int compressionLevel, int[] huffmanLengths) {
+            this(contentType, version, zstdDictionary,
+                    zstdDictionary == null ? null : new ZstdDictCompress(zstdDictionary, compressionLevel),
+                    huffmanLengths);
+        }
+
+        private Dictionary(String contentType, int version, byte[] zstdDictionary, ZstdDictCompress zstdCompress,
+                           int[] huffmanLengths) {
+            this.contentType = contentType;
+            this.version = version;
+            this.zstdId = zstdDictionary == null ? 0 : (int) Zstd.getDictIdFromDict(zstdDictionary);
+            this.zstdCompress = zstdCompress;
+            this.zstdDecompress = zstdDictionary == null ? null : new ZstdDictDecompress(zstdDictionary);
+            this.huffmanTableId = tableId(huffmanLengths);
+            this.huffmanLengths = huffmanLengths;
+        }
+
+        /**
+         * Dictionary that only decodes, such as one embedded in a batch
+         * archive. Close it once its frames are read.
+         */
+        public static Dictionary forDecoding(String contentType, byte[] zstdDictionary, int[] huffmanLengths) {
+            return new Dictionary(contentType, 0, zstdDictionary, (ZstdDictCompress) null, huffmanLengths);
+        }
+
+        /**
+         * Frees the native dictionaries. Registered dictionaries live as long
+         * as the service and are never closed.
+         */
+        @Override
+        public void close() {
+            if (zstdCompress != null) {
+                zstdCompress.close();
+            }
+            if (zstdDecompress != null) {
+                zstdDecompress.close();
+            }
+        }
+    }
+
+    public static class DictionaryInfo {
+        public final String contentType;
+        public final int version;
+        public final long zstdId;
+        public final long huffmanTableId;
+        public final boolean current;
+
+        DictionaryInfo(Dictionary dictionary, boolean current) {
+            this.contentType = dictionary.contentType;
+            this.version = dictionary.version;
+            this.zstdId = Integer.toUnsignedLong(dictionary.zstdId);
+            this.huffmanTableId = Integer.toUnsignedLong(dictionary.huffmanTableId);
+            this.current = current;
+        }
+    }
+
+    @PostConstruct
+    public void load() throws IOException {
+        Path dir = Paths.get(directory);
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                    Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                    if (!matcher.matches()) {
+                        continue;
+                    }
+                    String contentType = matcher.group(1);
+                    int version = Integer.parseInt(matcher.group(2));
+                    Path table = dir.resolve(contentType + "-v" + version + ".hufftable");
+                    if (!Files.exists(table)) {
+                        continue;
+                    }
+                    register(new Dictionary(contentType, version, Files.readAllBytes(file), level,
+                            readTable(Files.readAllBytes(table))));
+                }
+            }
+        }
+
+        if (!corpusDirectory.isEmpty()) {
+            trainFromCorpus(Paths.get(corpusDirectory));
+        }
+    }
+
+    /**
+     * Current dictionary for the content type if there is one and the
+     * payload is small enough to benefit, otherwise null.
+     */
+    public Dictionary dictionaryFor(String contentType, int payloadLength) {
+        if (contentType == null || payloadLength > maxPayload) {
+            return null;
+        }
+        return current.get(contentType);
+    }
+
+    public ZstdDictDecompress zstdDictionary(int id) throws IOException {
+        Dictionary dictionary = zstdDictionaries.get(id);
+        if (dictionary == null) {
+            throw new IOException("Unknown ZSTD dictionary: " + Integer.toUnsignedString(id));
+        }
+        return dictionary.zstdDecompress;
+    }
+
+    public int[] huffmanTable(int id) throws IOException {
+        Dictionary dictionary = huffmanTables.get(id);
+        if (dictionary == null) {
+            throw new IOException("Unknown Huffman table: " + Integer.toUnsignedString(id));
+        }
+        return dictionary.huffmanLengths;
+    }
+
+    /**
+     * Keeps a small upload as a training sample; the oldest samples are
+     * dropped once the per-type budget is used up. Only content types in
+     * {@code sample-types} or with a dictionary are sampled, which bounds
+     * the number of buffers.
+     */
+    public void recordSample(String contentType, byte[] data) {
+        if (contentType == null || data.length == 0 || data.length > maxPayload
+                || !(sampleTypes.contains(contentType) || current.containsKey(contentType))) {
+            return;
+        }
+        samples.computeIfAbsent(contentType, key -> new SampleBuffer()).add(data);
+    }
+
+    /**
+     * Trains a new version for the content type from recent uploads.
+     */
+    public DictionaryInfo trainFromRecent(String contentType) throws IOException {
+        SampleBuffer buffer = samples.get(contentType);
+        if (buffer == null) {
+            throw new IOException("No samples recorded for " + contentType);
+        }
+        return new DictionaryInfo(train(contentType, buffer.snapshot()), true);
+    }
+
+    public List<DictionaryInfo> list() {
+        List<DictionaryInfo> infos = new ArrayList<>();
+        for (Dictionary dictionary : zstdDictionaries.values()) {
+            infos.add(new DictionaryInfo(dictionary, current.get(dictionary.contentType) == dictionary));
+        }
+        infos.sort(Comparator.comparing((DictionaryInfo info) -> info.contentType).thenComparingInt(info -> info.version));
+        return infos;
+    }
+
+    /**
+     * Trains a ZSTD dictionary and a static Huffman table on the samples,
+     * stores them as the next version and makes that version current.
+     */
+    public synchronized Dictionary train(String contentType, List<byte[]> trainingSamples) throws IOException {
+        if (!CONTENT_TYPE.matcher(contentType).matches()) {
+            throw new IOException("Invalid content type: " + contentType);
+        }
+
+        ZstdDictTrainer trainer = new ZstdDictTrainer(sampleBytes, dictionarySize);
+        long[] frequencies = new long[256];
+        for (byte[] sample : trainingSamples) {
+            if (!trainer.addSample(sample)) {
+                break;
+            }
+            ByteHistogram.add(frequencies, sample, 0, sample.length);
+        }
+        byte[] zstdDictionary;
+        try {
+            zstdDictionary = trainer.trainSamples();
+        } catch (ZstdException e) {
+            throw new IOException("Not enough samples to train a dictionary for " + contentType, e);
+        }
+        int[] lengths = huffmanService.staticCodeLengths(frequencies);
+
+        Dictionary previous = current.get(contentType);
+        int version = previous == null ? 1 : previous.version + 1;
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        // Table first: a dictionary file without its table is skipped on load
+        writeAtomically(dir.resolve(contentType + "-v" + version + ".hufftable"), writeTable(lengths));
+        writeAtomically(dir.resolve(contentType + "-v" + version + ".zdict"), zstdDictionary);
+
+        Dictionary dictionary = new Dictionary(contentType, version, zstdDictionary, level, lengths);
+        register(dictionary);
+        return dictionary;
+    }
+
+    private void trainFromCorpus(Path corpus) throws IOException {
+        Map<String, List<byte[]>> byType = new HashMap<>();
+        try (Stream<Path> files = Files.walk(corpus)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                String name = file.getFileName().toString().toLowerCase();
+                int dot = name.lastIndexOf('.');
+                String contentType = dot < 0 ? null : name.substring(dot + 1);
+                if (contentType != null && CONTENT_TYPE.matcher(contentType).matches()
+                        && !current.containsKey(contentType)) {
+                    byType.computeIfAbsent(contentType, key -> new ArrayList<>()).add(Files.readAllBytes(file));
+                }
+            }
+        }
+        for (Map.Entry<String, List<byte[]>> entry : byType.entrySet()) {
+            try {
+                train(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                // Too few or too uniform samples for this type: it goes without a dictionary
+                compressionMetrics.fallback("dictionary.train", e);
+            }
+        }
+    }
+
+    private void register(Dictionary dictionary) {
+        zstdDictionaries.put(dictionary.zstdId, dictionary);
+        huffmanTables.put(dictionary.huffmanTableId, dictionary);
+        current.merge(dictionary.contentType, dictionary,
+                (existing, added) -> added.version > existing.version ? added : existing);
+    }
+
+    static int tableId(int[] lengths) {
+        CRC32 crc = new CRC32();
+        crc.update(writeTable(lengths));
+        // 0 means "no dictionary" in a frame
+        return (int) crc.getValue() == 0 ? 1 : (int) crc.getValue();
+    }
+
+    private static byte[] writeTable(int[] lengths) {
+        byte[] table = new byte[256];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            table[symbol] = (byte) lengths[symbol];
+        }
+        return table;
+    }
+
+    private static int[] readTable(byte[] table) throws IOException {
+        if (table.length != 256) {
+            throw new IOException("Invalid Huffman table size: " + table.length);
+        }
+        int[] lengths = new int[256];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            lengths[symbol] = table[symbol] & 0xFF;
+        }
+        return lengths;
+    }
+
+    private static void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, content);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private class SampleBuffer {
+        private final Deque<byte[]> recent = new ArrayDeque<>();
+        private long totalBytes;
+
+        synchronized void add(byte[] sample) {
+            recent.addLast(sample.clone());
+            totalBytes += sample.length;
+            while (totalBytes > sampleBytes) {
+                totalBytes -= recent.removeFirst().length;
+            }
+        }
+
+        synchronized List<byte[]> snapshot() {
+            return new ArrayList<>(recent);
+        }
+    }
+}
@@ -1,19 +1,78 @@
 package com.stellarfs.huffman_coder.service;
 
+import com.stellarfs.huffman_coder.codec.BlockInputStream;
+import com.stellarfs.huffman_coder.codec.BlockOutputStream;
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import com.stellarfs.huffman_coder.codec.CanonicalHuffman;
+import com.stellarfs.huffman_coder.codec.HuffmanDecoder;
+import com.stellarfs.huffman_coder.codec.HuffmanEncoder;
+import com.stellarfs.huffman_coder.codec.HuffmanFormat;
+import com.stellarfs.huffman_coder.codec.LzHuffmanCoder;
+import com.stellarfs.huffman_coder.codec.RansCoder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 @Service
 public class HuffmanService {
 
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    // Inputs at least this large are split into blocks and coded in parallel
+    private static final int BLOCK_MODE_THRESHOLD = 4 * DEFAULT_BLOCK_SIZE;
+
+    private static final ObjectInputFilter LEGACY_HEADER_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=4;maxrefs=1024;maxarray=1024;maxbytes=65536;"
+                    + "java.util.HashMap;java.util.Map$Entry;java.lang.Byte;java.lang.Integer;java.lang.Number;!*");
+
+    // Short codes keep every code in the decoder's lookup tables and in one encoder word
+    @Value("${compression.huffman.max-code-length:15}")
+    private int maxCodeLength = 15;
+
+    // A one-symbol table has no payload, so a few header bytes can claim any length
+    @Value("${compression.huffman.max-decompressed-bytes:1073741824}")
+    private long maxDecompressedBytes = 1L << 30;
+
+    // Each rANS block carries its own frequency table, so it adapts per block
+    @Value("${compression.rans.block-size:262144}")
+    private int ransBlockSize = RansCoder.DEFAULT_BLOCK_SIZE;
+
+    // 1 follows a single match candidate, 9 searches as hard as Deflate's best level
+    @Value("${compression.lz.level:4}")
+    private int lzLevel = LzHuffmanCoder.DEFAULT_LEVEL;
+
+    @Value("${compression.lz.window-bits:18}")
+    private int lzWindowBits = LzHuffmanCoder.DEFAULT_WINDOW_BITS;
+
     private static class Node implements Comparable<Node> {
         byte data;
         int freq;
@@ -37,41 +96,640 @@ public class HuffmanService {
     }
 
     public byte[] compress(byte[] data) throws IOException {
-        Map<Byte, Integer> freqMap = getFrequencyMap(data);
-        Node root = buildHuffmanTree(freqMap);
-        Map<Byte, String> huffmanCodes = generateHuffmanCodes(root);
+        if (data.length >= BLOCK_MODE_THRESHOLD) {
+            return compressBlocks(data, DEFAULT_BLOCK_SIZE);
+        }
+
+        long[] frequencies = histogram(data);
+        int[] lengths = buildCodeLengths(frequencies);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        HuffmanFormat.Header header = new HuffmanFormat.Header(0, data.length, (int) crc.getValue(), lengths);
+
+        boolean hasPayload = header.symbolCount() > 1;
+        long dataLength = hasPayload ? (HuffmanEncoder.encodedBits(frequencies, lengths) + 7) / 8 : 0;
+        if (header.size() + dataLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Encoded data too large for a single array");
+        }
+
+        byte[] compressedData = new byte[(int) (header.size() + dataLength)];
+        header.write(new DataOutputStream(new ArrayOutputStream(compressedData)));
+
+        if (hasPayload) {
+            HuffmanEncoder encoder = new HuffmanEncoder(CanonicalHuffman.codesFromLengths(lengths), lengths);
+            encoder.reset(compressedData, header.size());
+            encoder.encode(data, 0, data.length);
+            encoder.finish();
+        }
+
+        return compressedData;
+    }
+
+    /**
+     * Byte frequencies of {@code data}, as used to build the code table.
+     */
+    public long[] histogram(byte[] data) {
+        return ByteHistogram.count(data);
+    }
+
+    /**
+     * Byte frequencies of the remaining bytes of {@code data}, which may be a
+     * direct or memory-mapped buffer. The position is left unchanged.
+     */
+    public long[] histogram(ByteBuffer data) {
+        return ByteHistogram.count(data);
+    }
 
-        StringBuilder encodedData = new StringBuilder();
-        for (byte b : data) {
-            encodedData.append(huffmanCodes.get(b));
+    /**
+     * Code lengths for a static table trained on {@code frequencies}. Every
+     * byte value gets a code, so the table can encode any input.
+     */
+    public int[] staticCodeLengths(long[] frequencies) {
+        long[] smoothed = new long[256];
+        for (int symbol = 0; symbol < 256; symbol++) {
+            smoothed[symbol] = frequencies[symbol] + 1;
         }
-        
-        int padding = 8 - (encodedData.length() % 8);
-        if (padding == 8) padding = 0;
+        return buildCodeLengths(smoothed);
+    }
+
+    /**
+     * Encodes {@code data} with a pre-shared code table. Only the payload is
+     * returned: the caller records the length and checksum.
+     */
+    public byte[] encodeWithTable(byte[] data, int[] lengths) throws IOException {
+        long[] frequencies = histogram(data);
+        for (int symbol = 0; symbol < 256; symbol++) {
+            if (frequencies[symbol] > 0 && lengths[symbol] == 0) {
+                throw new IOException("Code table has no code for byte " + symbol);
+            }
+        }
+        long payloadLength = (HuffmanEncoder.encodedBits(frequencies, lengths) + 7) / 8;
+        if (payloadLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Encoded data too large for a single array");
+        }
+        byte[] payload = new byte[(int) payloadLength];
+        HuffmanEncoder encoder = new HuffmanEncoder(CanonicalHuffman.codesFromLengths(lengths), lengths);
+        encoder.reset(payload, 0);
+        encoder.encode(data, 0, data.length);
+        encoder.finish();
+        return payload;
+    }
+
+    /**
+     * Streams {@code originalLength} bytes decoded with a pre-shared code
+     * table from {@code in} to {@code out}.
+     */
+    public void decodeWithTable(InputStream in, OutputStream out, int[] lengths, long originalLength)
+            throws IOException {
+        HuffmanDecoder decoder = HuffmanDecoder.forLengths(lengths);
+        decoder.reset(in, new byte[STREAM_BUFFER_SIZE]);
+        byte[] decoded = new byte[STREAM_BUFFER_SIZE];
+        for (long remaining = originalLength; remaining > 0; ) {
+            int count = (int) Math.min(remaining, decoded.length);
+            decoder.decode(decoded, 0, count);
+            if (decoder.overran()) {
+                throw new IOException("Corrupted bitstream: payload truncated");
+            }
+            out.write(decoded, 0, count);
+            remaining -= count;
+        }
+        out.flush();
+    }
+
+    /**
+     * Codes {@code data} with the order-0 rANS coder, which spends fractions
+     * of a bit on frequent bytes where Huffman rounds every code up to whole
+     * bits. Like {@link #encodeWithTable}, only the payload is returned.
+     */
+    public byte[] compressRans(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream encoder = ransEncodingStream(out)) {
+            encoder.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Single-pass counterpart of {@link #compressRans(byte[])}: bytes are
+     * coded a block at a time as they are written, and closing the stream
+     * ends the payload and closes {@code out}.
+     */
+    public OutputStream ransEncodingStream(OutputStream out) {
+        return new BlockOutputStream(out, new RansCoder(), ransBlockSize);
+    }
+
+    /**
+     * Decodes a payload of {@link #ransEncodingStream}, leaving any bytes
+     * after it unread.
+     */
+    public InputStream ransDecodingStream(InputStream in) {
+        return new BlockInputStream(in, new RansCoder());
+    }
+
+    /**
+     * Codes {@code data} with the LZ77 + Huffman coder at the configured
+     * level. Unlike order-0 Huffman it codes repeated strings as matches, with
+     * literals, lengths and distances in separate code tables. Only the
+     * payload is returned.
+     */
+    public byte[] compressLz(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream encoder = lzEncodingStream(out, lzLevel)) {
+            encoder.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    public int lzLevel() {
+        return lzLevel;
+    }
 
+    /**
+     * Single-pass LZ77 + Huffman coding at {@code level}, a block at a time
+     * as bytes are written. Closing the stream ends the payload and closes
+     * {@code out}.
+     */
+    public OutputStream lzEncodingStream(OutputStream out, int level) {
+        return new BlockOutputStream(out, new LzHuffmanCoder(level, lzWindowBits),
+                LzHuffmanCoder.blockSize(lzWindowBits));
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(freqMap);
-        oos.close();
+    /**
+     * Decodes a payload of {@link #lzEncodingStream}, leaving any bytes after
+     * it unread. Any level and window decode the same way.
+     */
+    public InputStream lzDecodingStream(InputStream in) {
+        return new BlockInputStream(in, new LzHuffmanCoder());
+    }
 
-        byte[] headerBytes = baos.toByteArray();
-        byte[] dataBytes = getBytesFromPaddedString(encodedData.toString());
+    /**
+     * Splits {@code data} into blocks of {@code blockSize} bytes and encodes
+     * each one with its own code table on the common {@link ForkJoinPool}.
+     * Blocks adapt to their local statistics, and the trailing index lets
+     * {@link #decompress(byte[])} decode them in parallel as well.
+     */
+    public byte[] compressBlocks(byte[] data, int blockSize) throws IOException {
+        if (blockSize <= 0 || blockSize > HuffmanFormat.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + HuffmanFormat.MAX_BLOCK_SIZE);
+        }
+        HuffmanFormat.Header header = HuffmanFormat.Header.forBlocks(data.length, blockSize);
+        int blockCount = header.blockCount();
+
+        List<Callable<EncodedBlock>> tasks = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            int offset = i * blockSize;
+            int length = Math.min(blockSize, data.length - offset);
+            tasks.add(() -> encodeBlock(data, offset, length));
+        }
+        List<EncodedBlock> blocks = invokeAll(tasks);
 
-        byte[] compressedData = new byte[headerBytes.length + 1 + dataBytes.length];
-        System.arraycopy(headerBytes, 0, compressedData, 0, headerBytes.length);
-        compressedData[headerBytes.length] = (byte) padding;
-        System.arraycopy(dataBytes, 0, compressedData, headerBytes.length + 1, dataBytes.length);
+        long totalLength = header.size() + (long) blockCount * HuffmanFormat.INDEX_ENTRY_SIZE + HuffmanFormat.FOOTER_SIZE;
+        for (EncodedBlock block : blocks) {
+            totalLength += block.section.length;
+        }
+        if (totalLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Encoded data too large for a single array");
+        }
+
+        byte[] compressedData = new byte[(int) totalLength];
+        header.write(new DataOutputStream(new ArrayOutputStream(compressedData)));
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] crcs = new int[blockCount];
+        int position = header.size();
+        for (int i = 0; i < blockCount; i++) {
+            EncodedBlock block = blocks.get(i);
+            System.arraycopy(block.section, 0, compressedData, position, block.section.length);
+            offsets[i] = position;
+            lengths[i] = block.section.length;
+            crcs[i] = block.crc;
+            position += block.section.length;
+        }
+        new HuffmanFormat.BlockIndex(offsets, lengths, crcs)
+                .write(new DataOutputStream(new ArrayOutputStream(compressedData, position)), position);
 
         return compressedData;
     }
 
+    /**
+     * Streaming counterpart of {@link #compressBlocks(byte[], int)} for inputs
+     * of any size: reads {@code length} bytes from {@code in} one batch of
+     * blocks at a time, encodes the batch in parallel and writes it out, so
+     * memory use is bounded by the batch. The output is the same container,
+     * whose index makes it readable at random by {@code HuffmanArchive}.
+     */
+    public void compressBlocks(InputStream in, long length, int blockSize, OutputStream out) throws IOException {
+        if (blockSize <= 0 || blockSize > HuffmanFormat.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + HuffmanFormat.MAX_BLOCK_SIZE);
+        }
+        HuffmanFormat.Header header = HuffmanFormat.Header.forBlocks(length, blockSize);
+        int blockCount = header.blockCount();
+        DataOutputStream dataOut = new DataOutputStream(out);
+        header.write(dataOut);
+
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] crcs = new int[blockCount];
+        long position = header.size();
+        long remaining = length;
+        int batch = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+        for (int first = 0; first < blockCount; first += batch) {
+            int count = Math.min(batch, blockCount - first);
+            List<Callable<EncodedBlock>> tasks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] block = in.readNBytes((int) Math.min(blockSize, remaining));
+                if (block.length < Math.min(blockSize, remaining)) {
+                    throw new IOException("Input ended before " + length + " bytes");
+                }
+                remaining -= block.length;
+                tasks.add(() -> encodeBlock(block, 0, block.length));
+            }
+            List<EncodedBlock> blocks = invokeAll(tasks);
+            for (int i = 0; i < count; i++) {
+                EncodedBlock block = blocks.get(i);
+                dataOut.write(block.section);
+                offsets[first + i] = position;
+                lengths[first + i] = block.section.length;
+                crcs[first + i] = block.crc;
+                position += block.section.length;
+            }
+        }
+        if (in.read() != -1) {
+            throw new IOException("Input is longer than " + length + " bytes");
+        }
+        new HuffmanFormat.BlockIndex(offsets, lengths, crcs).write(dataOut, position);
+        dataOut.flush();
+    }
+
+    /**
+     * Compresses the file at {@code source} into a blocked container at
+     * {@code target}, see {@link #compressBlocks(FileChannel, int, WritableByteChannel)}.
+     */
+    public void compress(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            compressBlocks(in, DEFAULT_BLOCK_SIZE, out);
+        }
+    }
+
+    /**
+     * File counterpart of {@link #compressBlocks(InputStream, long, int, OutputStream)}:
+     * each block is memory-mapped from {@code in} and coded straight from the
+     * mapping, so the input is never copied onto the heap and its size is not
+     * limited by it. Only the coded sections of one batch of blocks are held
+     * in memory. Reads {@code in} from its start to its current size.
+     */
+    public void compressBlocks(FileChannel in, int blockSize, WritableByteChannel out) throws IOException {
+        if (blockSize <= 0 || blockSize > HuffmanFormat.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + HuffmanFormat.MAX_BLOCK_SIZE);
+        }
+        long length = in.size();
+        HuffmanFormat.Header header = HuffmanFormat.Header.forBlocks(length, blockSize);
+        int blockCount = header.blockCount();
+        // Buffered so the header and the index do not go out a few bytes per write
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(out), STREAM_BUFFER_SIZE));
+        header.write(dataOut);
+
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] crcs = new int[blockCount];
+        long position = header.size();
+        int batch = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+        for (int first = 0; first < blockCount; first += batch) {
+            int count = Math.min(batch, blockCount - first);
+            List<Callable<EncodedBlock>> tasks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long blockStart = (long) (first + i) * blockSize;
+                ByteBuffer block = in.map(FileChannel.MapMode.READ_ONLY, blockStart,
+                        Math.min(blockSize, length - blockStart));
+                tasks.add(() -> encodeBlock(block));
+            }
+            List<EncodedBlock> blocks = invokeAll(tasks);
+            for (int i = 0; i < count; i++) {
+                EncodedBlock block = blocks.get(i);
+                dataOut.write(block.section);
+                offsets[first + i] = position;
+                lengths[first + i] = block.section.length;
+                crcs[first + i] = block.crc;
+                position += block.section.length;
+            }
+        }
+        if (in.size() != length) {
+            throw new IOException("Input changed while it was compressed");
+        }
+        new HuffmanFormat.BlockIndex(offsets, lengths, crcs).write(dataOut, position);
+        dataOut.flush();
+    }
+
+    /**
+     * Two-pass streaming compression. The first pass over {@code source}
+     * counts symbol frequencies and the CRC, the second pass encodes through
+     * fixed-size buffers, so memory use does not depend on the input size.
+     * {@code source} must hand out a fresh stream on each call, as a spooled
+     * {@code MultipartFile} or a file resource does.
+     */
+    public void compress(InputStreamSource source, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long[] frequencies = new long[256];
+        long originalLength = 0;
+        CRC32 crc = new CRC32();
+        try (InputStream in = source.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteHistogram.add(frequencies, buffer, 0, read);
+                crc.update(buffer, 0, read);
+                originalLength += read;
+            }
+        }
+
+        int[] lengths = buildCodeLengths(frequencies);
+        HuffmanFormat.Header header = new HuffmanFormat.Header(0, originalLength, (int) crc.getValue(), lengths);
+        header.write(new DataOutputStream(out));
+        if (header.symbolCount() <= 1) {
+            out.flush();
+            return;
+        }
+
+        int maxLength = 0;
+        for (int length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        byte[] encoded = new byte[STREAM_BUFFER_SIZE / 8 * maxLength + 16];
+        HuffmanEncoder encoder = new HuffmanEncoder(CanonicalHuffman.codesFromLengths(lengths), lengths);
+        encoder.reset(encoded, 0);
+        long encodedLength = 0;
+        try (InputStream in = source.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                encoder.encode(buffer, 0, read);
+                encoder.drain(out);
+                encodedLength += read;
+            }
+        }
+        if (encodedLength != originalLength) {
+            throw new IOException("Input changed between compression passes");
+        }
+        encoder.finish();
+        encoder.drain(out);
+        out.flush();
+    }
+
+    /**
+     * Streaming counterpart of {@link #decompress(byte[])}: decodes through
+     * fixed-size buffers and verifies the CRC once the stream ends. Legacy
+     * files have no length or checksum up front and are buffered whole.
+     */
+    public void decompress(InputStream in, OutputStream out) throws IOException, ClassNotFoundException {
+        PushbackInputStream input = new PushbackInputStream(in, 2);
+        byte[] start = input.readNBytes(2);
+        if (start.length == 0) {
+            throw new IOException("Empty compressed data");
+        }
+        input.unread(start);
+        if (HuffmanFormat.isLegacy(start)) {
+            out.write(decompressLegacy(input.readAllBytes()));
+            out.flush();
+            return;
+        }
+
+        HuffmanFormat.Header header;
+        try {
+            header = HuffmanFormat.Header.read(new DataInputStream(input));
+        } catch (EOFException e) {
+            throw new IOException("Truncated compressed data header");
+        }
+        // Nothing is buffered whole here, but the claimed length still has to be bounded before writing
+        checkDecompressedLength(header.originalLength, maxDecompressedBytes);
+
+        if (header.isBlocked()) {
+            decompressBlocks(new DataInputStream(input), header, out);
+            return;
+        }
+
+        HuffmanDecoder decoder = HuffmanDecoder.forLengths(header.lengths);
+        decoder.reset(input, new byte[STREAM_BUFFER_SIZE]);
+        byte[] decoded = new byte[STREAM_BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        for (long remaining = header.originalLength; remaining > 0; ) {
+            int count = (int) Math.min(remaining, decoded.length);
+            decoder.decode(decoded, 0, count);
+            if (decoder.overran()) {
+                throw new IOException("Corrupted bitstream: payload truncated");
+            }
+            crc.update(decoded, 0, count);
+            out.write(decoded, 0, count);
+            remaining -= count;
+        }
+        if ((int) crc.getValue() != header.crc) {
+            throw new IOException("Checksum mismatch: compressed data is corrupted");
+        }
+        out.flush();
+    }
+
     public byte[] decompress(byte[] data) throws IOException, ClassNotFoundException {
         if (data == null || data.length == 0) {
             throw new IOException("Empty compressed data");
         }
+        if (HuffmanFormat.isLegacy(data)) {
+            return decompressLegacy(data);
+        }
+        if (!HuffmanFormat.hasMagic(data)) {
+            throw new IOException("Unrecognized compressed data format");
+        }
+
+        HuffmanFormat.Header header;
+        try {
+            header = HuffmanFormat.Header.read(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (EOFException e) {
+            throw new IOException("Truncated compressed data header");
+        }
+        checkDecompressedLength(header.originalLength);
+        if (header.isBlocked()) {
+            return decompressBlocks(data, header);
+        }
+        // Every symbol of a table with two or more costs at least one bit
+        if (header.symbolCount() > 1 && header.originalLength > (long) (data.length - header.size()) * 8) {
+            throw new IOException("Corrupted bitstream: payload truncated");
+        }
+
+        byte[] decompressed = new byte[(int) header.originalLength];
+        int payloadOffset = header.size();
+        HuffmanDecoder decoder = HuffmanDecoder.forLengths(header.lengths);
+        decoder.reset(data, payloadOffset, data.length);
+        decoder.decode(decompressed, 0, decompressed.length);
+        if (decoder.consumedBits() > (long) (data.length - payloadOffset) * 8) {
+            throw new IOException("Corrupted bitstream: payload truncated");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(decompressed, 0, decompressed.length);
+        if ((int) crc.getValue() != header.crc) {
+            throw new IOException("Checksum mismatch: compressed data is corrupted");
+        }
+        return decompressed;
+    }
+
+    private byte[] decompressBlocks(byte[] data, HuffmanFormat.Header header) throws IOException {
+        HuffmanFormat.BlockIndex index = HuffmanFormat.BlockIndex.read(data);
+        int blockCount = header.blockCount();
+        if (index.blockCount() != blockCount) {
+            throw new IOException("Block index does not match the header");
+        }
+
+        byte[] decompressed = new byte[(int) header.originalLength];
+        List<Callable<Void>> tasks = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            int block = i;
+            int outOffset = block * header.blockSize;
+            int count = Math.min(header.blockSize, decompressed.length - outOffset);
+            tasks.add(() -> {
+                decodeBlock(data, (int) index.offsets[block], index.lengths[block],
+                        decompressed, outOffset, count, index.crcs[block]);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        return decompressed;
+    }
+
+    private void decompressBlocks(DataInputStream in, HuffmanFormat.Header header, OutputStream out)
+            throws IOException {
+        int blockCount = header.blockCount();
+        int[] crcs = new int[blockCount];
+        byte[] decoded = new byte[(int) Math.min(header.blockSize, header.originalLength)];
+        byte[] section = new byte[0];
+        long remaining = header.originalLength;
+        for (int i = 0; i < blockCount; i++) {
+            int payloadLength = in.readInt();
+            int[] lengths = HuffmanFormat.readLengthTable(in);
+            int count = (int) Math.min(header.blockSize, remaining);
+            if (payloadLength < 0 || payloadLength > maxPayloadLength(count)) {
+                throw new IOException("Corrupted block " + i + ": invalid payload length");
+            }
+            if (section.length < payloadLength) {
+                section = new byte[payloadLength];
+            }
+            in.readFully(section, 0, payloadLength);
+
+            HuffmanDecoder decoder = HuffmanDecoder.forLengths(lengths);
+            decoder.reset(section, 0, payloadLength);
+            decoder.decode(decoded, 0, count);
+            if (decoder.overran()) {
+                throw new IOException("Corrupted bitstream: payload truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(decoded, 0, count);
+            crcs[i] = (int) crc.getValue();
+            out.write(decoded, 0, count);
+            remaining -= count;
+        }
+
+        // The per-block checksums live in the trailing index
+        for (int i = 0; i < blockCount; i++) {
+            in.readLong();
+            in.readInt();
+            if (in.readInt() != crcs[i]) {
+                throw new IOException("Checksum mismatch in block " + i);
+            }
+        }
+        out.flush();
+    }
+
+    private EncodedBlock encodeBlock(byte[] data, int offset, int length) throws IOException {
+        return encodeBlock(ByteBuffer.wrap(data, offset, length));
+    }
+
+    private EncodedBlock encodeBlock(ByteBuffer block) throws IOException {
+        long[] frequencies = histogram(block);
+        int[] lengths = buildCodeLengths(frequencies);
+        boolean hasPayload = HuffmanFormat.symbolCount(lengths) > 1;
+        int payloadLength = hasPayload ? (int) ((HuffmanEncoder.encodedBits(frequencies, lengths) + 7) / 8) : 0;
+        int tableSize = HuffmanFormat.lengthTableSize(lengths);
+
+        byte[] section = new byte[4 + tableSize + payloadLength];
+        DataOutputStream sectionOut = new DataOutputStream(new ArrayOutputStream(section));
+        sectionOut.writeInt(payloadLength);
+        HuffmanFormat.writeLengthTable(sectionOut, lengths);
+        if (hasPayload) {
+            HuffmanEncoder encoder = new HuffmanEncoder(CanonicalHuffman.codesFromLengths(lengths), lengths);
+            encoder.reset(section, 4 + tableSize);
+            encoder.encode(block.duplicate());
+            encoder.finish();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block.duplicate());
+        return new EncodedBlock(section, (int) crc.getValue());
+    }
+
+    private void decodeBlock(byte[] data, int sectionOffset, int sectionLength,
+                             byte[] out, int outOffset, int count, int expectedCrc) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, sectionOffset, sectionLength));
+        int payloadLength = in.readInt();
+        int[] lengths = HuffmanFormat.readLengthTable(in);
+        int payloadOffset = sectionOffset + 4 + HuffmanFormat.lengthTableSize(lengths);
+        if (payloadLength < 0 || payloadOffset + (long) payloadLength != sectionOffset + (long) sectionLength) {
+            throw new IOException("Corrupted block at offset " + sectionOffset);
+        }
+
+        HuffmanDecoder decoder = HuffmanDecoder.forLengths(lengths);
+        decoder.reset(data, payloadOffset, payloadOffset + payloadLength);
+        decoder.decode(out, outOffset, count);
+        if (decoder.overran()) {
+            throw new IOException("Corrupted bitstream: payload truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out, outOffset, count);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Checksum mismatch in block at offset " + sectionOffset);
+        }
+    }
+
+    // Decoding to memory is also bounded by the largest array
+    private void checkDecompressedLength(long length) throws IOException {
+        checkDecompressedLength(length, Math.min(maxDecompressedBytes, Integer.MAX_VALUE - 8));
+    }
+
+    private static void checkDecompressedLength(long length, long limit) throws IOException {
+        if (length > limit) {
+            throw new IOException("Decompressed data too large: " + length + " bytes");
+        }
+    }
+
+    // A block never needs more than 56 bits per symbol plus a padding byte
+    private static long maxPayloadLength(int symbols) {
+        return (long) symbols * CanonicalHuffman.MAX_CODE_LENGTH / 8 + 1;
+    }
+
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while coding blocks");
+            } catch (ExecutionException e) {
+                // ForkJoinPool may wrap the task's exception in RuntimeExceptions
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                }
+                throw new IOException("Block coding failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private byte[] decompressLegacy(byte[] data) throws IOException, ClassNotFoundException {
         try (ByteArrayInputStream bais = new ByteArrayInputStream(data);
              ObjectInputStream ois = new ObjectInputStream(bais)) {
+            // Old headers are untrusted input: only let a HashMap<Byte, Integer> through
+            ois.setObjectInputFilter(LEGACY_HEADER_FILTER);
             @SuppressWarnings("unchecked")
             Map<Byte, Integer> freqMap = (Map<Byte, Integer>) ois.readObject();
 
@@ -90,59 +748,45 @@ public class HuffmanService {
                 return new byte[0];
             }
 
-            StringBuilder encodedData = new StringBuilder();
-            for (byte b : dataBytes) {
-                encodedData.append(String.format("%8s", Integer.toBinaryString(b & 0xFF)).replace(' ', '0'));
-            }
-
-            if (padding > 0) {
-                if (padding > encodedData.length()) {
-                    throw new IOException("Padding exceeds encoded data length");
-                }
-                encodedData.setLength(encodedData.length() - padding);
+            long originalLength = 0;
+            for (int freq : freqMap.values()) {
+                originalLength += freq;
             }
+            checkDecompressedLength(originalLength);
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            HuffmanDecoder decoder;
             if (root.isLeaf()) {
-                // Special case: only one unique byte in original data.
-                // There are no bits to traverse; however, without original length we cannot infer count.
-                // In current format we cannot recover length, so return zero-length to avoid NPEs.
-                return baos.toByteArray();
-            }
-
-            Node current = root;
-            for (int i = 0; i < encodedData.length(); i++) {
-                char c = encodedData.charAt(i);
-                if (c == '0') {
-                    if (current.left == null) {
-                        throw new IOException("Corrupted bitstream: unexpected '0'");
-                    }
-                    current = current.left;
-                } else {
-                    if (current.right == null) {
-                        throw new IOException("Corrupted bitstream: unexpected '1'");
-                    }
-                    current = current.right;
-                }
+                // Only one unique byte in the original data: no payload bits, the
+                // frequency table alone tells how many times it repeats
+                decoder = HuffmanDecoder.forSingleSymbol(root.data & 0xFF);
+            } else {
+                long[] codes = new long[256];
+                int[] lengths = new int[256];
+                generateHuffmanCodes(root, codes, lengths);
+                decoder = new HuffmanDecoder(codes, lengths);
+            }
 
-                if (current.isLeaf()) {
-                    baos.write(current.data);
-                    current = root;
-                }
+            byte[] decompressed = new byte[(int) originalLength];
+            decoder.reset(dataBytes, 0, dataBytes.length);
+            decoder.decode(decompressed, 0, decompressed.length);
+            if (decoder.consumedBits() > (long) dataBytes.length * 8 - padding) {
+                throw new IOException("Corrupted bitstream: payload truncated");
             }
 
-            return baos.toByteArray();
+            return decompressed;
         }
     }
 
-    private Map<Byte, Integer> getFrequencyMap(byte[] data) {
-        Map<Byte, Integer> freqMap = new HashMap<>();
-        for (byte b : data) {
-            freqMap.put(b, freqMap.getOrDefault(b, 0) + 1);
-        }
-        return freqMap;
+    /**
+     * Code lengths for the container header, capped at the configured length.
+     * A lone symbol is given length 1 so it shows up in the table; it is never
+     * written to the payload.
+     */
+    private int[] buildCodeLengths(long[] frequencies) {
+        return CanonicalHuffman.codeLengths(frequencies, maxCodeLength);
     }
 
+    // Only legacy files, whose codes depend on this exact tree, still build one
     private Node buildHuffmanTree(Map<Byte, Integer> freqMap) {
         PriorityQueue<Node> pq = new PriorityQueue<>();
         for (Map.Entry<Byte, Integer> entry : freqMap.entrySet()) {
@@ -159,34 +803,59 @@ public class HuffmanService {
         return pq.poll();
     }
 
-    private Map<Byte, String> generateHuffmanCodes(Node root) {
-        Map<Byte, String> huffmanCodes = new HashMap<>();
-        generateCodesRecursive(root, "", huffmanCodes);
-        return huffmanCodes;
+    private void generateHuffmanCodes(Node root, long[] codes, int[] lengths) {
+        generateCodesRecursive(root, 0L, 0, codes, lengths);
     }
 
-    private void generateCodesRecursive(Node node, String code, Map<Byte, String> huffmanCodes) {
+    private void generateCodesRecursive(Node node, long code, int length, long[] codes, int[] lengths) {
         if (node == null) {
             return;
         }
         if (node.isLeaf()) {
-            huffmanCodes.put(node.data, code);
+            codes[node.data & 0xFF] = code;
+            lengths[node.data & 0xFF] = length;
+            return;
         }
-        generateCodesRecursive(node.left, code + "0", huffmanCodes);
-        generateCodesRecursive(node.right, code + "1", huffmanCodes);
+        if (length >= 56) {
+            throw new IllegalStateException("Huffman code length exceeds 56 bits");
+        }
+        generateCodesRecursive(node.left, code << 1, length + 1, codes, lengths);
+        generateCodesRecursive(node.right, (code << 1) | 1, length + 1, codes, lengths);
     }
 
-    private byte[] getBytesFromPaddedString(String encodedData) {
-        StringBuilder paddedData = new StringBuilder(encodedData);
-        while (paddedData.length() % 8 != 0) {
-            paddedData.append('0');
+    private static class EncodedBlock {
+        final byte[] section;
+        final int crc;
+
+        EncodedBlock(byte[] section, int crc) {
+            this.section = section;
+            this.crc = crc;
+        }
+    }
+
+    // Writes into a pre-sized array without the copy ByteArrayOutputStream makes
+    private static class ArrayOutputStream extends OutputStream {
+        private final byte[] buffer;
+        private int position;
+
+        ArrayOutputStream(byte[] buffer) {
+            this(buffer, 0);
+        }
+
+        ArrayOutputStream(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for (int i = 0; i < paddedData.length(); i += 8) {
-            String byteString = paddedData.substring(i, i + 8);
-            baos.write((byte) Integer.parseInt(byteString, 2));
+        @Override
+        public void write(int b) {
+            buffer[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buffer, position, len);
+            position += len;
         }
-        return baos.toByteArray();
     }
-} 
\ No newline at end of file
+}
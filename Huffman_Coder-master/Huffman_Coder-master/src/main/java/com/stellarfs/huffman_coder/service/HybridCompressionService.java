@@ -1,9 +1,33 @@
 package com.stellarfs.huffman_coder.service;
 
+import com.stellarfs.huffman_coder.codec.ChunkedInputStream;
+import com.stellarfs.huffman_coder.codec.CodecFrame;
+import com.stellarfs.huffman_coder.codec.CodecFrame.Algorithm;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 @Service
 public class HybridCompressionService {
@@ -14,37 +38,306 @@ public class HybridCompressionService {
     @Autowired
     private ModernCompressionService modernCompressionService;
     
+    @Autowired
+    private DictionaryService dictionaryService;
+    
+    @Autowired
+    private ContentClassifier contentClassifier;
+    
+    @Autowired
+    private CompressionCache compressionCache;
+    
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+    
+    @Autowired
+    @Qualifier("compressionExecutor")
+    private ExecutorService compressionExecutor;
+    
+    @Value("${compression.candidates.deadline-ms:30000}")
+    private long deadlineMs;
+    
+    // rANS competes with Huffman and wins on skewed byte distributions
+    @Value("${compression.rans.enabled:true}")
+    private boolean ransEnabled;
+    
+    // LZ77 + Huffman replaces order-0 Huffman, which cannot code repeats
+    @Value("${compression.lz.enabled:true}")
+    private boolean lzEnabled;
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * Compresses with the best available codec. The result is always a
+     * {@link CodecFrame}, so {@link #decompress(InputStream, OutputStream)}
+     * can restore it whichever codec won. Repeated uploads are served from
+     * the {@link CompressionCache}.
+     */
     public CompressionResult compress(byte[] data, String fileName) throws IOException {
-        String fileType = getFileExtension(fileName);
+        // The extension picks the trained dictionaries, so it is part of the key
+        String key = compressionCache.key(data, "smart-" + getFileExtension(fileName));
+        byte[] cached = compressionCache.get(key);
+        if (cached != null && frames(cached, data)) {
+            return new CompressionResult(cached, methodOf(cached), data.length, cached.length);
+        }
+        
+        CompressionResult result = compressUncached(data, fileName);
+        compressionMetrics.recordWinner("hybrid", result.method);
+        compressionCache.put(key, result.compressedData);
+        return result;
+    }
+    
+    private CompressionResult compressUncached(byte[] data, String fileName) throws IOException {
         long originalSize = data.length;
+        ContentClassifier.Kind kind = contentClassifier.classify(data).kind;
+        
+        // Already compressed: neither Huffman nor the modern codecs are worth running
+        if (kind == ContentClassifier.Kind.COMPRESSED) {
+            byte[] stored = CodecFrame.wrap(Algorithm.STORED, 0, data, data);
+            return new CompressionResult(stored, Algorithm.STORED.name(), originalSize, stored.length);
+        }
         
         // For PDFs: Use modern compression (better for PDFs)
-        if ("pdf".equalsIgnoreCase(fileType)) {
+        if (kind == ContentClassifier.Kind.PDF) {
             byte[] compressed = modernCompressionService.compress(data, fileName);
-            return new CompressionResult(compressed, "MODERN", originalSize, compressed.length);
-        }
-        
-        // For text files: Try both Huffman and modern compression
-        if (isTextFile(fileType)) {
-            byte[] huffmanResult = huffmanService.compress(data);
-            byte[] modernResult = modernCompressionService.compress(data, fileName);
-            
-            if (huffmanResult.length < modernResult.length) {
-                return new CompressionResult(huffmanResult, "HUFFMAN", originalSize, huffmanResult.length);
-            } else {
-                return new CompressionResult(modernResult, "MODERN", originalSize, modernResult.length);
-            }
+            return new CompressionResult(compressed, methodOf(compressed), originalSize, compressed.length);
         }
         
-        // For other files: Try both and pick the best
-        byte[] huffmanResult = huffmanService.compress(data);
+        // For text and other files: Try both Huffman and modern compression, pick the best
+        return compressWithBoth(data, fileName);
+    }
+    
+    private CompressionResult compressWithBoth(byte[] data, String fileName) throws IOException {
+        long originalSize = data.length;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        
+        // The in-house coders run alongside the modern candidates instead of before them
+        Algorithm huffmanAlgorithm = lzEnabled ? Algorithm.LZ_HUFFMAN : Algorithm.HUFFMAN;
+        int huffmanLevel = lzEnabled ? huffmanService.lzLevel() : 0;
+        Callable<byte[]> huffmanTask = lzEnabled
+                ? () -> compressionMetrics.timeCompress(huffmanAlgorithm.name(), huffmanLevel, data, huffmanService::compressLz)
+                : () -> compressionMetrics.timeCompress(huffmanAlgorithm.name(), 0, data, huffmanService::compress);
+        Future<byte[]> huffmanFuture = compressionExecutor.submit(huffmanTask);
+        Future<byte[]> ransFuture = ransEnabled ? compressionExecutor.submit(
+                () -> compressionMetrics.timeCompress(Algorithm.RANS.name(), 0, data, huffmanService::compressRans))
+                : null;
         byte[] modernResult = modernCompressionService.compress(data, fileName);
         
-        if (huffmanResult.length < modernResult.length) {
-            return new CompressionResult(huffmanResult, "HUFFMAN", originalSize, huffmanResult.length);
+        byte[] huffmanResult = await(huffmanFuture, deadline, "hybrid.huffman");
+        byte[] ransResult = ransFuture != null ? await(ransFuture, deadline, "hybrid.rans") : null;
+        
+        byte[] best = modernResult;
+        // All are framed with the same header, so the payload sizes compare directly
+        if (huffmanResult != null && huffmanResult.length + CodecFrame.HEADER_SIZE < best.length) {
+            best = CodecFrame.wrap(huffmanAlgorithm, huffmanLevel, data, huffmanResult);
+        }
+        if (ransResult != null && ransResult.length + CodecFrame.HEADER_SIZE < best.length) {
+            best = CodecFrame.wrap(Algorithm.RANS, 0, data, ransResult);
+        }
+        
+        // A static table trained for this content type saves the per-file code table
+        DictionaryService.Dictionary dictionary = dictionaryService.dictionaryFor(getFileExtension(fileName), data.length);
+        if (dictionary != null) {
+            try {
+                byte[] staticHuffman = CodecFrame.wrap(Algorithm.HUFFMAN_STATIC, 0, dictionary.huffmanTableId, data,
+                        compressionMetrics.timeCompress(Algorithm.HUFFMAN_STATIC.name(), 0, data,
+                                d -> huffmanService.encodeWithTable(d, dictionary.huffmanLengths)));
+                if (staticHuffman.length < best.length) {
+                    best = staticHuffman;
+                }
+            } catch (Exception e) {
+                // A failing codec simply does not win; it was counted as a fallback
+            }
+        }
+        return new CompressionResult(best, methodOf(best), originalSize, best.length);
+    }
+    
+    /**
+     * Result of an in-house coder candidate, or null if it failed or missed
+     * the deadline, in which case the other results stand.
+     */
+    private byte[] await(Future<byte[]> future, long deadline, String stage) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The failure is already counted
+        } catch (TimeoutException e) {
+            compressionMetrics.fallback(stage, e);
+        } finally {
+            future.cancel(true);
+        }
+        return null;
+    }
+    
+    /**
+     * File counterpart of {@link #compress(byte[], String)} for inputs too large
+     * to copy onto the heap: the modern codecs and block-mode Huffman both
+     * read {@code source} through memory mappings, and the smaller frame ends
+     * up in {@code target}. Results are not cached and trained dictionaries
+     * are not tried, as both need the whole input in memory. The returned
+     * result carries no compressed data.
+     */
+    public CompressionResult compress(Path source, Path target, String fileName) throws IOException {
+        long originalSize = Files.size(source);
+        CodecFrame best = modernCompressionService.compress(source, target, fileName);
+        long compressedSize = Files.size(target);
+        
+        ContentClassifier.Kind kind = contentClassifier.classify(source).kind;
+        if (kind != ContentClassifier.Kind.PDF && kind != ContentClassifier.Kind.COMPRESSED) {
+            Path huffmanTarget = target.resolveSibling(target.getFileName() + ".huffman");
+            try {
+                long start = System.nanoTime();
+                // The modern pass already checksummed the input
+                CodecFrame frame = new CodecFrame(Algorithm.HUFFMAN, 0, best.originalLength, best.crc, 0);
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(huffmanTarget, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    out.write(ByteBuffer.wrap(frame.toBytes()));
+                    huffmanService.compressBlocks(in, HuffmanService.DEFAULT_BLOCK_SIZE, out);
+                }
+                long huffmanSize = Files.size(huffmanTarget);
+                compressionMetrics.recordCompress(Algorithm.HUFFMAN.name(), 0, System.nanoTime() - start,
+                        originalSize, huffmanSize - frame.size());
+                if (huffmanSize < compressedSize) {
+                    Files.move(huffmanTarget, target, StandardCopyOption.REPLACE_EXISTING);
+                    best = frame;
+                    compressedSize = huffmanSize;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Huffman failed: the modern result stands
+                compressionMetrics.fallback("hybrid.huffman", e);
+            } finally {
+                Files.deleteIfExists(huffmanTarget);
+            }
+        }
+        
+        compressionMetrics.recordWinner("hybrid", best.algorithm.name());
+        return new CompressionResult(null, best.algorithm.name(), originalSize, compressedSize);
+    }
+    
+    /**
+     * Restores the output of {@link #compress(byte[], String)} from a stream.
+     * The codec is taken from the frame header and the data is decoded through
+     * fixed-size buffers; length and checksum are verified once it ends. Also
+     * restores streamed frames from {@link StreamingCompressionService}.
+     */
+    public void decompress(InputStream source, OutputStream out) throws IOException {
+        decompress(source, out, null);
+    }
+    
+    /**
+     * Restores a frame that may name a dictionary carried alongside it, as
+     * in a batch archive, instead of a trained one.
+     */
+    public void decompress(InputStream source, OutputStream out, DictionaryService.Dictionary embedded)
+            throws IOException {
+        long start = System.nanoTime();
+        CountingInputStream in = new CountingInputStream(source);
+        CodecFrame frame;
+        try {
+            frame = CodecFrame.read(new DataInputStream(in));
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame header");
+        }
+        
+        // A streamed frame only states its length in the trailer
+        VerifyingOutputStream verified = new VerifyingOutputStream(out,
+                frame.streamed ? Long.MAX_VALUE : frame.originalLength);
+        if (frame.streamed) {
+            decodeStreamed(frame, in, verified, embedded);
+        } else if (frame.algorithm == Algorithm.HUFFMAN) {
+            try {
+                huffmanService.decompress(in, verified);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unsupported Huffman payload", e);
+            }
+        } else if (frame.algorithm == Algorithm.HUFFMAN_STATIC) {
+            int[] lengths = embedded != null && frame.dictionaryId == embedded.huffmanTableId
+                    ? embedded.huffmanLengths : dictionaryService.huffmanTable(frame.dictionaryId);
+            huffmanService.decodeWithTable(in, verified, lengths, frame.originalLength);
         } else {
-            return new CompressionResult(modernResult, "MODERN", originalSize, modernResult.length);
+            decodeModern(frame, in, verified, embedded);
+        }
+        
+        long originalLength = frame.originalLength;
+        int crc = frame.crc;
+        if (frame.streamed) {
+            try {
+                DataInputStream trailer = new DataInputStream(in);
+                originalLength = trailer.readLong();
+                crc = trailer.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Truncated frame trailer");
+            }
+        }
+        if (verified.count != originalLength) {
+            throw new IOException("Length mismatch: expected " + originalLength + " bytes, got " + verified.count);
+        }
+        if (verified.crc() != crc) {
+            throw new IOException("Checksum mismatch: compressed data is corrupted");
         }
+        out.flush();
+        compressionMetrics.recordDecompress(frame.algorithm.name(), System.nanoTime() - start, in.count, verified.count);
+    }
+    
+    private void decodeStreamed(CodecFrame frame, InputStream in, OutputStream verified,
+                                DictionaryService.Dictionary embedded) throws IOException {
+        if (frame.algorithm == Algorithm.HUFFMAN || frame.algorithm == Algorithm.HUFFMAN_STATIC) {
+            throw new IOException("No streaming mode for " + frame.algorithm);
+        }
+        ChunkedInputStream chunks = new ChunkedInputStream(in);
+        decodeModern(frame, chunks, verified, embedded);
+        // The codec may stop before the end marker, which must come right after its output
+        if (chunks.read() != -1) {
+            throw new IOException("Unexpected data after the compressed payload");
+        }
+    }
+    
+    private void decodeModern(CodecFrame frame, InputStream in, OutputStream verified,
+                              DictionaryService.Dictionary embedded) throws IOException {
+        // Closing the decoder hands its native state back right away
+        try (InputStream decoded = decodingStream(frame, in, embedded)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (int n; (n = decoded.read(buffer)) != -1; ) {
+                verified.write(buffer, 0, n);
+            }
+        }
+    }
+    
+    // The block coders decode as streams like the modern codecs, but live in the HuffmanService
+    private InputStream decodingStream(CodecFrame frame, InputStream in, DictionaryService.Dictionary embedded)
+            throws IOException {
+        switch (frame.algorithm) {
+            case RANS:
+                return huffmanService.ransDecodingStream(in);
+            case LZ_HUFFMAN:
+                return huffmanService.lzDecodingStream(in);
+            default:
+                return modernCompressionService.decompressingStream(frame, in, embedded);
+        }
+    }
+    
+    /**
+     * True if {@code framed} is a frame of {@code data} by its length and
+     * CRC-32. The cache key is a hash with a public seed, so a colliding
+     * entry must not be served as this upload's frame.
+     */
+    private static boolean frames(byte[] framed, byte[] data) {
+        CodecFrame frame;
+        try {
+            frame = CodecFrame.read(framed);
+        } catch (IOException e) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return !frame.streamed && frame.originalLength == data.length && frame.crc == (int) crc.getValue();
+    }
+    
+    private String methodOf(byte[] framed) throws IOException {
+        return CodecFrame.read(framed).algorithm.name();
     }
     
     private String getFileExtension(String fileName) {
@@ -53,9 +346,82 @@ public class HybridCompressionService {
         }
         return fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
     }
+
+    
+    /**
+     * Counts the compressed bytes a decoder consumed.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+        
+        @Override
+        public boolean markSupported() {
+            // A reset would count the same bytes twice
+            return false;
+        }
+    }
     
-    private boolean isTextFile(String fileType) {
-        return java.util.Arrays.asList("txt", "csv", "log", "json", "xml", "html", "css", "js", "java", "py", "cpp", "c", "h").contains(fileType);
+    /**
+     * Counts and checksums what passes through, and refuses to write past the
+     * expected length so a corrupted frame cannot expand without bound.
+     */
+    private static class VerifyingOutputStream extends FilterOutputStream {
+        private final long expected;
+        private final CRC32 crc = new CRC32();
+        long count;
+        
+        VerifyingOutputStream(OutputStream out, long expected) {
+            super(out);
+            this.expected = expected;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count + len > expected) {
+                throw new IOException("Length mismatch: data exceeds the " + expected + " bytes in the frame header");
+            }
+            crc.update(b, off, len);
+            count += len;
+            out.write(b, off, len);
+        }
+        
+        int crc() {
+            return (int) crc.getValue();
+        }
     }
     
     public static class CompressionResult {
@@ -1,25 +1,82 @@
 package com.stellarfs.huffman_coder.service;
 
 import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.decoder.BrotliInputStream;
 import com.aayushatharva.brotli4j.encoder.Encoder;
-import com.github.luben.zstd.Zstd;
-import net.jpountz.lz4.LZ4Factory;
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import com.stellarfs.huffman_coder.codec.CodecFrame;
+import com.stellarfs.huffman_coder.codec.CodecFrame.Algorithm;
+import com.stellarfs.huffman_coder.service.CodecSelector.Candidate;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 @Service
 public class ModernCompressionService {
     
+    // Files are mapped and handed to the codecs this much at a time
+    private static final int MAPPED_CHUNK_SIZE = 64 << 20;
+    private static final int STAGING_BUFFER_SIZE = 64 * 1024;
+    
     @Autowired
     private PDFCompressionService pdfCompressionService;
     
+    @Autowired
+    private CodecSelector codecSelector;
+    
+    @Autowired
+    private ContentClassifier contentClassifier;
+    
+    @Autowired
+    private CodecContextPool codecContextPool;
+    
+    @Autowired
+    private DictionaryService dictionaryService;
+    
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+    
+    @Autowired
+    @Qualifier("compressionExecutor")
+    private ExecutorService compressionExecutor;
+    
+    // Wall-clock budget for all candidates of one request
+    @Value("${compression.candidates.deadline-ms:30000}")
+    private long deadlineMs;
+    
+    // Stop waiting for slower codecs once a result is at most this fraction of the input
+    @Value("${compression.candidates.ratio-target:0.25}")
+    private double ratioTarget;
+    
+    // "sampled" predicts one codec from sampled windows, "exhaustive" runs them all
+    @Value("${compression.selection.mode:sampled}")
+    private String selectionMode;
+    
     static {
         // Initialize Brotli
         try {
@@ -29,53 +86,161 @@ public class ModernCompressionService {
         }
     }
     
+    /**
+     * Compresses with the best codec for the file and returns the result as a
+     * {@link CodecFrame}, which {@link #decompressingStream} can decode.
+     */
     public byte[] compress(byte[] data, String fileName) throws IOException {
         String fileType = getFileExtension(fileName);
+        ContentClassifier.Kind kind = contentClassifier.classify(data).kind;
+        
+        // Already compressed or random-looking: no codec would gain anything
+        if (kind == ContentClassifier.Kind.COMPRESSED) {
+            compressionMetrics.recordWinner("modern", Algorithm.STORED.name());
+            return CodecFrame.wrap(Algorithm.STORED, 0, data, data);
+        }
         
         // For PDFs: Use PDF-specific optimization + modern compression
-        if ("pdf".equalsIgnoreCase(fileType) || pdfCompressionService.isPDF(data)) {
+        if (kind == ContentClassifier.Kind.PDF) {
             try {
                 return compressPDF(data);
             } catch (Exception e) {
-                // Fallback: return original data on any PDF pipeline error
-                return data;
+                // Fallback: store original data on any PDF pipeline error
+                compressionMetrics.fallback("pdf.pipeline", e);
+                return CodecFrame.wrap(Algorithm.STORED, 0, data, data);
             }
         }
         
-        // For text files: Try both Huffman and modern compression
-        if (isTextFile(fileType)) {
-            return compressText(data);
+        // For text: trained dictionaries are tried as well
+        if (kind == ContentClassifier.Kind.TEXT) {
+            return compressText(data, fileType);
         }
         
         // For other files: Use modern compression
         return compressBinary(data);
     }
     
+    /**
+     * File counterpart of {@link #compress(byte[], String)} for inputs too large
+     * to copy onto the heap. The codec is predicted from sampled windows of the
+     * file, which is then memory-mapped chunk by chunk and compressed straight
+     * from the mappings into {@code target}. When that gains nothing the file
+     * is stored with {@link FileChannel#transferTo}, as are files the
+     * {@link ContentClassifier} finds already compressed. PDFs, which PDFBox
+     * loads whole anyway, and files too small to sample take the in-memory path.
+     * Returns the header of the frame written to {@code target}.
+     */
+    public CodecFrame compress(Path source, Path target, String fileName) throws IOException {
+        long length = Files.size(source);
+        ContentClassifier.Kind kind = contentClassifier.classify(source).kind;
+        if (length <= Integer.MAX_VALUE - 8 && (!codecSelector.shouldSample(length) || kind == ContentClassifier.Kind.PDF)) {
+            byte[] framed = compress(Files.readAllBytes(source), fileName);
+            Files.write(target, framed);
+            return CodecFrame.read(framed);
+        }
+        
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            int crc = checksum(in, length);
+            Algorithm algorithm = Algorithm.STORED;
+            int level = 0;
+            out.position(CodecFrame.HEADER_SIZE);
+            if (kind != ContentClassifier.Kind.COMPRESSED) {
+                Candidate choice = codecSelector.choose(in, fileCandidates());
+                algorithm = Algorithm.valueOf(choice.algorithm);
+                level = choice.level;
+                long start = System.nanoTime();
+                try {
+                    writePayload(algorithm, level, in, length, out);
+                    compressionMetrics.recordCompress(choice.algorithm, level, System.nanoTime() - start,
+                        length, out.position() - CodecFrame.HEADER_SIZE);
+                } catch (IOException | RuntimeException e) {
+                    compressionMetrics.fallback("codec." + choice.algorithm, e);
+                    algorithm = Algorithm.STORED;
+                }
+            }
+            
+            if (algorithm == Algorithm.STORED || out.position() - CodecFrame.HEADER_SIZE >= length) {
+                algorithm = Algorithm.STORED;
+                out.truncate(CodecFrame.HEADER_SIZE);
+                out.position(CodecFrame.HEADER_SIZE);
+                for (long position = 0; position < length; ) {
+                    position += in.transferTo(position, length - position, out);
+                }
+            }
+            if (in.size() != length) {
+                throw new IOException("Input changed while it was compressed");
+            }
+            
+            CodecFrame frame = new CodecFrame(algorithm, algorithm == Algorithm.STORED ? 0 : level,
+                length, crc, 0);
+            out.write(ByteBuffer.wrap(frame.toBytes()), 0);
+            compressionMetrics.recordWinner("modern", algorithm.name());
+            return frame;
+        }
+    }
+    
+    /**
+     * Wraps the compressed payload of a frame in the matching decoder; the
+     * returned stream yields the original bytes.
+     */
+    public InputStream decompressingStream(CodecFrame frame, InputStream payload) throws IOException {
+        return decompressingStream(frame, payload, null);
+    }
+    
+    /**
+     * Like {@link #decompressingStream(CodecFrame, InputStream)}, but a
+     * dictionary id matching {@code embedded} is resolved to it instead of
+     * to a trained dictionary.
+     */
+    public InputStream decompressingStream(CodecFrame frame, InputStream payload, DictionaryService.Dictionary embedded)
+            throws IOException {
+        switch (frame.algorithm) {
+            case STORED:
+                return payload;
+            case ZSTD:
+                if (embedded != null && embedded.zstdDecompress != null && frame.dictionaryId == embedded.zstdId) {
+                    return codecContextPool.zstdDecompressingStream(payload, embedded.zstdDecompress);
+                }
+                if (frame.dictionaryId != 0) {
+                    return codecContextPool.zstdDecompressingStream(payload, dictionaryService.zstdDictionary(frame.dictionaryId));
+                }
+                return codecContextPool.zstdDecompressingStream(payload);
+            case BROTLI:
+                return new BrotliInputStream(payload);
+            case LZ4:
+                return new LZ4FrameInputStream(payload);
+            case DEFLATE:
+                return codecContextPool.inflatingStream(payload, false);
+            case DEFLATE_RAW:
+                return codecContextPool.inflatingStream(payload, true);
+            case MULTI_STAGE:
+                return codecContextPool.zstdDecompressingStream(new BrotliInputStream(payload));
+            default:
+                throw new IOException("Not a modern codec: " + frame.algorithm);
+        }
+    }
+    
     private byte[] compressPDF(byte[] data) throws IOException {
         // Step 1: Optimize PDF structure
         byte[] optimized = pdfCompressionService.optimizePDF(data);
         
         // Step 2: Try different compression algorithms with optimized parameters
-        CompressionResult[] results = {
-            new CompressionResult("ZSTD", zstdCompressPDF(optimized)),
-            new CompressionResult("BROTLI", brotliCompressPDF(optimized)),
-            new CompressionResult("DEFLATE", deflateCompressPDF(optimized)),
-            new CompressionResult("LZ4", lz4Compress(optimized)),
-            new CompressionResult("MULTI_STAGE", multiStageCompress(optimized))
-        };
-        
-        // Step 3: Choose the best compression
-        CompressionResult best = Arrays.stream(results)
-            .min(Comparator.comparing(r -> r.compressedData.length))
-            .orElse(new CompressionResult("ORIGINAL", optimized));
-        
-        return best.compressedData;
+        return compressWithBest(optimized, Arrays.asList(
+            new Candidate("ZSTD", 22, 6, this::zstdCompressPDF),
+            new Candidate("BROTLI", 11, 8, this::brotliCompressPDF),
+            new Candidate("DEFLATE_RAW", 9, 3, this::deflateCompressPDF),
+            new Candidate("LZ4", 1, 1, this::lz4Compress),
+            new Candidate("MULTI_STAGE", 11, 9, this::multiStageCompress)
+        ));
     }
     
-    private byte[] multiStageCompress(byte[] data) {
+    // The codecs are package-private so the JMH benchmarks can drive each one directly
+    byte[] multiStageCompress(byte[] data) {
         try {
             // Multi-stage compression: First ZSTD, then Brotli
-            byte[] stage1 = Zstd.compress(data, 19);
+            byte[] stage1 = codecContextPool.zstdCompress(data, 19);
             if (stage1.length < data.length) {
                 Encoder.Parameters params = new Encoder.Parameters()
                     .setQuality(11)
@@ -84,20 +249,22 @@ public class ModernCompressionService {
             }
             return data;
         } catch (Exception e) {
+            compressionMetrics.fallback("codec.MULTI_STAGE", e);
             return data;
         }
     }
     
-    private byte[] zstdCompressPDF(byte[] data) {
+    byte[] zstdCompressPDF(byte[] data) {
         try {
             // Use maximum compression level for PDFs
-            return Zstd.compress(data, 22); // Level 22 for maximum compression
+            return codecContextPool.zstdCompress(data, 22); // Level 22 for maximum compression
         } catch (Exception e) {
+            compressionMetrics.fallback("codec.ZSTD", e);
             return data; // Return original if compression fails
         }
     }
     
-    private byte[] brotliCompressPDF(byte[] data) {
+    byte[] brotliCompressPDF(byte[] data) {
         try {
             // Use maximum quality for PDFs
             Encoder.Parameters params = new Encoder.Parameters()
@@ -105,82 +272,241 @@ public class ModernCompressionService {
                 .setWindow(24); // Larger window for better compression
             return Encoder.compress(data, params);
         } catch (Exception e) {
+            compressionMetrics.fallback("codec.BROTLI", e);
             return data; // Return original if compression fails
         }
     }
     
-    private byte[] deflateCompressPDF(byte[] data) throws IOException {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DeflaterOutputStream dos = new DeflaterOutputStream(baos, 
-                 new Deflater(Deflater.BEST_COMPRESSION, true))) { // Use best compression
-            dos.write(data);
-            dos.finish();
-            return baos.toByteArray();
+    byte[] deflateCompressPDF(byte[] data) throws IOException {
+        return codecContextPool.deflate(data, Deflater.BEST_COMPRESSION, true); // Use best compression
+    }
+    
+    private byte[] compressText(byte[] data, String fileType) throws IOException {
+        List<Candidate> candidates = new ArrayList<>(Arrays.asList(
+            new Candidate("ZSTD", 19, 5, d -> zstdCompress(d, 19)),
+            new Candidate("LZ4", 1, 1, this::lz4Compress),
+            new Candidate("BROTLI", 11, 8, d -> brotliCompress(d, 11)),
+            new Candidate("DEFLATE", 9, 3, this::deflateCompress)
+        ));
+        
+        // Small payloads lack context of their own: a trained dictionary supplies it
+        dictionaryService.recordSample(fileType, data);
+        DictionaryService.Dictionary dictionary = dictionaryService.dictionaryFor(fileType, data.length);
+        if (dictionary != null) {
+            candidates.add(new Candidate("ZSTD", 19, 4, dictionary.zstdId,
+                d -> codecContextPool.zstdCompress(d, dictionary.zstdCompress)));
         }
+        return compressWithBest(data, candidates);
+    }
+    
+    private byte[] compressBinary(byte[] data) throws IOException {
+        return compressWithBest(data, Arrays.asList(
+            new Candidate("ZSTD", 19, 5, d -> zstdCompress(d, 19)),
+            new Candidate("LZ4", 1, 1, this::lz4Compress),
+            new Candidate("BROTLI", 11, 8, d -> brotliCompress(d, 11))
+        ));
+    }
+    
+    /**
+     * Compresses with the best of the candidates and frames the result. In
+     * sampled mode the codec is predicted from a few windows of the input and
+     * only that one runs on the whole payload; the brute-force set also gets
+     * cheaper levels to pick from.
+     */
+    private byte[] compressWithBest(byte[] data, List<Candidate> candidates) {
+        return frame(data, selectCandidate(data, candidates));
     }
     
-    private byte[] compressText(byte[] data) throws IOException {
-        // For text files, try both Huffman and modern compression
-        CompressionResult[] results = {
-            new CompressionResult("ZSTD", zstdCompress(data)),
-            new CompressionResult("LZ4", lz4Compress(data)),
-            new CompressionResult("BROTLI", brotliCompress(data)),
-            new CompressionResult("DEFLATE", deflateCompress(data))
-        };
+    private CompressionResult selectCandidate(byte[] data, List<Candidate> candidates) {
+        if (!"sampled".equalsIgnoreCase(selectionMode) || !codecSelector.shouldSample(data.length)) {
+            return selectBest(data, candidates);
+        }
         
-        CompressionResult best = Arrays.stream(results)
-            .min(Comparator.comparing(r -> r.compressedData.length))
-            .orElse(new CompressionResult("ORIGINAL", data));
+        List<Candidate> options = new ArrayList<>(candidates);
+        for (Candidate candidate : candidates) {
+            if (candidate.dictionaryId != 0) {
+                continue;
+            }
+            if ("ZSTD".equals(candidate.algorithm)) {
+                options.add(new Candidate("ZSTD", 6, 2, d -> zstdCompress(d, 6)));
+            } else if ("BROTLI".equals(candidate.algorithm)) {
+                options.add(new Candidate("BROTLI", 6, 4, d -> brotliCompress(d, 6)));
+            }
+        }
         
-        return best.compressedData;
+        Candidate choice = codecSelector.choose(data, ByteHistogram.count(data), options);
+        byte[] compressed;
+        try {
+            compressed = compressionMetrics.timeCompress(choice, data);
+        } catch (Exception e) {
+            // Already counted as a codec fallback; brute force picks another one
+            return selectBest(data, candidates);
+        }
+        codecSelector.maybeAudit(data, choice, options);
+        return new CompressionResult(choice, compressed);
     }
     
-    private byte[] compressBinary(byte[] data) throws IOException {
-        // For binary files, use modern compression
-        CompressionResult[] results = {
-            new CompressionResult("ZSTD", zstdCompress(data)),
-            new CompressionResult("LZ4", lz4Compress(data)),
-            new CompressionResult("BROTLI", brotliCompress(data))
-        };
+    private byte[] frame(byte[] data, CompressionResult result) {
+        // Codecs hand back the input itself when they fail, and a payload
+        // larger than the input is not worth keeping either
+        if (result.compressedData == data || result.compressedData.length >= data.length) {
+            compressionMetrics.recordWinner("modern", Algorithm.STORED.name());
+            return CodecFrame.wrap(Algorithm.STORED, 0, data, data);
+        }
+        compressionMetrics.recordWinner("modern", result.candidate.algorithm);
+        return CodecFrame.wrap(Algorithm.valueOf(result.candidate.algorithm), result.candidate.level,
+            result.candidate.dictionaryId, data, result.compressedData);
+    }
+    
+    /**
+     * Runs the candidates concurrently and keeps the smallest output. Stops
+     * early once a result reaches the ratio target or the deadline passes;
+     * codecs still running are cancelled and their results dropped.
+     */
+    private CompressionResult selectBest(byte[] data, List<Candidate> candidates) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        CompletionService<CompressionResult> completion = new ExecutorCompletionService<>(compressionExecutor);
+        List<Future<CompressionResult>> futures = new ArrayList<>(candidates.size());
+        for (Candidate candidate : candidates) {
+            futures.add(completion.submit(() -> new CompressionResult(candidate, compressionMetrics.timeCompress(candidate, data))));
+        }
         
-        CompressionResult best = Arrays.stream(results)
-            .min(Comparator.comparing(r -> r.compressedData.length))
-            .orElse(new CompressionResult("ORIGINAL", data));
+        CompressionResult best = null;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<CompressionResult> done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    break; // Deadline passed: go with the best result so far
+                }
+                CompressionResult result;
+                try {
+                    result = done.get();
+                } catch (ExecutionException e) {
+                    continue; // A failing codec simply does not win; it was counted as a fallback
+                }
+                if (best == null || result.compressedData.length < best.compressedData.length) {
+                    best = result;
+                }
+                if (best.compressedData.length <= data.length * ratioTarget) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<CompressionResult> future : futures) {
+                future.cancel(true);
+            }
+        }
         
-        return best.compressedData;
+        return best != null ? best : new CompressionResult(new Candidate("STORED", 0, 0, d -> d), data);
     }
     
-    private byte[] zstdCompress(byte[] data) {
+    byte[] zstdCompress(byte[] data, int level) {
         try {
-            return Zstd.compress(data, 19); // Level 19 for maximum compression
+            return codecContextPool.zstdCompress(data, level); // Up to level 19 without ultra mode
         } catch (Exception e) {
+            compressionMetrics.fallback("codec.ZSTD", e);
             return data; // Return original if compression fails
         }
     }
     
-    private byte[] lz4Compress(byte[] data) {
+    byte[] lz4Compress(byte[] data) {
+        // Frame format: unlike a bare block it records the content size and checksums
         try {
-            return LZ4Factory.fastestInstance().fastCompressor().compress(data);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (LZ4FrameOutputStream lz4 = new LZ4FrameOutputStream(baos)) {
+                lz4.write(data);
+            }
+            return baos.toByteArray();
         } catch (Exception e) {
+            compressionMetrics.fallback("codec.LZ4", e);
             return data; // Return original if compression fails
         }
     }
     
-    private byte[] brotliCompress(byte[] data) {
+    byte[] brotliCompress(byte[] data, int quality) {
         try {
-            Encoder.Parameters params = new Encoder.Parameters().setQuality(11); // Maximum quality
+            Encoder.Parameters params = new Encoder.Parameters().setQuality(quality); // 11 is maximum quality
             return Encoder.compress(data, params);
         } catch (Exception e) {
+            compressionMetrics.fallback("codec.BROTLI", e);
             return data; // Return original if compression fails
         }
     }
     
-    private byte[] deflateCompress(byte[] data) throws IOException {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DeflaterOutputStream dos = new DeflaterOutputStream(baos, new Deflater(Deflater.BEST_COMPRESSION))) {
-            dos.write(data);
-            dos.finish();
-            return baos.toByteArray();
+    byte[] deflateCompress(byte[] data) throws IOException {
+        return codecContextPool.deflate(data, Deflater.BEST_COMPRESSION, false);
+    }
+    
+    // Codecs that can run from a mapped file; the Brotli and Deflate bindings only take arrays
+    private List<Candidate> fileCandidates() {
+        return Arrays.asList(
+            new Candidate("ZSTD", 19, 5, d -> zstdCompress(d, 19)),
+            new Candidate("ZSTD", 6, 2, d -> zstdCompress(d, 6)),
+            new Candidate("LZ4", 1, 1, this::lz4Compress)
+        );
+    }
+    
+    private void writePayload(Algorithm algorithm, int level, FileChannel in, long length, FileChannel out)
+            throws IOException {
+        if (algorithm == Algorithm.ZSTD) {
+            try (CodecContextPool.DirectZstdStream zstd = codecContextPool.zstdDirectStream(level, out)) {
+                for (long position = 0; position < length; position += MAPPED_CHUNK_SIZE) {
+                    zstd.write(in.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAPPED_CHUNK_SIZE, length - position)));
+                }
+                zstd.finish();
+            }
+        } else if (algorithm == Algorithm.LZ4) {
+            // The LZ4 frame writer only takes arrays, so the mappings go through one reused buffer
+            byte[] staging = new byte[STAGING_BUFFER_SIZE];
+            LZ4FrameOutputStream lz4 = new LZ4FrameOutputStream(new ChannelOutputStream(out));
+            for (long position = 0; position < length; position += MAPPED_CHUNK_SIZE) {
+                ByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPED_CHUNK_SIZE, length - position));
+                while (chunk.hasRemaining()) {
+                    int count = Math.min(staging.length, chunk.remaining());
+                    chunk.get(staging, 0, count);
+                    lz4.write(staging, 0, count);
+                }
+            }
+            lz4.close();
+        } else {
+            throw new IOException("No file path for " + algorithm);
+        }
+    }
+    
+    private static int checksum(FileChannel in, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = 0; position < length; position += MAPPED_CHUNK_SIZE) {
+            crc.update(in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_CHUNK_SIZE, length - position)));
+        }
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Writes to a channel it does not own: closing the stream leaves the
+     * channel open.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final WritableByteChannel channel;
+        
+        ChannelOutputStream(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
         }
     }
     
@@ -190,15 +516,14 @@ public class ModernCompressionService {
         }
         return fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
     }
-    
-    private boolean isTextFile(String fileType) {
-        return Arrays.asList("txt", "csv", "log", "json", "xml", "html", "css", "js", "java", "py", "cpp", "c", "h").contains(fileType);
-    }
+
     
     private static class CompressionResult {
+        Candidate candidate;
         byte[] compressedData;
         
-        CompressionResult(String algorithm, byte[] compressedData) {
+        CompressionResult(Candidate candidate, byte[] compressedData) {
+            this.candidate = candidate;
             this.compressedData = compressedData;
         }
     }
@@ -1,96 +1,201 @@
 package com.stellarfs.huffman_coder.service;
 
+import jakarta.annotation.PostConstruct;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.state.Concatenate;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.contentstream.operator.state.SetGraphicsStateParameters;
+import org.apache.pdfbox.contentstream.operator.state.SetMatrix;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDDocumentInformation;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.color.PDCalGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
 
+/**
+ * Structural PDF optimization ahead of the generic codecs. Documents are
+ * parsed with stream data kept in a scratch file beyond
+ * {@code compression.pdf.max-main-memory}; unfiltered and plainly deflated
+ * streams are recompressed at the best Flate level on the compression
+ * executor, and identical images, forms and embedded font programs are
+ * stored once. Raw stream bytes are read in batches of
+ * {@code compression.pdf.batch-bytes}, and Flate streams inflating past
+ * {@code compression.pdf.max-inflated-bytes} are left as they are.
+ * <p>
+ * Images are only decoded when {@code compression.pdf.images.mode} asks for
+ * a transformation: {@code lossless} downsamples images shown above
+ * {@code compression.pdf.images.target-dpi} and stores them deflated,
+ * {@code jpeg} also re-encodes the remaining non-JPEG images as JPEG at
+ * {@code compression.pdf.images.jpeg-quality}. Decoded pixels in flight are
+ * bounded by {@code compression.pdf.images.memory-bytes} across all requests.
+ */
 @Service
 public class PDFCompressionService {
     
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+    
+    @Autowired
+    private CodecContextPool codecContextPool;
+    
+    @Autowired
+    @Qualifier("compressionExecutor")
+    private ExecutorService compressionExecutor;
+    
+    // Parsed stream data beyond this spills to a temp file
+    @Value("${compression.pdf.max-main-memory:16777216}")
+    private long maxMainMemory;
+    
+    // Streams are read into the heap and recompressed in batches of about this many bytes
+    @Value("${compression.pdf.batch-bytes:16777216}")
+    private long batchBytes;
+    
+    // Flate streams inflating past this are left as they are, so each running task holds at most this much
+    @Value("${compression.pdf.max-inflated-bytes:16777216}")
+    private int maxInflatedBytes = 16 << 20;
+    
+    // off, lossless or jpeg
+    @Value("${compression.pdf.images.mode:off}")
+    private String imageMode = "off";
+    
+    @Value("${compression.pdf.images.target-dpi:150}")
+    private int targetDpi = 150;
+    
+    @Value("${compression.pdf.images.jpeg-quality:0.75}")
+    private float jpegQuality = 0.75f;
+    
+    // Larger images are left alone rather than decoded
+    @Value("${compression.pdf.images.max-pixels:50000000}")
+    private long maxImagePixels = 50_000_000L;
+    
+    @Value("${compression.pdf.images.memory-bytes:268435456}")
+    private int imageMemoryBytes = 256 << 20;
+    
+    // Decoded pixel bytes, shared by all documents being optimized
+    private Semaphore imageMemory;
+    
+    @PostConstruct
+    public void init() {
+        if (!Set.of("off", "lossless", "jpeg").contains(imageMode)) {
+            throw new IllegalStateException("compression.pdf.images.mode must be off, lossless or jpeg: " + imageMode);
+        }
+        imageMemory = new Semaphore(imageMemoryBytes);
+    }
+    
     public byte[] optimizePDF(byte[] pdfData) throws IOException {
-        try (PDDocument document = PDDocument.load(pdfData);
+        long start = System.nanoTime();
+        try (PDDocument document = PDDocument.load(pdfData, "", null, null, MemoryUsageSetting.setupMixed(maxMainMemory));
              ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            compressionMetrics.recordPdfPhase("load", System.nanoTime() - start);
+            start = System.nanoTime();
             
             try {
                 // Remove metadata if present
                 removeMetadata(document);
-            } catch (Exception ignored) {}
-            
-            try {
-                // Conservative image pass (no replacements to avoid corruption)
-                optimizeImages(document);
-            } catch (Exception ignored) {}
+            } catch (Exception e) {
+                compressionMetrics.fallback("pdf.metadata", e);
+            }
             
             try {
                 // Safely clear annotations
                 removeAnnotations(document);
-            } catch (Exception ignored) {}
+            } catch (Exception e) {
+                compressionMetrics.fallback("pdf.annotations", e);
+            }
+            compressionMetrics.recordPdfPhase("clean", System.nanoTime() - start);
+            
+            // Encrypted streams are re-encrypted on save; their raw bytes are left alone
+            if (!document.isEncrypted()) {
+                start = System.nanoTime();
+                Set<COSStream> transformed = Collections.emptySet();
+                try {
+                    // Duplicates first, so each distinct image is transformed once
+                    deduplicate(document);
+                    if (!"off".equals(imageMode)) {
+                        long imagesStart = System.nanoTime();
+                        transformed = transformImages(document);
+                        compressionMetrics.recordPdfPhase("images", System.nanoTime() - imagesStart);
+                    }
+                    recompressStreams(document, transformed);
+                } catch (Exception e) {
+                    compressionMetrics.fallback("pdf.streams", e);
+                }
+                compressionMetrics.recordPdfPhase("streams", System.nanoTime() - start);
+            }
             
             // Save document
+            start = System.nanoTime();
             document.save(baos);
             document.close();
+            compressionMetrics.recordPdfPhase("save", System.nanoTime() - start);
             return baos.toByteArray();
         } catch (Exception e) {
             // If anything goes wrong, fall back to original bytes
+            compressionMetrics.fallback("pdf.optimize", e);
             return pdfData;
         }
     }
     
-    private void optimizeDocumentStructure(PDDocument document) {
-        // No-op for stability; aggressive resource pruning can corrupt PDFs
-    }
-    
     private void removeMetadata(PDDocument document) {
-        PDDocumentInformation info = document.getDocumentInformation();
-        if (info != null) {
-            info.setTitle("");
-            info.setAuthor("");
-            info.setSubject("");
-            info.setKeywords("");
-            info.setCreator("");
-            info.setProducer("");
-            info.setCreationDate(null);
-            info.setModificationDate(null);
-            info.setTrapped("");
-        }
-    }
-    
-    private void optimizeImages(PDDocument document) throws IOException {
-        for (PDPage page : document.getPages()) {
-            PDResources resources = page.getResources();
-            if (resources == null) continue;
-            try {
-                optimizePageImages(resources);
-            } catch (Exception ignored) {}
+        // Removed rather than blanked: Trapped only accepts True, False or Unknown
+        COSDictionary info = document.getDocumentInformation().getCOSObject();
+        for (COSName key : new COSName[]{COSName.TITLE, COSName.AUTHOR, COSName.SUBJECT, COSName.KEYWORDS,
+                COSName.CREATOR, COSName.PRODUCER, COSName.CREATION_DATE, COSName.MOD_DATE, COSName.TRAPPED}) {
+            info.removeItem(key);
         }
     }
     
-    private void optimizePageImages(PDResources resources) throws IOException {
-        try {
-            Iterable<COSName> names = resources.getXObjectNames();
-            for (COSName name : names) {
-                PDXObject xObject = resources.getXObject(name);
-                if (!(xObject instanceof PDImageXObject)) continue;
-                PDImageXObject image = (PDImageXObject) xObject;
-                BufferedImage bufferedImage = image.getImage();
-                if (bufferedImage == null) continue;
-                // Only read/inspect; do not modify to avoid corruption
-                // Future: downscale/replace with care
-            }
-        } catch (Exception ignored) {}
-    }
-    
     private BufferedImage resizeImage(BufferedImage originalImage, int maxWidth, int maxHeight) {
         int originalWidth = originalImage.getWidth();
         int originalHeight = originalImage.getHeight();
@@ -104,8 +209,8 @@ public class PDFCompressionService {
             return originalImage; // No need to resize
         }
         
-        int newWidth = (int) (originalWidth * scale);
-        int newHeight = (int) (originalHeight * scale);
+        int newWidth = Math.max(1, (int) (originalWidth * scale));
+        int newHeight = Math.max(1, (int) (originalHeight * scale));
         
         BufferedImage resizedImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
         java.awt.Graphics2D g2d = resizedImage.createGraphics();
@@ -117,13 +222,539 @@ public class PDFCompressionService {
         return resizedImage;
     }
     
+    /**
+     * Decodes the images the policy applies to on this thread, one at a time
+     * as pixel memory allows, while downsampling and encoding run on the
+     * compression executor. Results replace the image streams in place, so
+     * every reference to an image sees the new version. Returns the streams
+     * replaced.
+     */
+    private Set<COSStream> transformImages(PDDocument document) throws IOException {
+        ImageUsage usage = new ImageUsage();
+        for (PDPage page : document.getPages()) {
+            try {
+                usage.processPage(page);
+            } catch (IOException | RuntimeException e) {
+                // Images of an unreadable page are not known to be displayed small
+                compressionMetrics.fallback("pdf.images", e);
+            }
+        }
+        
+        List<ImageWork> works = new ArrayList<>();
+        try {
+            for (Map.Entry<COSStream, double[]> entry : usage.displayed.entrySet()) {
+                ImageWork work;
+                try {
+                    work = plan(usage.images.get(entry.getKey()), entry.getValue());
+                } catch (IOException | RuntimeException e) {
+                    compressionMetrics.fallback("pdf.image", e);
+                    continue;
+                }
+                if (work == null) {
+                    continue;
+                }
+                imageMemory.acquire(work.permits);
+                BufferedImage decoded;
+                try {
+                    // Without the soft mask, which stays a separate stream
+                    decoded = work.image.getOpaqueImage();
+                } catch (IOException | RuntimeException e) {
+                    imageMemory.release(work.permits);
+                    compressionMetrics.fallback("pdf.image", e);
+                    continue;
+                }
+                work.result = compressionExecutor.submit(() -> {
+                    try {
+                        return work.encode(decoded);
+                    } finally {
+                        imageMemory.release(work.permits);
+                    }
+                });
+                works.add(work);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while transforming PDF images");
+        }
+        
+        Set<COSStream> transformed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ImageWork work : works) {
+            EncodedImage encoded;
+            try {
+                encoded = work.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while transforming PDF images");
+            } catch (ExecutionException e) {
+                compressionMetrics.fallback("pdf.image", e.getCause());
+                continue;
+            }
+            COSStream stream = work.image.getCOSObject();
+            if (encoded.data.length >= stream.getLength()) {
+                continue;
+            }
+            try (OutputStream out = stream.createRawOutputStream()) {
+                out.write(encoded.data);
+            }
+            stream.setItem(COSName.FILTER, encoded.jpeg ? COSName.DCT_DECODE : COSName.FLATE_DECODE);
+            // The decoded pixels already had these applied
+            stream.removeItem(COSName.DECODE_PARMS);
+            stream.removeItem(COSName.DP);
+            stream.removeItem(COSName.DECODE);
+            stream.setInt(COSName.WIDTH, encoded.width);
+            stream.setInt(COSName.HEIGHT, encoded.height);
+            stream.setInt(COSName.BITS_PER_COMPONENT, 8);
+            stream.setItem(COSName.COLORSPACE, encoded.gray ? COSName.DEVICEGRAY : COSName.DEVICERGB);
+            transformed.add(stream);
+        }
+        return transformed;
+    }
+    
+    // What to do with an image shown at most displayed[0] x displayed[1] points, or null to leave it
+    private ImageWork plan(PDImageXObject image, double[] displayed) throws IOException {
+        COSStream stream = image.getCOSObject();
+        // Stencils, colour-key masks and bilevel images do not survive a trip through RGB or JPEG
+        if (image.isStencil() || stream.getItem(COSName.MASK) != null || image.getBitsPerComponent() != 8) {
+            return null;
+        }
+        String suffix = image.getSuffix();
+        if ("jpx".equals(suffix) || "jb2".equals(suffix) || "tiff".equals(suffix)) {
+            return null;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width <= 0 || height <= 0 || (long) width * height > maxImagePixels) {
+            return null;
+        }
+        int targetWidth = Math.min(width, (int) Math.ceil(displayed[0] / 72 * targetDpi));
+        int targetHeight = Math.min(height, (int) Math.ceil(displayed[1] / 72 * targetDpi));
+        // Less than 10% fewer pixels per side is not worth a generation of loss
+        boolean downsample = targetWidth < width * 0.9 && targetHeight < height * 0.9;
+        boolean jpeg = "jpeg".equals(imageMode);
+        if (!downsample && (!jpeg || "jpg".equals(suffix))) {
+            return null;
+        }
+        // Indexed and Separation spaces have one component too, but decode to colour
+        PDColorSpace colorSpace = image.getColorSpace();
+        boolean gray = colorSpace instanceof PDDeviceGray || colorSpace instanceof PDCalGray
+                || colorSpace instanceof PDICCBased && colorSpace.getNumberOfComponents() == 1;
+        int permits = (int) Math.min(imageMemoryBytes, (long) width * height * 4);
+        return new ImageWork(image, downsample ? targetWidth : width, downsample ? targetHeight : height,
+                gray, jpeg, permits);
+    }
+    
+    private class ImageWork {
+        final PDImageXObject image;
+        final int targetWidth;
+        final int targetHeight;
+        final boolean gray;
+        final boolean jpeg;
+        final int permits;
+        Future<EncodedImage> result;
+        
+        ImageWork(PDImageXObject image, int targetWidth, int targetHeight, boolean gray, boolean jpeg, int permits) {
+            this.image = image;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.gray = gray;
+            this.jpeg = jpeg;
+            this.permits = permits;
+        }
+        
+        EncodedImage encode(BufferedImage decoded) throws IOException {
+            BufferedImage image = resizeImage(decoded, targetWidth, targetHeight);
+            byte[] samples = samples(image, gray);
+            byte[] data = jpeg
+                    ? encodeJpeg(gray ? grayImage(samples, image.getWidth(), image.getHeight()) : image)
+                    : codecContextPool.deflate(samples, Deflater.BEST_COMPRESSION, false);
+            return new EncodedImage(data, image.getWidth(), image.getHeight(), gray, jpeg);
+        }
+    }
+    
+    private static class EncodedImage {
+        final byte[] data;
+        final int width;
+        final int height;
+        final boolean gray;
+        final boolean jpeg;
+        
+        EncodedImage(byte[] data, int width, int height, boolean gray, boolean jpeg) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.gray = gray;
+            this.jpeg = jpeg;
+        }
+    }
+    
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+    
+    // Samples as a PDF image stream stores them: 8-bit gray, or 8-bit RGB triples
+    private static byte[] samples(BufferedImage image, boolean gray) {
+        int width = image.getWidth();
+        int[] row = new int[width];
+        byte[] samples = new byte[width * image.getHeight() * (gray ? 1 : 3)];
+        int i = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int rgb : row) {
+                if (gray) {
+                    // Gray was decoded to equal channels
+                    samples[i++] = (byte) (rgb >>> 8);
+                } else {
+                    samples[i++] = (byte) (rgb >>> 16);
+                    samples[i++] = (byte) (rgb >>> 8);
+                    samples[i++] = (byte) rgb;
+                }
+            }
+        }
+        return samples;
+    }
+    
+    // Wraps the samples as they are; drawing into a gray image would convert to linear gray
+    private static BufferedImage grayImage(byte[] samples, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        System.arraycopy(samples, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0, samples.length);
+        return image;
+    }
+    
+    /**
+     * Records the largest size, in points, each image XObject is drawn at,
+     * including images drawn inside form XObjects. Images are not decoded.
+     */
+    private static class ImageUsage extends PDFStreamEngine {
+        final Map<COSStream, double[]> displayed = new IdentityHashMap<>();
+        final Map<COSStream, PDImageXObject> images = new IdentityHashMap<>();
+        
+        ImageUsage() {
+            addOperator(new Concatenate());
+            addOperator(new DrawObject());
+            addOperator(new SetGraphicsStateParameters());
+            addOperator(new Save());
+            addOperator(new Restore());
+            addOperator(new SetMatrix());
+        }
+        
+        @Override
+        protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+            if ("Do".equals(operator.getName()) && !operands.isEmpty() && operands.get(0) instanceof COSName
+                    && getResources() != null) {
+                PDXObject xObject = getResources().getXObject((COSName) operands.get(0));
+                if (xObject instanceof PDImageXObject) {
+                    COSStream stream = ((PDImageXObject) xObject).getCOSObject();
+                    Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+                    double[] size = displayed.computeIfAbsent(stream, key -> new double[2]);
+                    size[0] = Math.max(size[0], ctm.getScalingFactorX());
+                    size[1] = Math.max(size[1], ctm.getScalingFactorY());
+                    images.putIfAbsent(stream, (PDImageXObject) xObject);
+                    return;
+                }
+            }
+            super.processOperator(operator, operands);
+        }
+    }
+    
     private void removeAnnotations(PDDocument document) {
         for (PDPage page : document.getPages()) {
             try {
                 if (page.getAnnotations() != null) {
                     page.getAnnotations().clear();
                 }
-            } catch (Exception ignored) {}
+            } catch (Exception e) {
+                compressionMetrics.fallback("pdf.annotations", e);
+            }
+        }
+    }
+    
+    /**
+     * Deflates every unfiltered stream, and re-deflates every Flate stream
+     * without decode parameters, at the best level, keeping whichever is
+     * smaller. Raw bytes are read and written back on this thread, since
+     * PDFBox objects are not thread-safe; only the codec work runs in
+     * parallel, a batch at a time.
+     */
+    private void recompressStreams(PDDocument document, Set<COSStream> skip) throws IOException {
+        Set<COSStream> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        seen.addAll(skip);
+        List<StreamWork> batch = new ArrayList<>();
+        long pending = 0;
+        for (COSObject object : document.getDocument().getObjects()) {
+            COSBase base = object.getObject();
+            if (!(base instanceof COSStream) || !seen.add((COSStream) base)) {
+                continue;
+            }
+            COSStream stream = (COSStream) base;
+            Boolean deflated = recompressible(stream);
+            if (deflated == null) {
+                continue;
+            }
+            byte[] raw;
+            try (InputStream in = stream.createRawInputStream()) {
+                raw = in.readAllBytes();
+            }
+            batch.add(new StreamWork(stream, raw, deflated));
+            pending += raw.length;
+            if (pending >= batchBytes) {
+                recompress(batch);
+                batch.clear();
+                pending = 0;
+            }
+        }
+        recompress(batch);
+    }
+    
+    // True for a plain Flate stream, false for an unfiltered one, null when it is left alone
+    private static Boolean recompressible(COSStream stream) {
+        COSName type = stream.getCOSName(COSName.TYPE);
+        // Rebuilt on save anyway, or meant to stay readable without a PDF parser
+        if (COSName.XREF.equals(type) || COSName.OBJ_STM.equals(type) || COSName.METADATA.equals(type)) {
+            return null;
+        }
+        if (stream.getDictionaryObject(COSName.DECODE_PARMS, COSName.DP) != null) {
+            return null;
+        }
+        COSBase filters = stream.getFilters();
+        if (filters instanceof COSArray && ((COSArray) filters).size() == 1) {
+            filters = ((COSArray) filters).getObject(0);
+        } else if (filters instanceof COSArray && ((COSArray) filters).size() == 0) {
+            filters = null;
+        }
+        if (filters == null) {
+            return false;
+        }
+        return COSName.FLATE_DECODE.equals(filters) ? Boolean.TRUE : null;
+    }
+    
+    private void recompress(List<StreamWork> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Callable<byte[]>> tasks = new ArrayList<>(batch.size());
+        for (StreamWork work : batch) {
+            tasks.add(work::recompress);
+        }
+        List<Future<byte[]>> results;
+        try {
+            results = compressionExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while recompressing PDF streams");
+        }
+        
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] recompressed;
+            try {
+                recompressed = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while recompressing PDF streams");
+            } catch (ExecutionException e) {
+                // Damaged Flate data: the stream stays as it was
+                compressionMetrics.fallback("pdf.stream", e.getCause());
+                continue;
+            }
+            if (recompressed == null) {
+                continue;
+            }
+            COSStream stream = batch.get(i).stream;
+            try (OutputStream out = stream.createRawOutputStream()) {
+                out.write(recompressed);
+            }
+            stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        }
+    }
+    
+    private class StreamWork {
+        final COSStream stream;
+        final byte[] raw;
+        final boolean deflated;
+        
+        StreamWork(COSStream stream, byte[] raw, boolean deflated) {
+            this.stream = stream;
+            this.raw = raw;
+            this.deflated = deflated;
+        }
+        
+        // The new encoding, or null when it is not smaller or inflates past the limit
+        byte[] recompress() throws IOException {
+            byte[] plain = raw;
+            if (deflated) {
+                try (InputStream in = codecContextPool.inflatingStream(new ByteArrayInputStream(raw), false)) {
+                    plain = in.readNBytes(maxInflatedBytes);
+                    if (plain.length == maxInflatedBytes && in.read() >= 0) {
+                        return null;
+                    }
+                }
+            }
+            byte[] recompressed = codecContextPool.deflate(plain, Deflater.BEST_COMPRESSION, false);
+            return recompressed.length < raw.length ? recompressed : null;
+        }
+    }
+    
+    /**
+     * Points the image and form XObjects of every page, and the font programs
+     * of their fonts, at one copy per distinct content. Copies no longer
+     * referenced are not written on save.
+     */
+    private void deduplicate(PDDocument document) throws IOException {
+        StreamDigests digests = new StreamDigests();
+        Map<String, COSBase> canonical = new HashMap<>();
+        for (PDPage page : document.getPages()) {
+            PDResources resources = page.getResources();
+            if (resources == null) {
+                continue;
+            }
+            COSDictionary xObjects = resources.getCOSObject().getCOSDictionary(COSName.XOBJECT);
+            if (xObjects != null) {
+                for (COSName name : xObjects.keySet()) {
+                    deduplicate(xObjects, name, digests, canonical);
+                }
+            }
+            COSDictionary fonts = resources.getCOSObject().getCOSDictionary(COSName.FONT);
+            if (fonts == null) {
+                continue;
+            }
+            for (COSName name : fonts.keySet()) {
+                COSBase font = fonts.getDictionaryObject(name);
+                if (!(font instanceof COSDictionary)) {
+                    continue;
+                }
+                List<COSDictionary> descriptors = new ArrayList<>();
+                addDescriptor((COSDictionary) font, descriptors);
+                // Type 0 fonts keep their program in the descendant CIDFont
+                COSBase descendants = ((COSDictionary) font).getDictionaryObject(COSName.DESCENDANT_FONTS);
+                if (descendants instanceof COSArray) {
+                    for (COSBase descendant : (COSArray) descendants) {
+                        COSBase cidFont = descendant instanceof COSObject ? ((COSObject) descendant).getObject() : descendant;
+                        if (cidFont instanceof COSDictionary) {
+                            addDescriptor((COSDictionary) cidFont, descriptors);
+                        }
+                    }
+                }
+                for (COSDictionary descriptor : descriptors) {
+                    for (COSName key : new COSName[]{COSName.FONT_FILE, COSName.FONT_FILE2, COSName.FONT_FILE3}) {
+                        deduplicate(descriptor, key, digests, canonical);
+                    }
+                }
+            }
+        }
+    }
+    
+    private static void addDescriptor(COSDictionary font, List<COSDictionary> descriptors) {
+        COSBase descriptor = font.getDictionaryObject(COSName.FONT_DESC);
+        if (descriptor instanceof COSDictionary) {
+            descriptors.add((COSDictionary) descriptor);
+        }
+    }
+    
+    private static void deduplicate(COSDictionary dictionary, COSName key, StreamDigests digests,
+                                    Map<String, COSBase> canonical) throws IOException {
+        COSBase item = dictionary.getItem(key);
+        if (!(item instanceof COSObject) || !(((COSObject) item).getObject() instanceof COSStream)) {
+            return;
+        }
+        COSStream stream = (COSStream) ((COSObject) item).getObject();
+        COSBase first = canonical.putIfAbsent(digests.of(stream), item);
+        if (first != null && ((COSObject) first).getObject() != stream) {
+            dictionary.setItem(key, first);
+        }
+    }
+    
+    /**
+     * SHA-256 of a stream's raw bytes and its dictionary. Referenced objects
+     * count by their content, streams such as an image's soft mask by their
+     * digest, so copies with copied parameters and masks match too. Past
+     * {@link #MAX_REFERENCE_DEPTH} references, and in cycles, objects count
+     * by object number.
+     */
+    private static class StreamDigests {
+        // Keeps a reference to a page from pulling in the whole page tree
+        private static final int MAX_REFERENCE_DEPTH = 3;
+        
+        private final Map<COSStream, String> digests = new IdentityHashMap<>();
+        private final Set<COSBase> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+        
+        String of(COSStream stream) throws IOException {
+            String digest = digests.get(stream);
+            if (digest != null) {
+                return digest;
+            }
+            inProgress.add(stream);
+            try {
+                StringBuilder description = new StringBuilder();
+                describe(stream, description, 0);
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                sha256.update(description.toString().getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = stream.createRawInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    for (int n; (n = in.read(buffer)) != -1; ) {
+                        sha256.update(buffer, 0, n);
+                    }
+                }
+                digest = HexFormat.of().formatHex(sha256.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // Every JVM has SHA-256
+            } finally {
+                inProgress.remove(stream);
+            }
+            digests.put(stream, digest);
+            return digest;
+        }
+        
+        private void describe(COSBase base, StringBuilder out, int depth) throws IOException {
+            if (base instanceof COSObject) {
+                COSObject reference = (COSObject) base;
+                COSBase target = reference.getObject();
+                if (target instanceof COSStream && !inProgress.contains(target)) {
+                    out.append("S").append(of((COSStream) target));
+                } else if (target != null && depth < MAX_REFERENCE_DEPTH && inProgress.add(target)) {
+                    try {
+                        out.append('{');
+                        describe(target, out, depth + 1);
+                        out.append('}');
+                    } finally {
+                        inProgress.remove(target);
+                    }
+                } else {
+                    out.append("R").append(reference.getObjectNumber()).append('_').append(reference.getGenerationNumber());
+                }
+            } else if (base instanceof COSDictionary) {
+                // Sorted, so the order entries were written in does not matter
+                Map<String, COSBase> entries = new TreeMap<>();
+                for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet()) {
+                    if (!(base instanceof COSStream && COSName.LENGTH.equals(entry.getKey()))) {
+                        entries.put(entry.getKey().getName(), entry.getValue());
+                    }
+                }
+                out.append("<<");
+                for (Map.Entry<String, COSBase> entry : entries.entrySet()) {
+                    out.append('/').append(entry.getKey()).append(' ');
+                    describe(entry.getValue(), out, depth);
+                }
+                out.append(">>");
+            } else if (base instanceof COSArray) {
+                out.append('[');
+                for (COSBase item : (COSArray) base) {
+                    describe(item, out, depth);
+                    out.append(' ');
+                }
+                out.append(']');
+            } else {
+                out.append(base);
+            }
         }
     }
     
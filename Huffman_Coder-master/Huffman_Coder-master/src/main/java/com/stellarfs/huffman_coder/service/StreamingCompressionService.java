@@ -0,0 +1,205 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.aayushatharva.brotli4j.encoder.BrotliOutputStream;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import com.stellarfs.huffman_coder.codec.ChunkedOutputStream;
+import com.stellarfs.huffman_coder.codec.CodecFrame;
+import com.stellarfs.huffman_coder.codec.CodecFrame.Algorithm;
+import com.stellarfs.huffman_coder.codec.LzHuffmanCoder;
+import jakarta.annotation.PostConstruct;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses data while it is still arriving, writing a streamed
+ * {@link CodecFrame} as the codec produces output instead of buffering the
+ * input and the result. The first bytes are sniffed by the
+ * {@link ContentClassifier}; already compressed input is passed through
+ * {@link Algorithm#STORED}.
+ * <p>
+ * Each stream holds two {@link #BUFFER_SIZE} buffers and one codec instance,
+ * whose window is bounded by the level limits below, and at most
+ * {@code compression.stream.max-concurrent} streams run at once.
+ */
+@Service
+public class StreamingCompressionService {
+
+    // Input is read, and codec output sent, this much at a time
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Higher levels need tens of MB of codec state per stream
+    private static final int MAX_ZSTD_LEVEL = 9;
+    private static final int MAX_BROTLI_QUALITY = 9;
+    private static final int DEFAULT_ZSTD_LEVEL = 6;
+    private static final int DEFAULT_BROTLI_QUALITY = 5;
+
+    @Autowired
+    private CodecContextPool codecContextPool;
+
+    @Autowired
+    private ContentClassifier contentClassifier;
+
+    @Autowired
+    private HuffmanService huffmanService;
+
+    @Autowired
+    private CompressionMetrics compressionMetrics;
+
+    // The codec is flushed after this much input, so the client never waits on more
+    @Value("${compression.stream.flush-bytes:262144}")
+    private int flushBytes;
+
+    @Value("${compression.stream.max-concurrent:16}")
+    private int maxConcurrent;
+
+    private Semaphore permits;
+
+    public static class StreamResult {
+        public final String method;
+        public final int level;
+        public final long originalSize;
+        public final long compressedSize;
+
+        StreamResult(Algorithm algorithm, int level, long originalSize, long compressedSize) {
+            this.method = algorithm.name();
+            this.level = level;
+            this.originalSize = originalSize;
+            this.compressedSize = compressedSize;
+        }
+    }
+
+    /**
+     * Thrown before anything is written when all stream slots are taken.
+     */
+    public static class BusyException extends Exception {
+        BusyException(String message) {
+            super(message);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxConcurrent);
+        compressionMetrics.gauge("compression.stream.active", this,
+                service -> service.maxConcurrent - service.permits.availablePermits());
+    }
+
+    /**
+     * Compresses {@code in} until it ends into a streamed frame on {@code out}.
+     * The codec is one of ZSTD, BROTLI, LZ4, LZ_HUFFMAN, RANS or STORED; a null
+     * level picks the codec's default.
+     *
+     * @throws IllegalArgumentException for an unsupported codec or level,
+     *         before anything is written
+     */
+    public StreamResult compress(InputStream in, OutputStream out, String codec, Integer level)
+            throws IOException, BusyException {
+        Algorithm algorithm = Algorithm.valueOf(codec.toUpperCase());
+        int effectiveLevel = level(algorithm, level);
+        if (!permits.tryAcquire()) {
+            throw new BusyException("Too many concurrent streams");
+        }
+        try {
+            return compress(in, out, algorithm, effectiveLevel);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private StreamResult compress(InputStream in, OutputStream out, Algorithm algorithm, int level) throws IOException {
+        long start = System.nanoTime();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n = in.readNBytes(buffer, 0, buffer.length);
+        if (n > 0 && contentClassifier.classify(buffer, n).kind == ContentClassifier.Kind.COMPRESSED) {
+            algorithm = Algorithm.STORED;
+            level = 0;
+        }
+
+        CodecFrame header = CodecFrame.streamed(algorithm, level);
+        out.write(header.toBytes());
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+        long length = 0;
+        try (OutputStream encoder = encoder(algorithm, level, chunks)) {
+            long unflushed = 0;
+            // read() returns what has arrived, so output follows the upload closely
+            for (; n != -1; n = in.read(buffer)) {
+                encoder.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                length += n;
+                unflushed += n;
+                if (unflushed >= flushBytes) {
+                    encoder.flush();
+                    unflushed = 0;
+                }
+            }
+        }
+
+        DataOutputStream trailer = new DataOutputStream(out);
+        trailer.writeLong(length);
+        trailer.writeInt((int) crc.getValue());
+        trailer.flush();
+
+        long compressedSize = header.size() + chunks.written() + CodecFrame.TRAILER_SIZE;
+        compressionMetrics.recordCompress(algorithm.name(), level, System.nanoTime() - start, length, compressedSize);
+        compressionMetrics.recordWinner("stream", algorithm.name());
+        return new StreamResult(algorithm, level, length, compressedSize);
+    }
+
+    // Closing the encoder ends the codec stream and the chunks, not the target
+    private OutputStream encoder(Algorithm algorithm, int level, ChunkedOutputStream chunks) throws IOException {
+        switch (algorithm) {
+            case STORED:
+                return chunks;
+            case ZSTD:
+                return codecContextPool.zstdCompressingStream(chunks, level);
+            case BROTLI:
+                return new BrotliOutputStream(chunks, new Encoder.Parameters().setQuality(level), BUFFER_SIZE);
+            case LZ4:
+                return new LZ4FrameOutputStream(chunks);
+            case RANS:
+                return huffmanService.ransEncodingStream(chunks);
+            case LZ_HUFFMAN:
+                return huffmanService.lzEncodingStream(chunks, level);
+            default:
+                throw new IllegalArgumentException("No streaming mode for " + algorithm);
+        }
+    }
+
+    private int level(Algorithm algorithm, Integer level) {
+        switch (algorithm) {
+            case ZSTD:
+                return checkLevel(algorithm, level, DEFAULT_ZSTD_LEVEL, 1, MAX_ZSTD_LEVEL);
+            case BROTLI:
+                return checkLevel(algorithm, level, DEFAULT_BROTLI_QUALITY, 0, MAX_BROTLI_QUALITY);
+            case LZ_HUFFMAN:
+                return checkLevel(algorithm, level, huffmanService.lzLevel(), LzHuffmanCoder.MIN_LEVEL,
+                        LzHuffmanCoder.MAX_LEVEL);
+            case LZ4:
+            case RANS:
+            case STORED:
+                // No levels
+                return 0;
+            default:
+                throw new IllegalArgumentException("No streaming mode for " + algorithm);
+        }
+    }
+
+    private static int checkLevel(Algorithm algorithm, Integer level, int defaultLevel, int min, int max) {
+        if (level == null) {
+            return defaultLevel;
+        }
+        if (level < min || level > max) {
+            throw new IllegalArgumentException(algorithm + " level must be between " + min + " and " + max);
+        }
+        return level;
+    }
+}
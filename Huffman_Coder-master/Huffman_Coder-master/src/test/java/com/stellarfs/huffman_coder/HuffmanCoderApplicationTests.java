@@ -3,7 +3,10 @@ package com.stellarfs.huffman_coder;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+@SpringBootTest(properties = {
+        "compression.archive.dir=target/test-archives",
+        "compression.dictionary.dir=target/test-dictionaries"
+})
 class HuffmanCoderApplicationTests {
 
     @Test
@@ -0,0 +1,120 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "compression.archive.dir=target/test-archives",
+        "compression.dictionary.dir=target/test-dictionaries"
+})
+class BatchArchiveServiceTests {
+
+    @Autowired
+    private BatchArchiveService batchArchiveService;
+
+    @Autowired
+    private HybridCompressionService hybridCompressionService;
+
+    @Test
+    void sharesDictionaryAcrossSimilarFilesAndReadsEntriesAlone() throws Exception {
+        Random random = new Random(23);
+        Map<String, byte[]> originals = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            originals.put("orders/order-" + i + ".json", ("{\"orderId\":" + (100000 + i) + ",\"customer\":{\"id\":"
+                    + random.nextInt(5000) + ",\"tier\":\"" + (i % 3 == 0 ? "gold" : "standard")
+                    + "\"},\"status\":\"SHIPPED\",\"currency\":\"EUR\",\"total\":" + random.nextInt(100000) / 100.0
+                    + ",\"lines\":[{\"sku\":\"SKU-" + random.nextInt(900) + "\",\"quantity\":" + (1 + random.nextInt(4))
+                    + "}]}").getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] noise = new byte[8192];
+        random.nextBytes(noise);
+        originals.put("noise.bin", noise);
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            log.append("2024-05-01 12:00:").append(i % 60).append(" INFO request ").append(i).append(" served\n");
+        }
+        originals.put("server.log", log.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<MultipartFile> files = new ArrayList<>();
+        long separately = 0;
+        long jsonSeparately = 0;
+        for (Map.Entry<String, byte[]> original : originals.entrySet()) {
+            files.add(new MockMultipartFile("files", original.getKey(), null, original.getValue()));
+            long size = hybridCompressionService.compress(original.getValue(), original.getKey()).compressedSize;
+            separately += size;
+            jsonSeparately += original.getKey().endsWith(".json") ? size : 0;
+        }
+
+        BatchArchiveService.BatchInfo batch = batchArchiveService.create(files);
+        assertEquals(originals.size(), batch.entries.size());
+        assertEquals(1, batch.dictionaryCount);
+        long json = 0;
+        for (BatchArchiveService.EntryInfo entry : batch.entries) {
+            assertEquals(entry.name.endsWith(".json"), entry.shared, entry.name);
+            json += entry.shared ? entry.compressedLength : 0;
+        }
+        assertTrue(json < jsonSeparately / 2, json + " vs " + jsonSeparately);
+        // The index and the shared dictionary included
+        assertTrue(batch.compressedLength < separately, batch.compressedLength + " vs " + separately);
+
+        for (Map.Entry<String, byte[]> original : originals.entrySet()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            batchArchiveService.read(batch.id, original.getKey(), out);
+            assertArrayEquals(original.getValue(), out.toByteArray(), original.getKey());
+        }
+        assertThrows(NoSuchFileException.class,
+                () -> batchArchiveService.read(batch.id, "missing.json", new ByteArrayOutputStream()));
+        assertTrue(batchArchiveService.delete(batch.id));
+    }
+
+    @Test
+    void unpacksZipUpload() throws Exception {
+        Map<String, byte[]> originals = new LinkedHashMap<>();
+        originals.put("docs/readme.txt", "Batch archives keep every entry separately readable.\n".repeat(50)
+                .getBytes(StandardCharsets.UTF_8));
+        originals.put("docs/empty.txt", new byte[0]);
+        originals.put("data/values.csv", "id,value\n1,2\n3,4\n".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(zipped)) {
+            zip.putNextEntry(new ZipEntry("docs/"));
+            zip.closeEntry();
+            for (Map.Entry<String, byte[]> original : originals.entrySet()) {
+                zip.putNextEntry(new ZipEntry(original.getKey()));
+                zip.write(original.getValue());
+                zip.closeEntry();
+            }
+        }
+
+        BatchArchiveService.BatchInfo batch = batchArchiveService.create(
+                List.of(new MockMultipartFile("files", "upload.zip", null, zipped.toByteArray())));
+        assertEquals(List.copyOf(originals.keySet()), batch.entries.stream().map(entry -> entry.name).toList());
+        assertFalse(batch.entries.stream().anyMatch(entry -> entry.shared));
+        for (Map.Entry<String, byte[]> original : originals.entrySet()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            batchArchiveService.read(batch.id, original.getKey(), out);
+            assertArrayEquals(original.getValue(), out.toByteArray(), original.getKey());
+        }
+        assertTrue(batchArchiveService.delete(batch.id));
+    }
+}
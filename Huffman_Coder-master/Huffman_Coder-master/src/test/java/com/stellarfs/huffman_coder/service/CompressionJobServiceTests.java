@@ -0,0 +1,123 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "compression.archive.dir=target/test-archives",
+        "compression.dictionary.dir=target/test-dictionaries",
+        "compression.jobs.dir=target/test-jobs",
+        "compression.jobs.workers=1",
+        "compression.jobs.max-queued=1"
+})
+class CompressionJobServiceTests {
+
+    @Autowired
+    private CompressionJobService compressionJobService;
+
+    @Autowired
+    private HybridCompressionService hybridCompressionService;
+
+    private static MockMultipartFile upload(String name, int seed, int size) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("job ").append(random.nextInt(500)).append(random.nextBoolean() ? " done\n" : " queued ");
+        }
+        return new MockMultipartFile("file", name, "text/plain", text.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private CompressionJobService.JobStatus await(String id) throws InterruptedException {
+        for (int i = 0; i < 1200; i++) {
+            CompressionJobService.JobStatus status = compressionJobService.status(id);
+            if (status.status == CompressionJobService.Status.DONE || status.status == CompressionJobService.Status.FAILED) {
+                return status;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("Job " + id + " did not finish");
+    }
+
+    @Test
+    void compressesToTempFileAndDeletesIt() throws Exception {
+        MockMultipartFile file = upload("report.log", 1, 200_000);
+        CompressionJobService.JobStatus submitted = compressionJobService.submit(file, Integer.MAX_VALUE);
+        assertEquals(file.getSize(), submitted.originalSize);
+        assertEquals(CompressionJobService.MAX_PRIORITY, submitted.priority);
+
+        CompressionJobService.JobStatus done = await(submitted.id);
+        assertEquals(CompressionJobService.Status.DONE, done.status);
+        assertTrue(done.compressedSize < done.originalSize);
+
+        Path result = compressionJobService.result(submitted.id);
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(result)) {
+            hybridCompressionService.decompress(in, restored);
+        }
+        assertArrayEquals(file.getBytes(), restored.toByteArray());
+
+        assertTrue(compressionJobService.delete(submitted.id));
+        assertFalse(Files.exists(result));
+        assertNull(compressionJobService.status(submitted.id));
+    }
+
+    @Test
+    void storesIncompressibleUploadInAFrame() throws Exception {
+        byte[] noise = new byte[100_000];
+        new Random(3).nextBytes(noise);
+        CompressionJobService.JobStatus submitted = compressionJobService.submit(
+                new MockMultipartFile("file", "noise.bin", null, noise), 0);
+        CompressionJobService.JobStatus done = await(submitted.id);
+        assertEquals("STORED", done.method);
+        assertTrue(done.compressedSize > done.originalSize);
+
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(compressionJobService.result(submitted.id))) {
+            hybridCompressionService.decompress(in, restored);
+        }
+        assertArrayEquals(noise, restored.toByteArray());
+        assertTrue(compressionJobService.delete(submitted.id));
+    }
+
+    @Test
+    void rejectsJobsOnceTheQueueIsFull() throws Exception {
+        // One job runs and one waits; with a single queue slot one of the others must bounce
+        List<String> accepted = new ArrayList<>();
+        CompressionJobService.QueueFullException rejected = null;
+        for (int i = 0; i < 4 && rejected == null; i++) {
+            try {
+                accepted.add(compressionJobService.submit(upload("bulk-" + i + ".txt", 10 + i, 1_000_000), 0).id);
+            } catch (CompressionJobService.QueueFullException e) {
+                rejected = e;
+            }
+        }
+        assertNotNull(rejected);
+        assertTrue(rejected.retryAfterSeconds >= 1);
+
+        // Leave the queue empty for the other tests; a running job cannot be deleted until it ends
+        for (String id : accepted) {
+            if (!compressionJobService.delete(id)) {
+                await(id);
+                assertTrue(compressionJobService.delete(id));
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import com.stellarfs.huffman_coder.codec.CanonicalHuffman;
+import com.stellarfs.huffman_coder.codec.HuffmanArchive;
+import com.stellarfs.huffman_coder.codec.HuffmanEncoder;
+import com.stellarfs.huffman_coder.codec.HuffmanFormat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HuffmanServiceTests {
+
+    private final HuffmanService huffmanService = new HuffmanService();
+
+    @Test
+    void roundTripsText() throws Exception {
+        byte[] data = "the quick brown fox jumps over the lazy dog ".repeat(500).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = huffmanService.compress(data);
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, huffmanService.decompress(compressed));
+    }
+
+    @Test
+    void roundTripsEmptyAndSingleSymbolInput() throws Exception {
+        assertArrayEquals(new byte[0], huffmanService.decompress(huffmanService.compress(new byte[0])));
+        byte[] repeated = new byte[1000];
+        Arrays.fill(repeated, (byte) 'a');
+        assertArrayEquals(repeated, huffmanService.decompress(huffmanService.compress(repeated)));
+    }
+
+    @Test
+    void roundTripsSkewedAndRandomData() throws Exception {
+        Random random = new Random(42);
+        byte[] skewed = new byte[200_000];
+        for (int i = 0; i < skewed.length; i++) {
+            skewed[i] = (byte) (Math.abs(random.nextGaussian()) * 12);
+        }
+        assertArrayEquals(skewed, huffmanService.decompress(huffmanService.compress(skewed)));
+
+        byte[] noise = new byte[50_000];
+        random.nextBytes(noise);
+        assertArrayEquals(noise, huffmanService.decompress(huffmanService.compress(noise)));
+    }
+
+    @Test
+    void streamingMatchesInMemoryFormat() throws Exception {
+        byte[] data = "streamed through fixed-size buffers ".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        huffmanService.compress(() -> new ByteArrayInputStream(data), compressed);
+        assertArrayEquals(huffmanService.compress(data), compressed.toByteArray());
+
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        huffmanService.decompress(new ByteArrayInputStream(compressed.toByteArray()), restored);
+        assertArrayEquals(data, restored.toByteArray());
+    }
+
+    @Test
+    void blockModeRoundTripsInMemoryAndStreaming() throws Exception {
+        Random random = new Random(7);
+        byte[] data = new byte[300_001];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i < 150_000 ? 'a' + random.nextInt(4) : random.nextInt(256));
+        }
+        byte[] compressed = huffmanService.compressBlocks(data, 64 * 1024);
+        assertArrayEquals(data, huffmanService.decompress(compressed));
+
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        huffmanService.decompress(new ByteArrayInputStream(compressed), restored);
+        assertArrayEquals(data, restored.toByteArray());
+    }
+
+    @Test
+    void archiveReadsArbitraryRanges(@TempDir Path dir) throws Exception {
+        Random random = new Random(5);
+        byte[] data = new byte[200_003];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + Math.min(25, (int) Math.abs(random.nextGaussian() * 6)));
+        }
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        huffmanService.compressBlocks(new ByteArrayInputStream(data), data.length, 16 * 1024, streamed);
+        assertArrayEquals(huffmanService.compressBlocks(data, 16 * 1024), streamed.toByteArray());
+
+        Path file = dir.resolve("data.huf");
+        Files.write(file, streamed.toByteArray());
+        try (HuffmanArchive archive = HuffmanArchive.open(file)) {
+            assertEquals(data.length, archive.length());
+            long[][] ranges = {{0, 10}, {16_380, 10}, {50_000, 70_000}, {data.length - 3, 3}, {0, data.length}, {77, 0}};
+            for (long[] range : ranges) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                archive.read(range[0], range[1], out);
+                assertArrayEquals(Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1])), out.toByteArray());
+            }
+        }
+
+        // Only the corrupted block fails; the rest of the archive stays readable
+        byte[] corrupted = streamed.toByteArray();
+        corrupted[corrupted.length / 2] ^= 0x10;
+        Files.write(file, corrupted);
+        try (HuffmanArchive archive = HuffmanArchive.open(file)) {
+            archive.read(0, 100, new ByteArrayOutputStream());
+            assertThrows(IOException.class, () -> archive.read(0, data.length, new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    void compressesFilesFromMappedBlocks(@TempDir Path dir) throws Exception {
+        Random random = new Random(8);
+        byte[] data = new byte[300_001];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('0' + Math.min(9, (int) Math.abs(random.nextGaussian() * 3)));
+        }
+        Path source = dir.resolve("data.txt");
+        Path target = dir.resolve("data.huf");
+        Files.write(source, data);
+
+        huffmanService.compress(source, target);
+        byte[] compressed = Files.readAllBytes(target);
+        assertArrayEquals(huffmanService.compressBlocks(data, HuffmanService.DEFAULT_BLOCK_SIZE), compressed);
+        assertArrayEquals(data, huffmanService.decompress(compressed));
+    }
+
+    @Test
+    void countsBytesInAnyLayout() {
+        byte[] data = new byte[100_003];
+        new Random(5).nextBytes(data);
+        Arrays.fill(data, 40_000, 60_000, (byte) 7);
+        long[] expected = new long[256];
+        for (int i = 3; i < data.length - 2; i++) {
+            expected[data[i] & 0xFF]++;
+        }
+
+        assertArrayEquals(expected, ByteHistogram.count(data, 3, data.length - 5));
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).position(3).limit(data.length - 2);
+        assertArrayEquals(expected, ByteHistogram.count(direct));
+        assertEquals(3, direct.position());
+    }
+
+    @Test
+    void capsCodeLengthsOnSkewedInput() throws Exception {
+        // Fibonacci counts give an unrestricted Huffman code one extra bit per symbol
+        long[] frequencies = new long[256];
+        ByteArrayOutputStream skewed = new ByteArrayOutputStream();
+        for (int symbol = 0, a = 1, b = 1; symbol < 25; symbol++, b = a + b, a = b - a) {
+            frequencies[symbol] = a;
+            for (int i = 0; i < a; i++) {
+                skewed.write(symbol);
+            }
+        }
+        int[] unlimited = CanonicalHuffman.codeLengths(frequencies, CanonicalHuffman.MAX_CODE_LENGTH);
+        int[] limited = CanonicalHuffman.codeLengths(frequencies, 15);
+        assertEquals(24, Arrays.stream(unlimited).max().getAsInt());
+        assertEquals(15, Arrays.stream(limited).max().getAsInt());
+        CanonicalHuffman.codesFromLengths(limited);
+        assertTrue(HuffmanEncoder.encodedBits(frequencies, limited) >= HuffmanEncoder.encodedBits(frequencies, unlimited));
+
+        byte[] data = skewed.toByteArray();
+        assertArrayEquals(data, huffmanService.decompress(huffmanService.compress(data)));
+    }
+
+    @Test
+    void ransCodesSkewedDataBelowWholeBitsInOnePass() throws Exception {
+        Random random = new Random(24);
+        // Huffman spends at least a bit on the dominant byte, rANS about a tenth of one
+        byte[] skewed = new byte[1_000_000];
+        for (int i = 0; i < skewed.length; i++) {
+            skewed[i] = random.nextInt(20) == 0 ? (byte) random.nextInt(256) : 0;
+        }
+        byte[] rans = huffmanService.compressRans(skewed);
+        byte[] huffman = huffmanService.compress(skewed);
+        assertTrue(rans.length < huffman.length * 3 / 4, rans.length + " vs " + huffman.length);
+        assertArrayEquals(skewed, decodeRans(rans));
+
+        // Written piecemeal with flushes in between, as the streaming endpoint does
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encoder = huffmanService.ransEncodingStream(out)) {
+            for (int off = 0, piece = 0; off < skewed.length; off += 7777, piece++) {
+                encoder.write(skewed, off, Math.min(7777, skewed.length - off));
+                if (piece % 5 == 0) {
+                    encoder.flush();
+                }
+            }
+        }
+        assertArrayEquals(skewed, decodeRans(out.toByteArray()));
+
+        byte[] repeated = new byte[1001];
+        Arrays.fill(repeated, (byte) 'a');
+        for (byte[] data : List.of(new byte[0], new byte[]{7}, repeated)) {
+            assertArrayEquals(data, decodeRans(huffmanService.compressRans(data)));
+        }
+
+        rans[rans.length / 2] ^= 0x21;
+        assertThrows(IOException.class, () -> decodeRans(rans));
+    }
+
+    @Test
+    void lzCodesRepeatsThatOrderZeroHuffmanCannot() throws Exception {
+        Random random = new Random(25);
+        StringBuilder log = new StringBuilder();
+        while (log.length() < 1_500_000) {
+            log.append("{\"id\":").append(random.nextInt(100_000)).append(",\"user\":\"user")
+                    .append(random.nextInt(500)).append("\",\"status\":\"").append(random.nextBoolean() ? "OK" : "FAILED")
+                    .append("\"}\n");
+        }
+        byte[] data = log.toString().getBytes(StandardCharsets.US_ASCII);
+        int huffman = huffmanService.compress(data).length;
+
+        int previous = Integer.MAX_VALUE;
+        for (int level : new int[]{1, 4, 9}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (OutputStream encoder = huffmanService.lzEncodingStream(out, level)) {
+                encoder.write(data);
+            }
+            byte[] lz = out.toByteArray();
+            assertTrue(lz.length < huffman / 2, "level " + level + ": " + lz.length + " vs " + huffman);
+            assertTrue(lz.length <= previous, "level " + level);
+            previous = lz.length;
+            assertArrayEquals(data, decodeLz(lz));
+        }
+
+        // Overlapping matches, input too short to match, and input that does not shrink
+        byte[] repeated = new byte[100_000];
+        Arrays.fill(repeated, (byte) 'a');
+        byte[] noise = new byte[70_000];
+        random.nextBytes(noise);
+        for (byte[] input : List.of(new byte[0], new byte[]{1, 2, 3}, repeated, noise)) {
+            assertArrayEquals(input, decodeLz(huffmanService.compressLz(input)));
+        }
+
+        // Bit errors are left to the frame checksum, but a cut-off payload is noticed
+        byte[] lz = huffmanService.compressLz(data);
+        assertThrows(IOException.class, () -> decodeLz(Arrays.copyOf(lz, lz.length - 1)));
+    }
+
+    @Test
+    void rejectsCorruptedPayload() throws Exception {
+        byte[] data = "corruption must not go unnoticed ".repeat(200).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = huffmanService.compress(data);
+        compressed[compressed.length - 10] ^= 0x21;
+        assertThrows(IOException.class, () -> huffmanService.decompress(compressed));
+    }
+
+    @Test
+    void rejectsHeadersClaimingHugeOutput() throws Exception {
+        // A one-symbol table has no payload to bound the length it claims
+        int[] lengths = new int[256];
+        lengths['a'] = 1;
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        new HuffmanFormat.Header(0, Integer.MAX_VALUE - 16, 0, lengths).write(new DataOutputStream(single));
+        assertThrows(IOException.class, () -> huffmanService.decompress(single.toByteArray()));
+
+        // Streaming needs no array for it, so the claim must be refused before anything is written
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        new HuffmanFormat.Header(0, 1L << 40, 0, lengths).write(new DataOutputStream(streamed));
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        assertThrows(IOException.class, () -> huffmanService.decompress(
+                new ByteArrayInputStream(streamed.toByteArray()), restored));
+        assertEquals(0, restored.size());
+
+        for (long originalLength : new long[]{Long.MAX_VALUE, -1}) {
+            ByteArrayOutputStream blocked = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(blocked);
+            out.write(new byte[]{'H', 'U', 'F', 0x1A, HuffmanFormat.VERSION, HuffmanFormat.FLAG_BLOCKS});
+            out.writeLong(originalLength);
+            out.writeInt(0);
+            out.writeInt(1);
+            assertThrows(IOException.class, () -> huffmanService.decompress(
+                    new ByteArrayInputStream(blocked.toByteArray()), new ByteArrayOutputStream()));
+            assertThrows(IOException.class, () -> huffmanService.decompress(blocked.toByteArray()));
+        }
+    }
+
+    @Test
+    void rejectsUnknownFormat() {
+        assertThrows(IOException.class, () -> huffmanService.decompress(new byte[]{1, 2, 3, 4, 5}));
+    }
+
+    private byte[] decodeRans(byte[] payload) throws IOException {
+        try (InputStream in = huffmanService.ransDecodingStream(new ByteArrayInputStream(payload))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private byte[] decodeLz(byte[] payload) throws IOException {
+        try (InputStream in = huffmanService.lzDecodingStream(new ByteArrayInputStream(payload))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.stellarfs.huffman_coder.service;
+
+import com.stellarfs.huffman_coder.codec.ByteHistogram;
+import com.stellarfs.huffman_coder.codec.CodecFrame;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "compression.archive.dir=target/test-archives",
+        "compression.dictionary.dir=target/test-dictionaries",
+        "compression.dictionary.size=16384",
+        "compression.selection.audit-bytes=262144"
+})
+class HybridCompressionServiceTests {
+
+    @Autowired
+    private HybridCompressionService hybridCompressionService;
+
+    @Autowired
+    private DictionaryService dictionaryService;
+
+    @Autowired
+    private CompressionCache compressionCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private StreamingCompressionService streamingCompressionService;
+
+    @Autowired
+    private CodecSelector codecSelector;
+
+    @Value("${compression.selection.sample-window}")
+    private int sampleWindow;
+
+    @Value("${compression.selection.sample-count}")
+    private int sampleCount;
+
+    @Value("${compression.selection.audit-every}")
+    private int auditEvery;
+
+    @Value("${compression.selection.audit-bytes}")
+    private int auditBytes;
+
+    private byte[] roundTrip(byte[] data, String fileName) throws IOException {
+        HybridCompressionService.CompressionResult result = hybridCompressionService.compress(data, fileName);
+        assertTrue(CodecFrame.hasMagic(result.compressedData));
+        assertEquals(CodecFrame.read(result.compressedData).algorithm.name(), result.method);
+
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        hybridCompressionService.decompress(new ByteArrayInputStream(result.compressedData), restored);
+        return restored.toByteArray();
+    }
+
+    @Test
+    void roundTripsWhicheverCodecWins() throws Exception {
+        byte[] text = "framed output names its own codec\n".repeat(2000).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(text, roundTrip(text, "notes.txt"));
+
+        Random random = new Random(3);
+        byte[] skewed = new byte[100_000];
+        for (int i = 0; i < skewed.length; i++) {
+            skewed[i] = (byte) (Math.abs(random.nextGaussian()) * 20);
+        }
+        assertArrayEquals(skewed, roundTrip(skewed, "samples.bin"));
+
+        byte[] noise = new byte[20_000];
+        random.nextBytes(noise);
+        assertArrayEquals(noise, roundTrip(noise, "noise.bin"));
+
+        assertArrayEquals(new byte[0], roundTrip(new byte[0], "empty.txt"));
+
+        // One dominant byte: whole-bit Huffman codes and LZ matches both leave ratio behind
+        byte[] sparse = new byte[500_000];
+        for (int i = 0; i < sparse.length; i++) {
+            sparse[i] = random.nextInt(20) == 0 ? (byte) random.nextInt(256) : 0;
+        }
+        assertEquals("RANS", hybridCompressionService.compress(sparse, "sparse.bin").method);
+        assertArrayEquals(sparse, roundTrip(sparse, "sparse.bin"));
+    }
+
+    @Test
+    void compressesFilesFromMappings(@TempDir Path dir) throws Exception {
+        Random random = new Random(17);
+        StringBuilder log = new StringBuilder();
+        while (log.length() < 2_000_000) {
+            log.append("GET /objects/").append(random.nextInt(5000)).append(" 200 ").append(random.nextInt(900)).append("ms\n");
+        }
+        byte[] noise = new byte[1_000_000];
+        random.nextBytes(noise);
+
+        for (byte[] data : List.of(log.toString().getBytes(StandardCharsets.US_ASCII), noise)) {
+            Path source = dir.resolve("input.log");
+            Path target = dir.resolve("input.log.scf");
+            Files.write(source, data);
+            HybridCompressionService.CompressionResult result = hybridCompressionService.compress(source, target, "input.log");
+            assertEquals(Files.size(target), result.compressedSize);
+            assertEquals(CodecFrame.read(Files.readAllBytes(target)).algorithm.name(), result.method);
+
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            try (InputStream in = Files.newInputStream(target)) {
+                hybridCompressionService.decompress(in, restored);
+            }
+            assertArrayEquals(data, restored.toByteArray());
+        }
+        // Noise is stored as it is, copied over by the channel
+        assertEquals("STORED", CodecFrame.read(Files.readAllBytes(dir.resolve("input.log.scf"))).algorithm.name());
+    }
+
+    @Test
+    void routesByContentRatherThanExtension() throws Exception {
+        byte[] text = "sniffed, not named: ünïcödé text\n".repeat(2000).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+            gzip.write(text);
+        }
+        byte[] archive = gzipped.toByteArray();
+
+        ContentClassifier classifier = new ContentClassifier();
+        assertEquals(ContentClassifier.Kind.TEXT, classifier.classify(text).kind);
+        assertEquals("gzip", classifier.classify(archive).format);
+        assertEquals(ContentClassifier.Kind.PDF, classifier.classify("%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII)).kind);
+        byte[] noise = new byte[8192];
+        new Random(5).nextBytes(noise);
+        assertEquals(ContentClassifier.Kind.COMPRESSED, classifier.classify(noise).kind);
+        // A multi-byte sequence cut off by the sniff window is still text
+        assertEquals(ContentClassifier.Kind.TEXT, classifier.classify(Arrays.copyOf(text, 4097)).kind);
+        // Text that merely starts like a signature is not mistaken for that format
+        for (String start : new String[]{"BZh is a prefix\n", "GIF8 of them\n", "ID3 tags\n", "abcdftyp box\n"}) {
+            assertEquals(ContentClassifier.Kind.TEXT,
+                    classifier.classify(start.repeat(100).getBytes(StandardCharsets.US_ASCII)).kind, start);
+        }
+
+        // A gzip named like text is stored without running any codec
+        HybridCompressionService.CompressionResult stored = hybridCompressionService.compress(archive, "report.txt");
+        assertEquals("STORED", stored.method);
+        assertArrayEquals(archive, roundTrip(archive, "report.txt"));
+        // Text without a known extension still gets compressed
+        assertTrue(hybridCompressionService.compress(text, "report").compressedSize < text.length / 10);
+    }
+
+    @Test
+    void streamsFramesWhileInputArrives() throws Exception {
+        Random random = new Random(23);
+        StringBuilder log = new StringBuilder();
+        while (log.length() < 3_000_000) {
+            log.append("PUT /chunks/").append(random.nextInt(9000)).append(" 201 ").append(random.nextInt(400)).append("ms\n");
+        }
+        byte[] data = log.toString().getBytes(StandardCharsets.US_ASCII);
+
+        for (String codec : List.of("zstd", "brotli", "lz4", "lz_huffman", "rans", "stored")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // Output must appear before the upload is over
+            long[] outputAtHalf = {-1};
+            InputStream upload = new ByteArrayInputStream(data) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (outputAtHalf[0] < 0 && pos >= data.length / 2) {
+                        outputAtHalf[0] = out.size();
+                    }
+                    return super.read(b, off, Math.min(len, 8192));
+                }
+            };
+            StreamingCompressionService.StreamResult result = streamingCompressionService.compress(upload, out, codec, null);
+            byte[] framed = out.toByteArray();
+            assertEquals(codec.toUpperCase(), result.method);
+            assertEquals(framed.length, result.compressedSize);
+            assertTrue(CodecFrame.read(framed).streamed);
+            assertTrue(outputAtHalf[0] > CodecFrame.HEADER_SIZE);
+
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            hybridCompressionService.decompress(new ByteArrayInputStream(framed), restored);
+            assertArrayEquals(data, restored.toByteArray());
+
+            byte[] truncated = Arrays.copyOf(framed, framed.length - 1);
+            assertThrows(IOException.class,
+                    () -> hybridCompressionService.decompress(new ByteArrayInputStream(truncated), new ByteArrayOutputStream()));
+        }
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+            gzip.write(data);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals("STORED", streamingCompressionService.compress(
+                new ByteArrayInputStream(gzipped.toByteArray()), out, "zstd", 3).method);
+        assertThrows(IllegalArgumentException.class, () -> streamingCompressionService.compress(
+                new ByteArrayInputStream(data), new ByteArrayOutputStream(), "zstd", 22));
+    }
+
+    @Test
+    void usesTrainedDictionaryForSmallPayloads() throws Exception {
+        Random random = new Random(11);
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            samples.add(event(random).getBytes(StandardCharsets.UTF_8));
+        }
+        dictionaryService.train("json", samples);
+
+        byte[] data = event(random).getBytes(StandardCharsets.UTF_8);
+        HybridCompressionService.CompressionResult withDictionary = hybridCompressionService.compress(data, "event.json");
+        HybridCompressionService.CompressionResult without = hybridCompressionService.compress(data, "event.txt");
+        assertNotEquals(0, CodecFrame.read(withDictionary.compressedData).dictionaryId);
+        assertTrue(withDictionary.compressedSize < without.compressedSize);
+        assertArrayEquals(data, roundTrip(data, "event.json"));
+    }
+
+    private static String event(Random random) {
+        return "{\"timestamp\":\"2024-03-" + (10 + random.nextInt(20)) + "T12:" + (10 + random.nextInt(50))
+                + ":00Z\",\"level\":\"" + (random.nextBoolean() ? "INFO" : "WARN")
+                + "\",\"service\":\"compression-gateway\",\"userId\":" + random.nextInt(100000)
+                + ",\"message\":\"request completed\",\"durationMs\":" + random.nextInt(5000) + "}";
+    }
+
+    @Test
+    void servesRepeatedUploadsFromCache() throws Exception {
+        byte[] data = "nightly bundle uploaded again and again\n".repeat(3000).getBytes(StandardCharsets.UTF_8);
+        HybridCompressionService.CompressionResult first = hybridCompressionService.compress(data, "bundle.log");
+        long hits = compressionCache.stats().memoryHits;
+
+        HybridCompressionService.CompressionResult second = hybridCompressionService.compress(data.clone(), "bundle.log");
+        assertSame(first.compressedData, second.compressedData);
+        assertEquals(hits + 1, compressionCache.stats().memoryHits);
+
+        // Another extension may pick other trained dictionaries, so it is another entry
+        long misses = compressionCache.stats().misses;
+        hybridCompressionService.compress(data, "bundle.bin");
+        assertEquals(misses + 1, compressionCache.stats().misses);
+
+        // A colliding entry holds another upload's frame and must not be served
+        byte[] other = "same key, other upload\n".repeat(3000).getBytes(StandardCharsets.UTF_8);
+        byte[] colliding = "collision check\n".repeat(3000).getBytes(StandardCharsets.UTF_8);
+        compressionCache.put(compressionCache.key(colliding, "smart-log"),
+                hybridCompressionService.compress(other, "other.log").compressedData);
+        HybridCompressionService.CompressionResult served = hybridCompressionService.compress(colliding, "bundle.log");
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        hybridCompressionService.decompress(new ByteArrayInputStream(served.compressedData), restored);
+        assertArrayEquals(colliding, restored.toByteArray());
+    }
+
+    @Test
+    void recordsCodecMetrics() throws Exception {
+        byte[] data = "instrumented compress and decompress\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        HybridCompressionService.CompressionResult result = hybridCompressionService.compress(data, "metrics.txt");
+
+        Timer huffman = meterRegistry.find("compression.codec.compress").tag("codec", "LZ_HUFFMAN").timer();
+        assertTrue(huffman != null && huffman.count() > 0);
+        assertTrue(meterRegistry.get("compression.selection.winner")
+                .tag("service", "hybrid").tag("codec", result.method).counter().count() > 0);
+
+        double before = decompressedInput(result.method);
+        hybridCompressionService.decompress(new ByteArrayInputStream(result.compressedData), new ByteArrayOutputStream());
+        assertTrue(meterRegistry.get("compression.codec.decompress").tag("codec", result.method).timer().count() > 0);
+        assertEquals(result.compressedSize, decompressedInput(result.method) - before, 0);
+    }
+
+    private double decompressedInput(String codec) {
+        Counter counter = meterRegistry.find("compression.codec.bytes").tag("codec", codec)
+                .tag("operation", "decompress").tag("direction", "in").counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    @Test
+    void predictsOnSampledWindowsAndAuditsABoundedCopy() throws Exception {
+        // The cheap candidate stores, the expensive one deflates; both record the lengths they were given
+        List<Integer> cheapInputs = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> expensiveInputs = Collections.synchronizedList(new ArrayList<>());
+        CodecSelector.Candidate cheap = new CodecSelector.Candidate("STORED", 0, 1, data -> {
+            cheapInputs.add(data.length);
+            return data;
+        });
+        CodecSelector.Candidate expensive = new CodecSelector.Candidate("DEFLATE", 6, 10, data -> {
+            expensiveInputs.add(data.length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+                deflater.write(data);
+            }
+            return out.toByteArray();
+        });
+        List<CodecSelector.Candidate> candidates = List.of(cheap, expensive);
+
+        // Near-random data goes to the cheapest candidate without compressing anything
+        byte[] noise = new byte[2 << 20];
+        new Random(37).nextBytes(noise);
+        assertTrue(codecSelector.shouldSample(noise.length));
+        assertSame(cheap, codecSelector.choose(noise, ByteHistogram.count(noise), candidates));
+        assertTrue(expensiveInputs.isEmpty());
+        assertTrue(cheapInputs.isEmpty());
+
+        // Otherwise each candidate only sees the sampled windows
+        StringBuilder log = new StringBuilder();
+        Random random = new Random(41);
+        while (log.length() < 2 << 20) {
+            log.append("GET /item/").append(random.nextInt(1000)).append(" 200\n");
+        }
+        byte[] text = log.toString().getBytes(StandardCharsets.US_ASCII);
+        assertSame(expensive, codecSelector.choose(text, ByteHistogram.count(text), candidates));
+        assertEquals(sampleCount, expensiveInputs.size());
+        assertTrue(expensiveInputs.stream().allMatch(length -> length == sampleWindow));
+        expensiveInputs.clear();
+        cheapInputs.clear();
+
+        // One audit per audit-every decisions, on a copy of the payload's start rather than all of it
+        assertTrue(text.length > auditBytes);
+        for (int round = 1; round <= 2; round++) {
+            for (int i = 0; i < auditEvery; i++) {
+                codecSelector.maybeAudit(text, expensive, candidates);
+            }
+            for (int wait = 0; wait < 300 && expensiveInputs.size() < round; wait++) {
+                Thread.sleep(100);
+            }
+            assertEquals(round, expensiveInputs.size());
+        }
+        for (int wait = 0; wait < 300 && cheapInputs.size() < 2; wait++) {
+            Thread.sleep(100);
+        }
+        assertEquals(List.of(auditBytes, auditBytes), expensiveInputs);
+        assertEquals(List.of(auditBytes, auditBytes), cheapInputs);
+    }
+
+    @Test
+    void rejectsCorruptedFrame() throws Exception {
+        byte[] data = "checksummed end to end ".repeat(500).getBytes(StandardCharsets.UTF_8);
+        byte[] framed = hybridCompressionService.compress(data, "data.txt").compressedData;
+        framed[framed.length - 1] ^= 0x40;
+        assertThrows(IOException.class,
+                () -> hybridCompressionService.decompress(new ByteArrayInputStream(framed), new ByteArrayOutputStream()));
+
+        byte[] unknown = "not a frame at all".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class,
+                () -> hybridCompressionService.decompress(new ByteArrayInputStream(unknown), new ByteArrayOutputStream()));
+    }
+}
@@ -0,0 +1,192 @@
+package com.stellarfs.huffman_coder.service;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = {
+        "compression.archive.dir=target/test-archives",
+        "compression.pdf.images.mode=jpeg",
+        "compression.pdf.images.target-dpi=150"
+})
+class PDFCompressionServiceTests {
+
+    @Autowired
+    private PDFCompressionService pdfCompressionService;
+
+    @Test
+    void recompressesStreamsAndSharesDuplicateImages() throws Exception {
+        Random random = new Random(29);
+        BufferedImage logo = new BufferedImage(120, 80, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < logo.getHeight(); y++) {
+            for (int x = 0; x < logo.getWidth(); x++) {
+                logo.setRGB(x, y, (x / 10 + y / 10) % 2 == 0 ? 0x336699 : random.nextInt(4) * 0x101010);
+            }
+        }
+
+        byte[] original;
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            for (int i = 0; i < 4; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                // Every page embeds its own copy of the same image, as some generators do
+                PDImageXObject image = LosslessFactory.createFromImage(document, logo);
+                // Content written without compression
+                try (PDPageContentStream content = new PDPageContentStream(document, page,
+                        PDPageContentStream.AppendMode.OVERWRITE, false)) {
+                    content.drawImage(image, 50, 600);
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 11);
+                    content.newLineAtOffset(50, 500);
+                    for (int line = 0; line < 40; line++) {
+                        content.showText("Page " + i + ", line " + line + ": the same boilerplate over and over");
+                        content.newLineAtOffset(0, -12);
+                    }
+                    content.endText();
+                }
+            }
+            document.getDocumentInformation().setTitle("Quarterly boilerplate");
+            document.getDocumentInformation().setAuthor("Report generator");
+            document.getDocumentInformation().setTrapped("False");
+            document.save(out);
+            original = out.toByteArray();
+        }
+
+        byte[] optimized = pdfCompressionService.optimizePDF(original);
+        assertTrue(optimized.length < original.length, optimized.length + " of " + original.length);
+
+        try (PDDocument before = PDDocument.load(original); PDDocument after = PDDocument.load(optimized)) {
+            assertEquals(before.getNumberOfPages(), after.getNumberOfPages());
+            assertEquals(new PDFTextStripper().getText(before), new PDFTextStripper().getText(after));
+            assertNull(after.getDocumentInformation().getTitle());
+            assertNull(after.getDocumentInformation().getAuthor());
+            assertNull(after.getDocumentInformation().getTrapped());
+
+            Set<Long> images = new HashSet<>();
+            for (PDPage page : after.getPages()) {
+                assertEquals(COSName.FLATE_DECODE, ((COSStream) page.getCOSObject()
+                        .getDictionaryObject(COSName.CONTENTS)).getFilters());
+                for (COSName name : page.getResources().getXObjectNames()) {
+                    COSObject image = (COSObject) page.getResources().getCOSObject()
+                            .getCOSDictionary(COSName.XOBJECT).getItem(name);
+                    images.add(image.getObjectNumber());
+                }
+            }
+            assertEquals(1, images.size());
+        }
+    }
+
+    @Test
+    void downsamplesImagesShownAboveTargetResolution() throws Exception {
+        Random random = new Random(31);
+        BufferedImage photo = new BufferedImage(1200, 900, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < photo.getHeight(); y++) {
+            for (int x = 0; x < photo.getWidth(); x++) {
+                // Gradients with sensor-like noise, which Flate cannot do much with
+                int noise = random.nextInt(9) - 4;
+                photo.setRGB(x, y, (x * 255 / 1200 + noise & 0xFF) << 16 | (y * 255 / 900 + noise & 0xFF) << 8 | 128 + noise);
+            }
+        }
+
+        byte[] original;
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            PDImageXObject image = LosslessFactory.createFromImage(document, photo);
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                // 2 x 1.5 inches, so 150 dpi needs 300 x 225 pixels
+                content.drawImage(image, 50, 500, 144, 108);
+            }
+            document.save(out);
+            original = out.toByteArray();
+        }
+
+        byte[] optimized = pdfCompressionService.optimizePDF(original);
+        assertTrue(optimized.length < original.length / 4, optimized.length + " of " + original.length);
+
+        try (PDDocument after = PDDocument.load(optimized)) {
+            PDPage page = after.getPage(0);
+            COSName name = page.getResources().getXObjectNames().iterator().next();
+            PDImageXObject image = (PDImageXObject) page.getResources().getXObject(name);
+            assertEquals(300, image.getWidth());
+            assertEquals(225, image.getHeight());
+            assertEquals(COSName.DCT_DECODE, image.getCOSObject().getFilters());
+            // Still decodes to roughly the same picture
+            int rgb = image.getImage().getRGB(150, 112);
+            assertTrue(Math.abs((rgb >> 16 & 0xFF) - 127) < 12, Integer.toHexString(rgb));
+            assertTrue(Math.abs((rgb >> 8 & 0xFF) - 127) < 12, Integer.toHexString(rgb));
+        }
+
+        // A palette image has one component per pixel but is not gray: red on the left, blue on the right
+        byte[] palette = new byte[256 * 3];
+        for (int i = 0; i < 256; i++) {
+            palette[i * 3 + (i < 128 ? 0 : 2)] = (byte) (255 - (i & 15));
+        }
+        byte[] indices = new byte[1200 * 900];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (byte) (random.nextInt(128) + (i % 1200 < 600 ? 0 : 128));
+        }
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflated)) {
+            out.write(indices);
+        }
+        COSArray indexed = new COSArray();
+        indexed.add(COSName.INDEXED);
+        indexed.add(COSName.DEVICERGB);
+        indexed.add(COSInteger.get(255));
+        indexed.add(new COSString(palette));
+
+        byte[] originalIndexed;
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            PDImageXObject image = new PDImageXObject(document, new ByteArrayInputStream(deflated.toByteArray()),
+                    COSName.FLATE_DECODE, 1200, 900, 8, new PDIndexed(indexed));
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.drawImage(image, 50, 500, 144, 108);
+            }
+            document.save(out);
+            originalIndexed = out.toByteArray();
+        }
+
+        try (PDDocument after = PDDocument.load(pdfCompressionService.optimizePDF(originalIndexed))) {
+            PDPage page = after.getPage(0);
+            COSName name = page.getResources().getXObjectNames().iterator().next();
+            PDImageXObject image = (PDImageXObject) page.getResources().getXObject(name);
+            assertEquals(300, image.getWidth());
+            assertEquals(COSName.DEVICERGB, image.getCOSObject().getDictionaryObject(COSName.COLORSPACE));
+            int left = image.getImage().getRGB(60, 112);
+            int right = image.getImage().getRGB(240, 112);
+            assertTrue((left >> 16 & 0xFF) > 200 && (left >> 8 & 0xFF) < 60 && (left & 0xFF) < 60,
+                    Integer.toHexString(left));
+            assertTrue((right >> 16 & 0xFF) < 60 && (right >> 8 & 0xFF) < 60 && (right & 0xFF) > 200,
+                    Integer.toHexString(right));
+        }
+    }
+}